@@ -1,6 +1,18 @@
 package gov.dwp.ms.api;
 
 
+import gov.dwp.ms.service.DwpMsVirtualThreadExecutor;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import springfox.documentation.builders.ApiInfoBuilder;
@@ -13,6 +25,14 @@ import springfox.documentation.spring.web.plugins.Docket;
 @Configuration
 public class DwpMsApiConfig {
 	
+    private static Logger log = LoggerFactory.getLogger(DwpMsApiConfig.class);
+	
+    @Value("${cache.city.distances.max.size}")
+    private long cityDistancesCacheMaxSize;
+	
+    @Value("${cache.city.distances.min.hits}")
+    private int cityDistancesMinHits;
+	
     @Bean
     public Docket dwpApi() { // Bean to create Swagger documents from api calls. Can be accessed using https://localhost:8443/swagger-ui.html.
     	return new Docket(DocumentationType.SWAGGER_2)  
@@ -26,4 +46,34 @@ public class DwpMsApiConfig {
                 .paths(PathSelectors.any()) // Selecting all paths, but can limit to specific apis using regex if required.                         
                 .build();
     }   
+	
+    @Bean
+    public DwpMsCityDistanceCache dwpCityDistanceCache(@Qualifier("dwpTaskExec") Executor dwpTaskExec) { // Bean to create the cache of distance sorted users per often searched city, measured on the task executor.
+        return new DwpMsCityDistanceCache(cityDistancesCacheMaxSize, cityDistancesMinHits, dwpTaskExec);
+    }
+	
+    @Bean
+    public MeterBinder dwpCityDistanceCacheMetrics(DwpMsCityDistanceCache dwpCityDistanceCache) { // Publishes the city distances cache stats on the actuator metrics endpoint alongside the other caches.
+        return new CaffeineCacheMetrics(dwpCityDistanceCache.getCache(), "cityDistances", Collections.emptyList());
+    }
+	
+    @Bean
+    public DwpMsNdjsonMessageConverter dwpNdjsonMessageConverter() { // Bean to write streamed (ndjson) results. Spring Boot adds converter beans to the MVC message converters.
+        return new DwpMsNdjsonMessageConverter();
+    }
+	
+    @Bean
+    @ConditionalOnProperty(name = "thread.virtual.servlet", havingValue = "true")
+    public TomcatProtocolHandlerCustomizer<?> dwpVirtualThreadTomcat() { // Bean to run Tomcat request handling on virtual threads. Tomcat max connections still limits how many requests are in flight.
+    	return protocolHandler -> {
+    		ExecutorService executor = DwpMsVirtualThreadExecutor.newThreadPerTaskExecutor("dwp-ms-http-");
+    		
+    		if (executor == null) {
+    			log.warn("thread.virtual.servlet=true needs Java 21 or later, using the Tomcat thread pool");
+    			return;
+    		}
+    		
+    		protocolHandler.setExecutor(executor);
+    	};
+    }
 }
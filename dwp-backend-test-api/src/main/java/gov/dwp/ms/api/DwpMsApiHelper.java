@@ -1,18 +1,37 @@
 package gov.dwp.ms.api;
 
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import gov.dwp.ms.model.APILocationResponse;
+import gov.dwp.ms.model.APINearestUserResponse;
+import gov.dwp.ms.model.APIRadiusQuery;
+import gov.dwp.ms.model.APIRadiusQueryResponse;
 import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import gov.dwp.ms.service.DwpMsUsersSnapshotEvent;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.UUID;
-import net.sf.geographiclib.Geodesic;
-import net.sf.geographiclib.GeodesicData;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 import org.springframework.web.server.ResponseStatusException;
@@ -21,37 +40,421 @@ import org.springframework.web.server.ResponseStatusException;
 @Component
 public class DwpMsApiHelper {
 	
+	@Autowired
+	DwpMsDistanceEngine distanceEngine;
+	
+	@Autowired
+	DwpMsCityDistanceCache cityDistanceCache;
+	
+	@Value("${users.snapshot.refresh.ms}")
+	long usersRefreshMs;
+	
+	@Autowired
+	ObjectMapper objectMapper; // Same mapper Spring uses for response bodies, so materialized responses are identical.
+	
+	private final AtomicReference<DwpMsUserGridIndex> currentIndex = new AtomicReference<DwpMsUserGridIndex>(); // Index for the latest users snapshot.
+	@Value("${response.gzip.enabled}")
+	boolean gzipEnabled;
+	
+	@Value("${response.gzip.min.bytes}")
+	int gzipMinBytes;
+	
+	@Value("${batch.max.queries}")
+	int batchMaxQueries;
+	
+	@Value("${response.fragments.max.bytes}")
+	long fragmentsMaxBytes;
+	
+	private final AtomicReference<DwpMsIdOrder> currentIdOrder = new AtomicReference<DwpMsIdOrder>(); // Users ranked by id for the latest users snapshot.
+	private final AtomicReference<DwpMsUserJsonFragments> currentFragments = new AtomicReference<DwpMsUserJsonFragments>(); // Stored user json for the latest users snapshot.
+	private final AtomicReference<DwpMsMaterializedResponse> defaultResponse = new AtomicReference<DwpMsMaterializedResponse>(); // Default (London 50 miles) response for the latest users data.
+	
 	public List<APIUsersResponse> processResults(int radius, APILocationResponse location, List<APIUsersResponse> searchUsers, List<APIUsersResponse> radiusUsers) { // Processes lists of APIUserResponse against geodesic class to check if users within radius.	
-		Set<APIUsersResponse> resultSet = new HashSet<APIUsersResponse>(); // Create a result set to contain the valid results.
+		return findResults(radius, location, searchUsers, radiusUsers).toList();
+	}
+	
+	public byte[] writeResults(int radius, APILocationResponse location, List<APIUsersResponse> searchUsers, List<APIUsersResponse> radiusUsers) { // Same results as processResults, written straight to json from each user's stored json rather than creating and serialising the users.
+		DwpMsResults results = findResults(radius, location, searchUsers, radiusUsers);
+		
+		return results.toJson(objectMapper, getFragments(radiusUsers));
+	}
+	
+	public byte[] writeResults(int radius, APILocationResponse location, List<APIUsersResponse> searchUsers, List<APIUsersResponse> radiusUsers, DwpMsPage page, boolean cityLocation, HttpHeaders headers) { // One page of the results as json, adding the cursor for the next page to the headers if there is one.
+		DwpMsResults results = findResults(radius, location, searchUsers, radiusUsers, page, cityLocation);
+		setPageHeaders(headers, results, radiusUsers);
+		
+		return results.toJson(objectMapper, getFragments(radiusUsers));
+	}
+	
+	public ResponseEntity<DwpMsStreamedResults> streamResults(String xCorrelationId, int radius, APILocationResponse location, List<APIUsersResponse> searchUsers, List<APIUsersResponse> radiusUsers, DwpMsPage page, boolean cityLocation) { // Results for the streaming mode. Only the matching positions are held, the json is written as the body is sent.
+		DwpMsResults results = findResults(radius, location, searchUsers, radiusUsers, page, cityLocation);
+		
+		HttpHeaders headers = setResponseHeaders(xCorrelationId, null, radiusUsers); // No ETag, the body is never held to be compared or cached.
+		headers.setContentType(DwpMsStreamedResults.NDJSON);
+		setPageHeaders(headers, results, radiusUsers);
+		
+		return new ResponseEntity<DwpMsStreamedResults>(new DwpMsStreamedResults(results, objectMapper, getFragments(radiusUsers)), headers, HttpStatus.OK);
+	}
+	
+	private void setPageHeaders(HttpHeaders headers, DwpMsResults results, List<APIUsersResponse> radiusUsers) {
+		if (results.hasMore()) {
+			headers.set(DwpMsPage.NEXT_CURSOR_HEADER, DwpMsPage.cursor(radiusUsers, results.getLastId())); // The body stays a plain list, so the next page is passed back as a header.
+		}
+	}
+	
+	public DwpMsResults findResults(int radius, APILocationResponse location, List<APIUsersResponse> searchUsers, List<APIUsersResponse> radiusUsers) { // Finds the users within the radius, plus the city search users, sorted by id.
+		return findResults(radius, location, searchUsers, radiusUsers, DwpMsPage.ALL, true);
+	}
+	
+	public DwpMsResults findResults(int radius, APILocationResponse location, List<APIUsersResponse> searchUsers, List<APIUsersResponse> radiusUsers, DwpMsPage page, boolean cityLocation) { // Finds one page of the results. Only the page is sorted, the rest of the matches are just compared against it.
+		// cityLocation is false for co-ordinates given by the requester. They can be anywhere, so they would only fill the city distances cache with locations that are never searched again.
+		page.checkVersion(radiusUsers);
 		
 		if (radiusUsers.isEmpty() || (location.getLat() == null) || (location.getLon() == null)) {
 			throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR); // There should always be location / radiusUsers so throw an error to prevent null pointer.
 		}
 		
-		if (!searchUsers.isEmpty()) {
-			resultSet.addAll(searchUsers); // If there are some users from the city search result, add them to the result set as the city matched.
-		}
+		DwpMsSearchArea area = new DwpMsSearchArea(Double.parseDouble(location.getLat()), Double.parseDouble(location.getLon()), radius); // Source lat/lon and radius to check users against.
+		
+		DwpMsUserGridIndex index = getIndex(radiusUsers);
+		
+		DwpMsCityDistances distances = cityLocation && radiusUsers instanceof DwpMsUsersSnapshot && radius <= DwpMsCityDistances.MAX_RADIUS
+				? cityDistanceCache.get(index, distanceEngine, area.getLat(), area.getLon()) // Versioned snapshot, so the users near this location can be measured once and reused.
+				: null;
+		
+		int[] positions;
 		
-		for (APIUsersResponse u : radiusUsers) { // Loop through radius api call users.
-			GeodesicData result = Geodesic.WGS84.Inverse(Double.parseDouble(location.getLat()), Double.parseDouble(location.getLon()), u.getLatitude(), u.getLongitude()); // Get the geodesic data result, by passing the source lat/lon and users lat/lon.
+		if (distances != null) {
+			positions = new int[distances.countWithin(radius)]; // Users are sorted by distance, so the users within the radius are the first count users.
 			
-		    double distanceInMiles = result.s12 / 1609.34; // Result is in meters so divide to convert it into miles.
-		    	
-		    if (distanceInMiles <= radius) { // If the distance is less than radius, add the user.
-		    	resultSet.add(u); // Sets can only contain unique list values so this will prevent duplicates from the two api calls appearing in the results.
-		    }
+			for (int i = 0; i < positions.length; i++) {
+				positions[i] = distances.getPosition(i);
+			}
+			
+		} else {
+			IntStream.Builder found = IntStream.builder();
+			
+			index.forEachCandidate(area, entry -> { // Loop through the radius api call users in grid cells that could be within the radius.
+				if (distanceEngine.isWithinRadius(area, index.getLatitude(entry), index.getLongitude(entry))) { // If the distance is less than radius, add the user.
+					found.add(index.getPosition(entry)); // Only the position is kept, users are created (or written) once the results are known.
+			    }
+			});
+			
+			positions = found.build().toArray();
 		}
 		
-		if (resultSet.isEmpty()) {
+		// Users from the city search result are added to the results as the city matched. Both lists are merged by user id, so a user in both is only returned once, and the results come out in id order.
+		DwpMsResults results = new DwpMsResults(index.getUsers(), positions, positions.length, searchUsers, page, getIdOrder(index.getUsers(), positions.length));
+		
+		if (results.isEmpty()) {
 			throw new ResponseStatusException(HttpStatus.NO_CONTENT); // If there are no results to display, throw a 204 NO CONTENT message back to the requester.
 		}
 		
-		List<APIUsersResponse> response = new ArrayList<APIUsersResponse>(resultSet); 
-		Collections.sort(response, new DwpMsUserSort()); // Sort the results by id before returning, so they are all nicely in the correct order.
+		return results;
+	}
+	
+	public List<APINearestUserResponse> processNearest(int k, APILocationResponse location, List<APIUsersResponse> radiusUsers) { // Finds the k users nearest the location, nearest first, with their distance in miles.
+		if (radiusUsers.isEmpty() || (location.getLat() == null) || (location.getLon() == null)) {
+			throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR); // Same as processResults, there should always be location / radiusUsers.
+		}
+		
+		DwpMsNearestUsers nearest = DwpMsNearestUsers.find(getIndex(radiusUsers), distanceEngine, Double.parseDouble(location.getLat()), Double.parseDouble(location.getLon()), k);
+		List<APINearestUserResponse> response = new ArrayList<APINearestUserResponse>(nearest.size());
+		
+		for (int i = 0; i < nearest.size(); i++) {
+			APIUsersResponse user = nearest.getUser(i);
+			APINearestUserResponse result = new APINearestUserResponse();
+			result.setId(user.getId());
+			result.setFirst_name(user.getFirst_name());
+			result.setLast_name(user.getLast_name());
+			result.setEmail(user.getEmail());
+			result.setIp_address(user.getIp_address());
+			result.setLatitude(user.getLatitude());
+			result.setLongitude(user.getLongitude());
+			result.setDistance(nearest.getMiles(i));
+			
+			response.add(result);
+		}
+		
+		return response;
+	}
+	
+	public void checkBatch(List<APIRadiusQuery> queries) { // Checks a batch request the same way the radius endpoint checks its path variables, but as a bad request as the body is all or nothing.
+		if (queries == null || queries.isEmpty() || queries.size() > batchMaxQueries) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Between 1 and " + batchMaxQueries + " queries are allowed.");
+		}
+		
+		for (APIRadiusQuery query : queries) {
+			if (query == null || StringUtils.isEmpty(query.getCity()) || query.getCity().length() > 50 || query.getRadius() < 1 || query.getRadius() > 100) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Each query needs a city of up to 50 chars and a radius of 1 to 100 miles.");
+			}
+		}
+	}
+	
+	public List<APIRadiusQueryResponse> processBatch(List<APIRadiusQuery> queries, Map<String, CompletableFuture<APILocationResponse>> locations, Map<String, CompletableFuture<List<APIUsersResponse>>> searches, List<APIUsersResponse> radiusUsers) { // Results for each query in the batch, in the same order, all against the one users list.
+		Map<String, Integer> distinct = new LinkedHashMap<String, Integer>(); // Each (city, radius) is only worked out once, however often it is asked for.
+		int[] refs = new int[queries.size()];
+		
+		for (int i = 0; i < refs.length; i++) {
+			refs[i] = distinct.computeIfAbsent(queries.get(i).getRadius() + ":" + queries.get(i).getCity(), key -> distinct.size());
+		}
+		
+		List<APIRadiusQuery> distinctQueries = new ArrayList<APIRadiusQuery>(distinct.size());
+		
+		for (int i = 0; i < refs.length; i++) {
+			if (refs[i] == distinctQueries.size()) {
+				distinctQueries.add(queries.get(i));
+			}
+		}
+		
+		getIndex(radiusUsers); // Make sure the index is built once up front, rather than by each query at the same time.
+		
+		APIRadiusQueryResponse[] distinctResults = new APIRadiusQueryResponse[distinctQueries.size()];
+		
+		IntStream.range(0, distinctResults.length).parallel().forEach(i -> { // Spread the queries over the cores. The calling thread joins in, so this can't starve the task executor.
+			APIRadiusQuery query = distinctQueries.get(i);
+		
+			distinctResults[i] = processQuery(query, locations.get(query.getCity()), searches.get(query.getCity()), radiusUsers);
+		});
+		
+		List<APIRadiusQueryResponse> response = new ArrayList<APIRadiusQueryResponse>(refs.length);
+		
+		for (int ref : refs) {
+			response.add(distinctResults[ref]);
+		}
+		
+		return response;
+	}
+	
+	private APIRadiusQueryResponse processQuery(APIRadiusQuery query, CompletableFuture<APILocationResponse> location, CompletableFuture<List<APIUsersResponse>> search, List<APIUsersResponse> radiusUsers) { // One query of a batch. Errors are kept with the query, with the status the radius endpoint would have sent, so one bad city doesn't fail the rest.
+		APIRadiusQueryResponse result = new APIRadiusQueryResponse();
+		result.setCity(query.getCity());
+		result.setRadius(query.getRadius());
+		
+		try {
+			result.setUsers(processResults(query.getRadius(), location.join(), search.join(), radiusUsers));
+			result.setStatus(HttpStatus.OK.value());
+		
+		} catch(CompletionException e) {
+			result.setStatus(e.getCause() instanceof ResponseStatusException ? ((ResponseStatusException) e.getCause()).getStatus().value() : HttpStatus.INTERNAL_SERVER_ERROR.value());
+		
+		} catch(ResponseStatusException e) {
+			result.setStatus(e.getStatus().value()); // Includes 204 when there are no results.
+		
+		} catch(RuntimeException e) {
+			result.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value()); // e.g. bad co-ordinates from the location api. Only this query fails, not the whole batch.
+		}
+		
+		return result;
+	}
+	
+	private DwpMsIdOrder getIdOrder(DwpMsUsersSnapshot users, int count) { // Id ranks for the latest snapshot, only worth working out when the results are a big enough share of the users.
+		DwpMsIdOrder idOrder = currentIdOrder.get();
+		
+		if (users.getVersion() == 0 || count < users.size() / DwpMsResults.BITMAP_MIN_SHARE) {
+			return idOrder; // Not versioned, or small enough to just sort.
+		}
+		
+		if (idOrder == null || !idOrder.isFor(users)) {
+			idOrder = new DwpMsIdOrder(users); // Normally already done when the snapshot was published.
+			currentIdOrder.set(idOrder);
+		}
+		
+		return idOrder;
+	}
+	
+	private DwpMsUserJsonFragments getFragments(List<APIUsersResponse> users) { // Stored user json for the latest snapshot, or null if the users are not a versioned snapshot.
+		if (!(users instanceof DwpMsUsersSnapshot)) {
+			return null;
+		}
+		
+		DwpMsUsersSnapshot snapshot = (DwpMsUsersSnapshot) users;
+		DwpMsUserJsonFragments fragments = currentFragments.get();
+		
+		if (fragments == null || !fragments.isFor(snapshot)) {
+			fragments = new DwpMsUserJsonFragments(objectMapper, snapshot, fragmentsMaxBytes); // New snapshot, so start again. Users are written as they turn up in results rather than all at once.
+			currentFragments.set(fragments);
+		}
+		
+		return fragments;
+	}
+	
+	public DwpMsMaterializedResponse getDefaultResponse(int radius, APILocationResponse location, List<APIUsersResponse> searchUsers, List<APIUsersResponse> radiusUsers) { // Returns the serialised default response, only processing the results again when the users data has changed.
+		DwpMsMaterializedResponse response = defaultResponse.get();
+		
+		if (response == null || !response.isFor(searchUsers, radiusUsers)) {
+			byte[] body;
+			
+			try {
+				body = writeResults(radius, location, searchUsers, radiusUsers);
+				
+			} catch(ResponseStatusException e) {
+				if (e.getStatus() != HttpStatus.NO_CONTENT) {
+					throw e; // Only no results is part of the response, anything else is an error with the data.
+				}
+				
+				body = null;
+			}
+			
+			if (!(radiusUsers instanceof DwpMsUsersSnapshot)) {
+				return checkResults(new DwpMsMaterializedResponse(0, searchUsers, body)); // Not versioned, so there is nothing to check a materialized response against.
+			}
+			
+			response = new DwpMsMaterializedResponse(((DwpMsUsersSnapshot) radiusUsers).getVersion(), searchUsers, body);
+			defaultResponse.set(response);
+		}
+		
+		return checkResults(response);
+	}
+	
+	private DwpMsMaterializedResponse checkResults(DwpMsMaterializedResponse response) {
+		if (!response.hasResults()) {
+			throw new ResponseStatusException(HttpStatus.NO_CONTENT); // Same as processResults when there are no results.
+		}
 		
 		return response;
 	}
 	
+	public boolean useNdjson(String accept) { // True if the requester prefers ndjson to json, which turns on the streaming mode.
+		if (StringUtils.isEmpty(accept)) {
+			return false;
+		}
+		
+		List<MediaType> types = MediaType.parseMediaTypes(accept);
+		MediaType.sortBySpecificityAndQuality(types);
+		
+		for (MediaType type : types) {
+			if (type.getQualityValue() == 0) {
+				continue; // q=0 means not acceptable.
+			}
+			
+			if (type.equalsTypeAndSubtype(DwpMsStreamedResults.NDJSON)) {
+				return true;
+			}
+			
+			if (type.includes(MediaType.APPLICATION_JSON)) {
+				return false; // Json (or anything) is wanted at least as much, so keep the normal response.
+			}
+		}
+		
+		return false;
+	}
+	
+	public boolean useGzip(String acceptEncoding) { // True if gzip is turned on and the requester accepts it.
+		if (!gzipEnabled || StringUtils.isEmpty(acceptEncoding)) {
+			return false;
+		}
+		
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			
+			if (parts[0].trim().equalsIgnoreCase("gzip") || parts[0].trim().equals("*")) {
+				return !(parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")); // q=0 means not acceptable.
+			}
+		}
+		
+		return false;
+	}
+	
+	public ResponseEntity<byte[]> getResponse(HttpHeaders headers, DwpMsMaterializedResponse response, boolean gzip) { // Json response, gzipped if the requester accepts it and the body is big enough to be worth it.
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		
+		if (gzip && response.getBody().length >= gzipMinBytes) {
+			headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+			
+			return new ResponseEntity<byte[]>(response.getGzipBody(), headers, HttpStatus.OK); // Compressed once per materialized response, so the default response is only compressed when the users change.
+		}
+		
+		return new ResponseEntity<byte[]>(response.getBody(), headers, HttpStatus.OK);
+	}
+	
+	public DwpMsUserGridIndex getIndex(List<APIUsersResponse> users) { // Gets the grid index for the users list, reusing the current index if it was built from the same snapshot.
+		if (!(users instanceof DwpMsUsersSnapshot)) {
+			return new DwpMsUserGridIndex(0, users); // Not a versioned snapshot so there is nothing to reuse the index against.
+		}
+		
+		DwpMsUsersSnapshot snapshot = (DwpMsUsersSnapshot) users;
+		DwpMsUserGridIndex index = currentIndex.get();
+		
+		if (index == null || index.getVersion() != snapshot.getVersion()) {
+			index = DwpMsUserGridIndex.update(index, snapshot); // Snapshot has changed, apply its changes to a copy of the index (or build a new one) and swap it in. Requests using the old index carry on unaffected.
+			currentIndex.set(index);
+		}
+		
+		return index;
+	}
+	
+	@EventListener
+	public void onUsersSnapshot(DwpMsUsersSnapshotEvent event) { // Builds the index for a new snapshot as soon as it is published, rather than on the next request, ranks its users by id, and drops city distances measured against older snapshots.
+		getIndex(event.getSnapshot());
+		currentIdOrder.set(new DwpMsIdOrder(event.getSnapshot()));
+		cityDistanceCache.invalidateBefore(event.getSnapshot().getVersion());
+	}
+	
+	public String getEtag(String city, int radius, APILocationResponse location, List<APIUsersResponse> searchUsers, List<APIUsersResponse> radiusUsers, DwpMsPage page, boolean gzip) { // Strong ETag for a radius response, or null if the users are not a versioned snapshot.
+		if (!(radiusUsers instanceof DwpMsUsersSnapshot)) {
+			return null;
+		}
+		
+		// The snapshot fingerprint covers the users list. It is a hash of the users rather than the version, which starts again on a restart and differs between instances.
+		// The rest of the response comes from the query, the geocode and the (small) search results, so they are hashed too, with a hash wide enough that different responses won't share a tag.
+		StringBuilder query = new StringBuilder()
+				.append(StringUtils.capitalize(city)).append('\n')
+				.append(radius).append('\n')
+				.append(location.getLat()).append('\n')
+				.append(location.getLon()).append('\n')
+				.append(page).append('\n');
+		
+		for (APIUsersResponse u : searchUsers) {
+			query.append(u.getId()).append('\t').append(u.getFirst_name()).append('\t').append(u.getLast_name()).append('\t').append(u.getEmail()).append('\t')
+					.append(u.getIp_address()).append('\t').append(u.getLatitude()).append('\t').append(u.getLongitude()).append('\n');
+		}
+		
+		return "\"" + String.format("%016x", ((DwpMsUsersSnapshot) radiusUsers).getFingerprint()) + "-" + sha256(query.toString(), 12) + (gzip ? "-gzip" : "") + "\""; // Gzipped bodies are different bytes, so they need their own strong tag.
+	}
+	
+	private static String sha256(String value, int bytes) { // Hex of the first bytes of the value's SHA-256.
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			
+			return String.format("%0" + (bytes * 2) + "x", new BigInteger(1, Arrays.copyOf(digest, bytes)));
+			
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // Every JVM has SHA-256.
+		}
+	}
+	
+	public boolean isNotModified(String ifNoneMatch, String etag) { // True if the requester already has this response. If-None-Match uses the weak comparison, so W/ prefixes are ignored.
+		if (etag == null || StringUtils.isEmpty(ifNoneMatch)) {
+			return false;
+		}
+		
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			
+			if (tag.equals("*") || tag.equals(etag) || (tag.startsWith("W/") && tag.substring(2).equals(etag))) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	public HttpHeaders setResponseHeaders(String xCorrelationId, String etag, List<APIUsersResponse> radiusUsers) { // Response headers plus the ETag and how long the response can be cached for, which is until the next users snapshot refresh is due.
+		HttpHeaders headers = setResponseHeaders(xCorrelationId);
+		
+		headers.setVary(gzipEnabled ? Arrays.asList(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING) : Arrays.asList(HttpHeaders.ACCEPT)); // The body and ETag depend on these request headers, so caches must key on them.
+		
+		if (etag != null) {
+			long maxAge = Math.max(0, usersRefreshMs - ((DwpMsUsersSnapshot) radiusUsers).getAge());
+			
+			headers.setETag(etag);
+			headers.setCacheControl(CacheControl.maxAge(maxAge / 1000, TimeUnit.SECONDS));
+		}
+		
+		return headers;
+	}
+	
 	public String checkRequestId(String xCorrelationId) { // Checks if there is a request id passed by the requester & generates one if not.
 		if (!StringUtils.isEmpty(xCorrelationId)) {
 			return xCorrelationId; // If exists, just return the requesters id.
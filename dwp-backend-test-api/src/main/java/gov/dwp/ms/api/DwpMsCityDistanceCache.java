@@ -0,0 +1,63 @@
+package gov.dwp.ms.api;
+
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class DwpMsCityDistanceCache { // Distance sorted users for recently searched locations, so repeat searches near the same city do no distance work at all.
+
+	private final Cache<String, CompletableFuture<DwpMsCityDistances>> cache;
+	private final Cache<String, AtomicInteger> hits; // Searches per location not measured yet, so a location searched once or twice never pays for measuring.
+	private final int minHits;
+	private final Executor executor;
+
+	public DwpMsCityDistanceCache(long maxSize, int minHits, Executor executor) {
+		this.cache = Caffeine.newBuilder()
+				.maximumSize(maxSize) // Each entry holds every user within 100 miles of a city, so only the most searched cities are kept.
+				.recordStats()
+				.build();
+		this.hits = Caffeine.newBuilder()
+				.maximumSize(maxSize * 10) // Just a counter per location, so many more can be tracked than measured. One off locations are the first to go.
+				.build();
+		this.minHits = minHits;
+		this.executor = executor;
+	}
+
+	public DwpMsCityDistances get(DwpMsUserGridIndex index, DwpMsDistanceEngine distanceEngine, double lat, double lon) { // Returns the distances for the location, or null while they are being measured in the background.
+		// Keyed by the geocoded co-ords, so a city whose geocode changes gets a new entry. Entries for an older users snapshot are measured again.
+		// Measuring every user within 100 miles takes much longer than one radius search, so it never holds up a request. Callers search the index as normal until it is ready.
+		String key = lat + "," + lon;
+
+		if (cache.getIfPresent(key) == null && hits.get(key, k -> new AtomicInteger()).incrementAndGet() < minHits) {
+			return null; // Not searched often enough yet to be worth measuring.
+		}
+
+		hits.invalidate(key);
+
+		CompletableFuture<DwpMsCityDistances> distances = cache.asMap().compute(key, (k, existing) -> {
+			if (existing != null && (!existing.isDone() || (!existing.isCompletedExceptionally() && existing.join().getVersion() >= index.getVersion()))) { // Already measuring, or measured for this (or a newer) snapshot.
+				return existing;
+			}
+
+			return CompletableFuture.supplyAsync(() -> DwpMsCityDistances.compute(index, distanceEngine, lat, lon), executor);
+		});
+
+		if (!distances.isDone() || distances.isCompletedExceptionally() || distances.join().getVersion() != index.getVersion()) {
+			return null; // Not ready, failed, or the request started on a different snapshot.
+		}
+
+		return distances.join();
+	}
+
+	public void invalidateBefore(long version) { // Drops entries for older snapshots, so they don't keep old users in memory.
+		cache.asMap().values().removeIf(distances -> distances.isDone() && !distances.isCompletedExceptionally() && distances.join().getVersion() < version);
+	}
+
+	public Cache<String, CompletableFuture<DwpMsCityDistances>> getCache() {
+		return cache;
+	}
+}
@@ -0,0 +1,101 @@
+package gov.dwp.ms.api;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import java.util.Arrays;
+
+
+public class DwpMsCityDistances { // Every user within the max radius of a location, sorted by distance, so a search at any radius up to the max is a prefix of the list.
+
+	public static final int MAX_RADIUS = 100; // Same as the @Max on the radius path variable.
+
+	private final DwpMsUserGridIndex index;
+	private final int[] entries; // Index entries, nearest first.
+	private final double[] miles; // Distance of each entry, in the same order.
+
+	private DwpMsCityDistances(DwpMsUserGridIndex index, int[] entries, double[] miles) {
+		this.index = index;
+		this.entries = entries;
+		this.miles = miles;
+	}
+
+	public static DwpMsCityDistances compute(DwpMsUserGridIndex index, DwpMsDistanceEngine distanceEngine, double lat, double lon) { // Measures every user near the location once, using the same distance the radius check compares.
+		DwpMsSearchArea area = new DwpMsSearchArea(lat, lon, MAX_RADIUS);
+		int[] count = {0};
+
+		index.forEachCandidate(area, entry -> count[0]++); // Cheap first pass, so the arrays can be sized up front.
+
+		int[] found = new int[count[0]];
+		double[] foundMiles = new double[count[0]];
+		count[0] = 0;
+
+		index.forEachCandidate(area, entry -> {
+			double entryLat = index.getLatitude(entry);
+			double entryLon = index.getLongitude(entry);
+
+			if (area.contains(entryLat, entryLon)) {
+				double distance = distanceEngine.distanceMiles(area.getLat(), area.getLon(), entryLat, entryLon);
+
+				if (distance <= MAX_RADIUS) {
+					found[count[0]] = entry;
+					foundMiles[count[0]++] = distance;
+				}
+			}
+		});
+
+		Integer[] order = new Integer[count[0]];
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, (a, b) -> Double.compare(foundMiles[a], foundMiles[b]));
+
+		int[] entries = new int[order.length];
+		double[] miles = new double[order.length];
+
+		for (int i = 0; i < order.length; i++) {
+			entries[i] = found[order[i]];
+			miles[i] = foundMiles[order[i]];
+		}
+
+		return new DwpMsCityDistances(index, entries, miles);
+	}
+
+	public long getVersion() { // Version of the users snapshot the distances were measured against.
+		return index.getVersion();
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	public int countWithin(double radius) { // Number of users within the radius, i.e. the length of the prefix. Binary search for the first distance over the radius.
+		int low = 0;
+		int high = miles.length;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (miles[mid] <= radius) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	public APIUsersResponse getUser(int nearest) { // Creates the user at this position in the list, 0 being the nearest.
+		return index.getUser(entries[nearest]);
+	}
+
+	public int getPosition(int nearest) { // Position in the users snapshot of the user at this position in the list.
+		return index.getPosition(entries[nearest]);
+	}
+
+	public double getMiles(int nearest) {
+		return miles[nearest];
+	}
+}
@@ -0,0 +1,73 @@
+package gov.dwp.ms.api;
+
+
+import net.sf.geographiclib.Geodesic;
+import net.sf.geographiclib.GeodesicMask;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+
+@Component
+public class DwpMsDistanceEngine { // Decides if a user is within the radius using the cheapest check that gives a certain answer, only running the exact WGS84 solve near the radius boundary.
+
+	private static final double MEAN_EARTH_RADIUS_METERS = 6371008.8;
+	private static final double SPHERE_ERROR_MARGIN = 0.01; // Spherical distances are within about 0.6% of WGS84 geodesic distances, so 1% is a safe margin either side of the radius.
+
+	@Value("${distance.mode:exact}")
+	private String distanceMode;
+
+	public DwpMsDistanceEngine() {
+	}
+
+	public DwpMsDistanceEngine(String distanceMode) {
+		this.distanceMode = distanceMode;
+	}
+
+	public boolean isWithinRadius(DwpMsSearchArea area, double lat, double lon) {
+		if (!area.contains(lat, lon)) { // Tier 1, outside the lat/lon bounding box.
+			return false;
+		}
+
+		double sphereMeters = sphereDistance(area.getLat(), area.getLon(), lat, lon); // Tier 2, great circle distance on a sphere.
+
+		if (isFastMode()) {
+			return sphereMeters <= area.getRadiusMeters(); // Callers have accepted spherical accuracy so skip the exact solve.
+		}
+
+		if (sphereMeters * (1 + SPHERE_ERROR_MARGIN) <= area.getRadiusMeters()) {
+			return true; // Clearly inside even with the worst case error.
+		}
+
+		if (sphereMeters * (1 - SPHERE_ERROR_MARGIN) > area.getRadiusMeters()) {
+			return false; // Clearly outside even with the worst case error.
+		}
+
+		return exactDistance(area.getLat(), area.getLon(), lat, lon) / DwpMsSearchArea.METERS_PER_MILE <= area.getRadiusMiles(); // Tier 3, close to the boundary so use the exact solve, compared in miles as before.
+	}
+
+	public double distanceMiles(double lat1, double lon1, double lat2, double lon2) { // The distance isWithinRadius compares against the radius, i.e. spherical in fast mode and exact WGS84 otherwise.
+		if (isFastMode()) {
+			return sphereDistance(lat1, lon1, lat2, lon2) / DwpMsSearchArea.METERS_PER_MILE;
+		}
+
+		return exactDistance(lat1, lon1, lat2, lon2) / DwpMsSearchArea.METERS_PER_MILE;
+	}
+
+	public boolean isFastMode() {
+		return "fast".equalsIgnoreCase(distanceMode);
+	}
+
+	public static double exactDistance(double lat1, double lon1, double lat2, double lon2) { // WGS84 geodesic distance in meters. Only the distance is requested so the azimuths are not calculated.
+		return Geodesic.WGS84.Inverse(lat1, lon1, lat2, lon2, GeodesicMask.DISTANCE).s12;
+	}
+
+	public static double sphereDistance(double lat1, double lon1, double lat2, double lon2) { // Haversine distance in meters on a sphere with the mean earth radius.
+		double phi1 = Math.toRadians(lat1);
+		double phi2 = Math.toRadians(lat2);
+		double sinHalfLat = Math.sin((phi2 - phi1) / 2);
+		double sinHalfLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+		double h = sinHalfLat * sinHalfLat + Math.cos(phi1) * Math.cos(phi2) * sinHalfLon * sinHalfLon;
+
+		return 2 * MEAN_EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+}
@@ -0,0 +1,49 @@
+package gov.dwp.ms.api;
+
+
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import java.util.Arrays;
+
+
+public class DwpMsIdOrder { // A snapshot's users ranked by id, worked out once per snapshot. Results can then be put in id order by setting their ranks in a bitmap and reading it back, rather than sorting them.
+
+	private final long version;
+	private final int[] positions; // Snapshot position of the user at each rank.
+	private final int[] ranks; // Rank of the user at each snapshot position.
+
+	public DwpMsIdOrder(DwpMsUsersSnapshot users) {
+		int size = users.size();
+		long[] keys = new long[size];
+
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long) users.getId(i) << 32) | i; // Pack the id and position together so a primitive sort orders the users by id.
+		}
+
+		Arrays.sort(keys);
+
+		this.version = users.getVersion();
+		this.positions = new int[size];
+		this.ranks = new int[size];
+
+		for (int rank = 0; rank < size; rank++) {
+			positions[rank] = (int) keys[rank];
+			ranks[positions[rank]] = rank;
+		}
+	}
+
+	public boolean isFor(DwpMsUsersSnapshot users) { // True if the ranks are for this snapshot, so positions line up.
+		return users.getVersion() == version && users.size() == ranks.length;
+	}
+
+	public int size() {
+		return ranks.length;
+	}
+
+	public int getRank(int position) {
+		return ranks[position];
+	}
+
+	public int getPosition(int rank) {
+		return positions[rank];
+	}
+}
@@ -0,0 +1,89 @@
+package gov.dwp.ms.api;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+
+
+public class DwpMsMaterializedResponse { // Response body for a fixed query, serialised once and served as is until the users data it was built from changes.
+
+	private final long version; // Users snapshot version.
+	private final List<APIUsersResponse> searchUsers; // City search results. The cityUsers cache hands back the same list until it expires, but the WebClient service makes a new list each call, so lists are compared by content.
+	private final byte[] body; // Serialised json, or null if there were no results.
+	private volatile byte[] gzipBody; // Gzipped body, made the first time a requester accepts gzip.
+
+	public DwpMsMaterializedResponse(long version, List<APIUsersResponse> searchUsers, byte[] body) {
+		this.version = version;
+		this.searchUsers = searchUsers;
+		this.body = body;
+	}
+
+	public boolean isFor(List<APIUsersResponse> searchUsers, List<APIUsersResponse> users) { // True if built from this exact users data, so it can be served without processing the results again.
+		return users instanceof DwpMsUsersSnapshot && ((DwpMsUsersSnapshot) users).getVersion() == version && sameUsers(searchUsers, this.searchUsers);
+	}
+
+	private static boolean sameUsers(List<APIUsersResponse> a, List<APIUsersResponse> b) { // Search results are small, so comparing them is far cheaper than processing the results again.
+		if (a == b) {
+			return true; // Same cached list.
+		}
+
+		if (a == null || b == null || a.size() != b.size()) {
+			return false;
+		}
+
+		for (int i = 0; i < a.size(); i++) {
+			APIUsersResponse x = a.get(i);
+			APIUsersResponse y = b.get(i);
+
+			if (x.getId() != y.getId() || Double.compare(x.getLatitude(), y.getLatitude()) != 0 || Double.compare(x.getLongitude(), y.getLongitude()) != 0
+					|| !Objects.equals(x.getFirst_name(), y.getFirst_name()) || !Objects.equals(x.getLast_name(), y.getLast_name())
+					|| !Objects.equals(x.getEmail(), y.getEmail()) || !Objects.equals(x.getIp_address(), y.getIp_address())) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public byte[] getBody() { // Shared between requests, so must never be modified.
+		return body;
+	}
+
+	public byte[] getGzipBody() { // Shared between requests like the body. Two requests may both compress it, which is harmless as the bytes are the same.
+		byte[] gzipBody = this.gzipBody;
+
+		if (gzipBody == null) {
+			gzipBody = gzip(body);
+			this.gzipBody = gzipBody;
+		}
+
+		return gzipBody;
+	}
+
+	public boolean hasResults() {
+		return body != null;
+	}
+
+	private static byte[] gzip(byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 32); // Json users compress to well under a quarter.
+
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+			gzip.write(body);
+
+		} catch(IOException e) {
+			throw new UncheckedIOException(e); // Shouldn't get here, it is all in memory.
+		}
+
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,37 @@
+package gov.dwp.ms.api;
+
+
+import java.io.IOException;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+
+public class DwpMsNdjsonMessageConverter extends AbstractHttpMessageConverter<DwpMsStreamedResults> { // Writes streamed results straight to the response. No content length is set, so Tomcat sends the body chunked as its buffer fills.
+
+	public DwpMsNdjsonMessageConverter() {
+		super(DwpMsStreamedResults.NDJSON);
+	}
+
+	@Override
+	protected boolean supports(Class<?> clazz) {
+		return DwpMsStreamedResults.class.isAssignableFrom(clazz);
+	}
+
+	@Override
+	protected boolean canRead(MediaType mediaType) {
+		return false; // Only ever a response body.
+	}
+
+	@Override
+	protected DwpMsStreamedResults readInternal(Class<? extends DwpMsStreamedResults> clazz, HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
+		throw new HttpMessageNotReadableException("Streamed results can't be read", inputMessage);
+	}
+
+	@Override
+	protected void writeInternal(DwpMsStreamedResults results, HttpOutputMessage outputMessage) throws IOException {
+		results.writeTo(outputMessage.getBody());
+	}
+}
@@ -0,0 +1,181 @@
+package gov.dwp.ms.api;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+
+
+public class DwpMsNearestUsers { // The k users nearest a location, nearest first. Found with a best-first search over the grid index cells, so only cells that could hold one of the k are looked at.
+
+	private static final double EARTH_RADIUS_MILES = 3958.8;
+	private static final double MIN_MILES_PER_DEGREE = 110574 / DwpMsSearchArea.METERS_PER_MILE; // Shortest length of a degree of latitude, as used for the search area.
+	private static final double BOUND_MARGIN = 0.99; // Cell bounds use a sphere, so shrink them to stay under the WGS84 distance.
+
+	private final DwpMsUserGridIndex index;
+	private final int[] entries; // Index entries, nearest first.
+	private final double[] miles; // Distance of each entry, in the same order.
+
+	private DwpMsNearestUsers(DwpMsUserGridIndex index, int[] entries, double[] miles) {
+		this.index = index;
+		this.entries = entries;
+		this.miles = miles;
+	}
+
+	public static DwpMsNearestUsers find(DwpMsUserGridIndex index, DwpMsDistanceEngine distanceEngine, double lat, double lon, int k) {
+		// Bounded max heap of the k nearest found so far, so the furthest of them is always at the top.
+		int[] heapEntries = new int[k];
+		double[] heapMiles = new double[k];
+		int[] size = {0};
+
+		// Cells to look at, closest possible distance first. Each is packed as its lower bound (as float bits, which order the same as the floats when positive) and its cell key.
+		PriorityQueue<Long> cells = new PriorityQueue<Long>();
+		BitSet queued = new BitSet(DwpMsUserGridIndex.ROWS * DwpMsUserGridIndex.COLUMNS);
+		int startKey = DwpMsUserGridIndex.cellKey(lat, lon);
+
+		cells.add(cellEntry(0, startKey));
+		queued.set(startKey);
+
+		while (!cells.isEmpty()) {
+			long cell = cells.poll();
+			double bound = Float.intBitsToFloat((int) (cell >>> 32));
+
+			if (size[0] == k && bound > heapMiles[0]) {
+				break; // No user in this cell, or any cell still to come, can be nearer than the k already found.
+			}
+
+			int key = (int) cell;
+			int row = key / DwpMsUserGridIndex.COLUMNS;
+			int column = key % DwpMsUserGridIndex.COLUMNS;
+
+			index.forEachInCell(row, column, entry -> {
+				if (size[0] == k && !distanceEngine.isFastMode()
+						&& DwpMsDistanceEngine.sphereDistance(lat, lon, index.getLatitude(entry), index.getLongitude(entry)) / DwpMsSearchArea.METERS_PER_MILE * BOUND_MARGIN >= heapMiles[0]) {
+					return; // Can't be nearer than the furthest kept, found without the (much slower) exact distance.
+				}
+
+				double distance = distanceEngine.distanceMiles(lat, lon, index.getLatitude(entry), index.getLongitude(entry));
+
+				if (size[0] < k) {
+					heapEntries[size[0]] = entry;
+					heapMiles[size[0]] = distance;
+					siftUp(heapEntries, heapMiles, size[0]++);
+				} else if (distance < heapMiles[0]) { // Nearer than the furthest kept, so it replaces it.
+					heapEntries[0] = entry;
+					heapMiles[0] = distance;
+					siftDown(heapEntries, heapMiles, 0, k);
+				}
+			});
+
+			for (int dRow = -1; dRow <= 1; dRow++) { // Queue the neighbouring cells. Bounds only shrink towards the start cell, so every cell is reached before it could be needed.
+				int nextRow = row + dRow;
+
+				if (nextRow < 0 || nextRow >= DwpMsUserGridIndex.ROWS) {
+					continue;
+				}
+
+				for (int dColumn = -1; dColumn <= 1; dColumn++) {
+					int nextColumn = (column + dColumn + DwpMsUserGridIndex.COLUMNS) % DwpMsUserGridIndex.COLUMNS; // Columns wrap round at the antimeridian.
+					int nextKey = nextRow * DwpMsUserGridIndex.COLUMNS + nextColumn;
+
+					if (!queued.get(nextKey)) {
+						queued.set(nextKey);
+						cells.add(cellEntry(lowerBound(lat, lon, nextRow, nextColumn), nextKey));
+					}
+				}
+			}
+		}
+
+		Integer[] order = new Integer[size[0]];
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, (a, b) -> heapMiles[a] != heapMiles[b] ? Double.compare(heapMiles[a], heapMiles[b]) : Integer.compare(index.getUsers().getId(index.getPosition(heapEntries[a])), index.getUsers().getId(index.getPosition(heapEntries[b])))); // Nearest first, then by id, so equal distances always come out the same way.
+
+		int[] entries = new int[order.length];
+		double[] miles = new double[order.length];
+
+		for (int i = 0; i < order.length; i++) {
+			entries[i] = heapEntries[order[i]];
+			miles[i] = heapMiles[order[i]];
+		}
+
+		return new DwpMsNearestUsers(index, entries, miles);
+	}
+
+	static double lowerBound(double lat, double lon, int row, int column) { // Distance in miles that every point in the cell is at least from the location.
+		double minLat = row * DwpMsUserGridIndex.CELL_DEGREES - 90;
+		double maxLat = minLat + DwpMsUserGridIndex.CELL_DEGREES;
+		double minLon = column * DwpMsUserGridIndex.CELL_DEGREES - 180;
+
+		double latGap = Math.max(0, Math.max(minLat - lat, lat - maxLat));
+
+		double lonOffset = ((DwpMsSearchArea.normaliseLongitude(lon) - minLon) % 360 + 360) % 360; // How far east of the cell's west edge the location is.
+		double lonGap = lonOffset <= DwpMsUserGridIndex.CELL_DEGREES ? 0 : Math.min(lonOffset - DwpMsUserGridIndex.CELL_DEGREES, 360 - lonOffset);
+
+		// Two points a longitude gap apart are closest when both are as near a pole as they can be, i.e. at the highest latitude of the location and cell.
+		double maxAbsLat = Math.min(90, Math.max(Math.abs(lat), Math.max(Math.abs(minLat), Math.abs(maxLat))));
+		double lonMiles = 2 * EARTH_RADIUS_MILES * Math.asin(Math.cos(Math.toRadians(maxAbsLat)) * Math.sin(Math.toRadians(lonGap) / 2));
+
+		return Math.max(latGap * MIN_MILES_PER_DEGREE, lonMiles * BOUND_MARGIN);
+	}
+
+	private static long cellEntry(double bound, int key) {
+		return ((long) Float.floatToIntBits((float) (bound * BOUND_MARGIN)) << 32) | key; // Shrunk again so rounding to a float can't push the bound over the true distance.
+	}
+
+	private static void siftUp(int[] entries, double[] miles, int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+
+			if (miles[parent] >= miles[i]) {
+				return;
+			}
+
+			swap(entries, miles, i, parent);
+			i = parent;
+		}
+	}
+
+	private static void siftDown(int[] entries, double[] miles, int i, int size) {
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+
+			if (child + 1 < size && miles[child + 1] > miles[child]) {
+				child++;
+			}
+
+			if (miles[i] >= miles[child]) {
+				return;
+			}
+
+			swap(entries, miles, i, child);
+			i = child;
+		}
+	}
+
+	private static void swap(int[] entries, double[] miles, int i, int j) {
+		int entry = entries[i];
+		entries[i] = entries[j];
+		entries[j] = entry;
+
+		double distance = miles[i];
+		miles[i] = miles[j];
+		miles[j] = distance;
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	public APIUsersResponse getUser(int nearest) { // Creates the user at this position in the list, 0 being the nearest.
+		return index.getUser(entries[nearest]);
+	}
+
+	public double getMiles(int nearest) {
+		return miles[nearest];
+	}
+}
@@ -0,0 +1,97 @@
+package gov.dwp.ms.api;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StringUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+
+public class DwpMsPage { // Page of a radius response: at most limit users, with ids after the cursor's. Results are in id order, so the last id on a page is where the next one starts.
+
+	public static final DwpMsPage ALL = new DwpMsPage(0, false, 0, 0); // Every result, as before paging was added.
+	public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+	private final int limit; // 0 for no limit.
+	private final boolean hasCursor;
+	private final long fingerprint; // Fingerprint of the users snapshot the cursor was made from, 0 if the users were not a snapshot.
+	private final int afterId;
+
+	private DwpMsPage(int limit, boolean hasCursor, long fingerprint, int afterId) {
+		this.limit = limit;
+		this.hasCursor = hasCursor;
+		this.fingerprint = fingerprint;
+		this.afterId = afterId;
+	}
+
+	public static DwpMsPage of(Integer limit, String cursor) { // Page from the limit and cursor request params, either of which can be missing.
+		if (limit == null && StringUtils.isEmpty(cursor)) {
+			return ALL;
+		}
+
+		if (StringUtils.isEmpty(cursor)) {
+			return new DwpMsPage(limit, false, 0, 0);
+		}
+
+		try {
+			String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+
+			return new DwpMsPage(limit == null ? 0 : limit, true, Long.parseUnsignedLong(parts[0], 16), Integer.parseInt(parts[1]));
+
+		} catch(IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor."); // Not one of ours, so there is no page to carry on from.
+		}
+	}
+
+	public static String cursor(List<APIUsersResponse> users, int lastId) { // Opaque cursor for the page after lastId, tied to the users data so every page comes from the same users. The fingerprint rather than the version, so the cursor still works after a restart or on another instance.
+		return Base64.getUrlEncoder().withoutPadding().encodeToString((Long.toHexString(fingerprint(users)) + ":" + lastId).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void checkVersion(List<APIUsersResponse> users) { // Cursors can't carry on over different users data, as users may have been added or removed before the cursor.
+		if (hasCursor && fingerprint != fingerprint(users)) {
+			throw new ResponseStatusException(HttpStatus.GONE, "Cursor is for an older users list, start again from the first page.");
+		}
+	}
+
+	public boolean isAll() {
+		return limit == 0 && !hasCursor;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public boolean includes(int id) { // True if the user is after the cursor.
+		return !hasCursor || id > afterId;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof DwpMsPage)) {
+			return false;
+		}
+
+		DwpMsPage page = (DwpMsPage) o;
+
+		return limit == page.limit && hasCursor == page.hasCursor && fingerprint == page.fingerprint && afterId == page.afterId;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(limit, hasCursor, fingerprint, afterId);
+	}
+
+	@Override
+	public String toString() { // Everything that picks the page, used in ETags.
+		return limit + ":" + hasCursor + ":" + Long.toHexString(fingerprint) + ":" + afterId;
+	}
+
+	private static long fingerprint(List<APIUsersResponse> users) {
+		return users instanceof DwpMsUsersSnapshot ? ((DwpMsUsersSnapshot) users).getFingerprint() : 0;
+	}
+}
@@ -3,24 +3,40 @@ package gov.dwp.ms.api;
 
 import gov.dwp.ms.model.APIUsersResponse;
 import gov.dwp.ms.model.APILocationResponse;
+import gov.dwp.ms.model.APINearestUserResponse;
+import gov.dwp.ms.model.APIRadiusQuery;
+import gov.dwp.ms.model.APIRadiusQueryResponse;
 import gov.dwp.ms.service.DwpMsService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.Size;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 
@@ -35,6 +51,10 @@ public class DwpMsRestApi {
     @Autowired
     DwpMsApiHelper dwpApiHelper;
     
+    @Autowired
+    @Qualifier("dwpTaskExec")
+    Executor dwpTaskExec;
+    
     @Value("${default.latitutude}")
     private String defaultLatitude;
     
@@ -48,64 +68,255 @@ public class DwpMsRestApi {
     
     @GetMapping(
 	        value = "/",
-	        produces = {MediaType.APPLICATION_JSON_VALUE, "application/json"}
+	        produces = {MediaType.APPLICATION_JSON_VALUE, "application/json", DwpMsStreamedResults.NDJSON_VALUE}
     )
-    public ResponseEntity<?> londonFiftyMileRadius( // GET mapping for default call with no parameters. Will return users within 50 miles of London.
-    		@RequestHeader(value = "X-Correlation-Id", required = false) String xCorrelationId
+    public CompletableFuture<ResponseEntity<?>> londonFiftyMileRadius( // GET mapping for default call with no parameters. Will return users within 50 miles of London.
+    		@RequestHeader(value = "X-Correlation-Id", required = false) String xCorrelationId,
+    		@RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+    		@RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding,
+    		@RequestHeader(value = "Accept", required = false) String accept,
+    		@RequestParam(value = "limit", required = false) @Min(1) @Max(10000) Integer limit, // Max users per page.
+    		@RequestParam(value = "cursor", required = false) @Size(max = 100) String cursor // X-Next-Cursor from the previous page.
     ) throws Exception {
-    	xCorrelationId = dwpApiHelper.checkRequestId(xCorrelationId); // Check to see if request id was provided and generate one if not.
-    	dwpMsService.setRequestId(xCorrelationId); // Set the request id on the service so we can use it later.
+    	String requestId = dwpApiHelper.checkRequestId(xCorrelationId); // Check to see if request id was provided and generate one if not.
+    	dwpMsService.setRequestId(requestId); // Set the request id on the service so we can use it later.
     	
-    	log.info(xCorrelationId + ": Starting londonFiftyMileRadius request");
+    	log.info(requestId + ": Starting londonFiftyMileRadius request");
+    	
+    	DwpMsPage page = DwpMsPage.of(limit, cursor); // Check the cursor before making any calls.
         
         CompletableFuture<List<APIUsersResponse>> execSearch = dwpMsService.getSearchResults("London"); // Start futures for api calls. 
         CompletableFuture<List<APIUsersResponse>> execUsers = dwpMsService.getUsersResults();   
-        CompletableFuture.allOf(execSearch, execUsers).join(); // Wait for the futures to finish.
          
         APILocationResponse location = new APILocationResponse();
         location.setLat(defaultLatitude);
         location.setLon(defaultLongitude);
         
-        List<APIUsersResponse> response = dwpApiHelper.processResults(
-        		defaultRadius,
-        		location,
-        		execSearch.get(),
-        		execUsers.get()
-		); // Process the future results to provide a filtered response based on default values.
+        return execSearch.thenCombineAsync(execUsers, (searchUsers, users) -> { // Process the results once both futures finish, without blocking the request thread while waiting.
+        	if (dwpApiHelper.useNdjson(accept)) {
+        		log.info(requestId + ": Ending londonFiftyMileRadius request, streaming results");
+        		
+        		return dwpApiHelper.streamResults(requestId, defaultRadius, location, searchUsers, users, page, true); // Streamed from the index rather than the materialized json array.
+        	}
+        	
+        	boolean gzip = dwpApiHelper.useGzip(acceptEncoding);
+        	String etag = dwpApiHelper.getEtag("London", defaultRadius, location, searchUsers, users, page, gzip);
+        	HttpHeaders headers = dwpApiHelper.setResponseHeaders(requestId, etag, users);
+        	
+        	if (dwpApiHelper.isNotModified(ifNoneMatch, etag)) {
+        		log.info(requestId + ": Ending londonFiftyMileRadius request, not modified");
+        		
+        		return new ResponseEntity<byte[]>(headers, HttpStatus.NOT_MODIFIED); // The requester already has this response, so skip the processing and the body.
+        	}
+        	
+        	if (!page.isAll()) {
+        		byte[] response = dwpApiHelper.writeResults(defaultRadius, location, searchUsers, users, page, true, headers); // Pages are not materialized, only the full default response is.
+        		
+        		log.info(requestId + ": Ending londonFiftyMileRadius request");
+        		
+        		return dwpApiHelper.getResponse(headers, new DwpMsMaterializedResponse(0, null, response), gzip);
+        	}
+        	
+        	DwpMsMaterializedResponse response = dwpApiHelper.getDefaultResponse(
+            		defaultRadius,
+            		location,
+            		searchUsers,
+            		users
+    		); // The inputs are fixed, so the filtered response is only processed and serialised again when the users data changes.
+            
+            log.info(requestId + ": Ending londonFiftyMileRadius request");
+            
+            return dwpApiHelper.getResponse(headers, response, gzip); // Served gzipped from the cached compressed copy when the requester accepts it.
+        }, dwpTaskExec); // Run the processing on the task executor rather than whichever thread completed the last future (e.g. a WebClient event loop).
+    }
+    
+    @GetMapping(
+	        value = "city/{city}/radius/{radius}/users",
+	        produces = {MediaType.APPLICATION_JSON_VALUE, "application/json", DwpMsStreamedResults.NDJSON_VALUE}
+    )
+    public CompletableFuture<ResponseEntity<?>> locationByRadius( // GET mapping for with city and radius parameters passed.  
+			@RequestHeader(value = "X-Correlation-Id", required = false) String xCorrelationId,
+			@PathVariable(value = "city", required = true) @Size(max = 50) String city, // 50 char limit for city name.
+			@PathVariable(value = "radius", required = true) @Min(1) @Max(100) int radius, // Min 1 mile and max 100.
+			@RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+			@RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding,
+			@RequestHeader(value = "Accept", required = false) String accept,
+			@RequestParam(value = "limit", required = false) @Min(1) @Max(10000) Integer limit,
+			@RequestParam(value = "cursor", required = false) @Size(max = 100) String cursor
+    ) throws Exception {
+    	String requestId = dwpApiHelper.checkRequestId(xCorrelationId); 
+    	dwpMsService.setRequestId(requestId); 
+    	
+        log.info(requestId + ": Starting locationByRadius request");
+        
+        DwpMsPage page = DwpMsPage.of(limit, cursor);
         
-        log.info(xCorrelationId + ": Ending londonFiftyMileRadius request");
+        CompletableFuture<APILocationResponse> execLocation = dwpMsService.getLocationResults(city); 
+        CompletableFuture<List<APIUsersResponse>> execSearch = dwpMsService.getSearchResults(city);
+        CompletableFuture<List<APIUsersResponse>> execUsers = dwpMsService.getUsersResults(); 
         
-        return new ResponseEntity<List<APIUsersResponse>>(response, dwpApiHelper.setResponseHeaders(xCorrelationId), HttpStatus.OK);
+        return CompletableFuture.allOf(execLocation, execSearch, execUsers).thenApplyAsync(done -> { // Errors from any future fail the response with the same status as before.
+        	if (dwpApiHelper.useNdjson(accept)) {
+        		log.info(requestId + ": Ending locationByRadius request, streaming results");
+        		
+        		return dwpApiHelper.streamResults(requestId, radius, execLocation.join(), execSearch.join(), execUsers.join(), page, true); // Users are written to the response one per line as they are read.
+        	}
+        	
+        	boolean gzip = dwpApiHelper.useGzip(acceptEncoding);
+        	String etag = dwpApiHelper.getEtag(city, radius, execLocation.join(), execSearch.join(), execUsers.join(), page, gzip);
+        	HttpHeaders headers = dwpApiHelper.setResponseHeaders(requestId, etag, execUsers.join());
+        	
+        	if (dwpApiHelper.isNotModified(ifNoneMatch, etag)) {
+        		log.info(requestId + ": Ending locationByRadius request, not modified");
+        		
+        		return new ResponseEntity<byte[]>(headers, HttpStatus.NOT_MODIFIED);
+        	}
+        	
+        	byte[] response = dwpApiHelper.writeResults(
+            		radius,
+            		execLocation.join(),
+            		execSearch.join(), 
+            		execUsers.join(),
+            		page,
+            		true,
+            		headers
+    		); // Process the future results to provide a filtered response based on source location and provided radius, written straight to json.
+            
+            log.info(requestId + ": Ending locationByRadius request");
+            
+            return dwpApiHelper.getResponse(headers, new DwpMsMaterializedResponse(0, null, response), gzip);
+        }, dwpTaskExec);
     }
     
     @GetMapping(
-	        value = "city/{city}/radius/{radius}/users",
+	        value = "lat/{lat}/lon/{lon}/radius/{radius}/users",
+	        produces = {MediaType.APPLICATION_JSON_VALUE, "application/json", DwpMsStreamedResults.NDJSON_VALUE}
+    )
+    public CompletableFuture<ResponseEntity<?>> coordinatesByRadius( // GET mapping for callers that already have a lat/lon, so there is no geocode or city search call.
+			@RequestHeader(value = "X-Correlation-Id", required = false) String xCorrelationId,
+			@PathVariable(value = "lat", required = true) @DecimalMin("-90") @DecimalMax("90") double lat,
+			@PathVariable(value = "lon", required = true) @DecimalMin("-180") @DecimalMax("180") double lon,
+			@PathVariable(value = "radius", required = true) @Min(1) @Max(100) int radius, // Min 1 mile and max 100.
+			@RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+			@RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding,
+			@RequestHeader(value = "Accept", required = false) String accept,
+			@RequestParam(value = "limit", required = false) @Min(1) @Max(10000) Integer limit,
+			@RequestParam(value = "cursor", required = false) @Size(max = 100) String cursor
+    ) throws Exception {
+    	String requestId = dwpApiHelper.checkRequestId(xCorrelationId); 
+    	dwpMsService.setRequestId(requestId); 
+    	
+        log.info(requestId + ": Starting coordinatesByRadius request");
+        
+        DwpMsPage page = DwpMsPage.of(limit, cursor);
+        
+        APILocationResponse location = new APILocationResponse(); // Used as given, in place of a geocoded city.
+        location.setLat(String.valueOf(lat));
+        location.setLon(String.valueOf(lon));
+        
+        List<APIUsersResponse> searchUsers = Collections.emptyList(); // No city, so no city search users.
+        
+        CompletableFuture<List<APIUsersResponse>> execUsers = dwpMsService.getUsersResults(); 
+        
+        return execUsers.thenApplyAsync(users -> {
+        	if (dwpApiHelper.useNdjson(accept)) {
+        		log.info(requestId + ": Ending coordinatesByRadius request, streaming results");
+        		
+        		return dwpApiHelper.streamResults(requestId, radius, location, searchUsers, users, page, false); // Not a city, so the city distances cache is left alone.
+        	}
+        	
+        	boolean gzip = dwpApiHelper.useGzip(acceptEncoding);
+        	String etag = dwpApiHelper.getEtag(null, radius, location, searchUsers, users, page, gzip); // The co-ordinates are part of the hash, so no city is needed.
+        	HttpHeaders headers = dwpApiHelper.setResponseHeaders(requestId, etag, users);
+        	
+        	if (dwpApiHelper.isNotModified(ifNoneMatch, etag)) {
+        		log.info(requestId + ": Ending coordinatesByRadius request, not modified");
+        		
+        		return new ResponseEntity<byte[]>(headers, HttpStatus.NOT_MODIFIED);
+        	}
+        	
+        	byte[] response = dwpApiHelper.writeResults(radius, location, searchUsers, users, page, false, headers); // Same filtering as locationByRadius, from the co-ordinates straight away, without the city distances cache.
+            
+            log.info(requestId + ": Ending coordinatesByRadius request");
+            
+            return dwpApiHelper.getResponse(headers, new DwpMsMaterializedResponse(0, null, response), gzip);
+        }, dwpTaskExec);
+    }
+    
+    @GetMapping(
+	        value = "city/{city}/nearest/{k}/users",
 	        produces = {MediaType.APPLICATION_JSON_VALUE, "application/json"}
     )
-    public ResponseEntity<?> locationByRadius( // GET mapping for with city and radius parameters passed.  
+    public CompletableFuture<ResponseEntity<?>> nearestUsers( // GET mapping for the k users nearest a city, nearest first with their distance.
 			@RequestHeader(value = "X-Correlation-Id", required = false) String xCorrelationId,
 			@PathVariable(value = "city", required = true) @Size(max = 50) String city, // 50 char limit for city name.
-			@PathVariable(value = "radius", required = true) @Min(1) @Max(100) int radius // Min 1 mile and max 100.
+			@PathVariable(value = "k", required = true) @Min(1) @Max(1000) int k // Min 1 user and max 1000.
     ) throws Exception {
-    	xCorrelationId = dwpApiHelper.checkRequestId(xCorrelationId); 
-    	dwpMsService.setRequestId(xCorrelationId); 
+    	String requestId = dwpApiHelper.checkRequestId(xCorrelationId); 
+    	dwpMsService.setRequestId(requestId); 
     	
-        log.info(xCorrelationId + ": Starting locationByRadius request");
+        log.info(requestId + ": Starting nearestUsers request");
         
         CompletableFuture<APILocationResponse> execLocation = dwpMsService.getLocationResults(city); 
-        CompletableFuture<List<APIUsersResponse>> execSearch = dwpMsService.getSearchResults(city);
         CompletableFuture<List<APIUsersResponse>> execUsers = dwpMsService.getUsersResults(); 
-        CompletableFuture.allOf(execLocation, execSearch, execUsers).join();
         
-        List<APIUsersResponse> response = dwpApiHelper.processResults(
-        		radius,
-        		execLocation.get(),
-        		execSearch.get(), 
-        		execUsers.get()
-		); // Process the future results to provide a filtered response based on source location and provided radius.
+        return execLocation.thenCombineAsync(execUsers, (location, users) -> {
+        	List<APINearestUserResponse> response = dwpApiHelper.processNearest(k, location, users); // Best-first search over the grid index, so only cells near the city are looked at.
+            
+            log.info(requestId + ": Ending nearestUsers request");
+            
+            return new ResponseEntity<List<APINearestUserResponse>>(response, dwpApiHelper.setResponseHeaders(requestId), HttpStatus.OK);
+        }, dwpTaskExec);
+    }
+    
+    @PostMapping(
+	        value = "batch/radius/users",
+	        consumes = {MediaType.APPLICATION_JSON_VALUE},
+	        produces = {MediaType.APPLICATION_JSON_VALUE, "application/json"}
+    )
+    public CompletableFuture<ResponseEntity<?>> batchLocationByRadius( // POST mapping for many (city, radius) queries at once, each answered as locationByRadius would, in one response.
+			@RequestHeader(value = "X-Correlation-Id", required = false) String xCorrelationId,
+			@RequestBody List<APIRadiusQuery> queries
+    ) throws Exception {
+    	String requestId = dwpApiHelper.checkRequestId(xCorrelationId); 
+    	dwpMsService.setRequestId(requestId); 
+    	
+        log.info(requestId + ": Starting batchLocationByRadius request");
+        
+        dwpApiHelper.checkBatch(queries); // Check every query before making any calls.
+        
+        Map<String, CompletableFuture<APILocationResponse>> execLocations = new HashMap<String, CompletableFuture<APILocationResponse>>(); // One geocode and one city search per distinct city, all started at once.
+        Map<String, CompletableFuture<List<APIUsersResponse>>> execSearches = new HashMap<String, CompletableFuture<List<APIUsersResponse>>>();
         
-        log.info(xCorrelationId + ": Ending locationByRadius request");
+        for (APIRadiusQuery query : queries) {
+        	if (!execLocations.containsKey(query.getCity())) {
+        		execLocations.put(query.getCity(), startQuery(() -> dwpMsService.getLocationResults(query.getCity())));
+        		execSearches.put(query.getCity(), startQuery(() -> dwpMsService.getSearchResults(query.getCity())));
+        	}
+        }
         
-        return new ResponseEntity<List<APIUsersResponse>>(response, dwpApiHelper.setResponseHeaders(xCorrelationId), HttpStatus.OK);
+        CompletableFuture<List<APIUsersResponse>> execUsers = dwpMsService.getUsersResults(); // Users are fetched once for the whole batch.
+        
+        List<CompletableFuture<?>> execCities = new ArrayList<CompletableFuture<?>>(execLocations.values());
+        execCities.addAll(execSearches.values());
+        
+        CompletableFuture<Void> citiesDone = CompletableFuture.allOf(execCities.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null); // City errors are sent back with their query, so only wait for them all to finish.
+        
+        return execUsers.thenCombineAsync(citiesDone, (users, done) -> { // Errors from the users future fail the whole batch with the same status as locationByRadius.
+        	List<APIRadiusQueryResponse> response = dwpApiHelper.processBatch(queries, execLocations, execSearches, users); // Every query runs against the same users snapshot and index.
+            
+            log.info(requestId + ": Ending batchLocationByRadius request");
+            
+            return new ResponseEntity<List<APIRadiusQueryResponse>>(response, dwpApiHelper.setResponseHeaders(requestId), HttpStatus.OK);
+        }, dwpTaskExec);
+    }
+    
+    private static <T> CompletableFuture<T> startQuery(Callable<CompletableFuture<T>> call) { // Starts a call for one city of a batch, so a call that fails straight away only fails that city's queries.
+    	try {
+    		return call.call();
+    		
+    	} catch(Exception e) {
+    		return CompletableFuture.failedFuture(e);
+    	}
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,241 @@
+package gov.dwp.ms.api;
+
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class DwpMsResults { // Users in a radius response, merged by id so each user is only in the results once, in id order. Snapshot users are held by position, so they only need creating if the results are asked for as a list.
+
+	static final int BITMAP_MIN_SHARE = 512; // Results of at least 1 in this many snapshot users are ordered with the id bitmap, smaller ones are just sorted.
+
+	private final DwpMsUsersSnapshot users;
+	private final List<APIUsersResponse> searchUsers;
+	private final int[] refs; // Results in id order. Snapshot positions, or -1 - i for the i'th search user.
+	private final boolean more; // True if the page limit cut off some results.
+
+	public DwpMsResults(DwpMsUsersSnapshot users, int[] positions, int count, List<APIUsersResponse> searchUsers) {
+		this(users, positions, count, searchUsers, DwpMsPage.ALL, null);
+	}
+
+	public DwpMsResults(DwpMsUsersSnapshot users, int[] positions, int count, List<APIUsersResponse> searchUsers, DwpMsPage page, DwpMsIdOrder idOrder) {
+		this.users = users;
+		this.searchUsers = searchUsers;
+
+		long[] searchKeys = new long[searchUsers.size()]; // Only ever a few, so just sorted.
+
+		for (int i = 0; i < searchKeys.length; i++) {
+			searchKeys[i] = ((long) searchUsers.get(i).getId() << 32) | i;
+		}
+
+		Arrays.sort(searchKeys);
+
+		int[] byId; // Snapshot positions of the radius matches in id order.
+		boolean truncated = false; // True if only the first page of radius matches was kept.
+
+		if (idOrder != null && idOrder.isFor(users) && count >= users.size() / BITMAP_MIN_SHARE) {
+			byId = inIdOrder(positions, count, idOrder);
+
+		} else {
+			long[] keys = new long[count];
+			int size = 0;
+
+			for (int i = 0; i < count; i++) {
+				int id = users.getId(positions[i]); // Id read from the column, so no user is created to sort it.
+
+				if (page.includes(id)) {
+					keys[size++] = ((long) id << 32) | positions[i];
+				}
+			}
+
+			truncated = page.getLimit() > 0 && size > page.getLimit();
+			keys = truncated ? smallest(keys, size, page.getLimit()) : sorted(keys, size); // With a limit, only the page is sorted and the rest are just compared against it.
+			byId = new int[keys.length];
+
+			for (int i = 0; i < keys.length; i++) {
+				byId[i] = (int) keys[i];
+			}
+		}
+
+		// Merge the two id ordered lists, keeping the first of any users with the same id. Snapshot users come first, as they are the latest users data.
+		int limit = page.getLimit() > 0 ? page.getLimit() : Integer.MAX_VALUE;
+		int[] merged = new int[Math.min(limit, byId.length + searchKeys.length)];
+		int size = 0;
+		int lastId = 0;
+		boolean cut = false;
+
+		for (int i = 0, j = 0; i < byId.length || j < searchKeys.length;) {
+			int id;
+			int ref;
+
+			if (j >= searchKeys.length || (i < byId.length && users.getId(byId[i]) <= (int) (searchKeys[j] >> 32))) {
+				ref = byId[i++];
+				id = users.getId(ref);
+			} else {
+				ref = -1 - (int) searchKeys[j];
+				id = (int) (searchKeys[j++] >> 32);
+			}
+
+			if (!page.includes(id) || (size > 0 && id == lastId)) {
+				continue; // Before the cursor, or a user that is already in the results.
+			}
+
+			if (size == limit) {
+				cut = true;
+				break;
+			}
+
+			merged[size++] = ref;
+			lastId = id;
+		}
+
+		this.refs = Arrays.copyOf(merged, size);
+		this.more = cut || truncated;
+	}
+
+	private static int[] inIdOrder(int[] positions, int count, DwpMsIdOrder idOrder) { // Sets each position's id rank in a bitmap and reads the set bits back, which comes out in id order without sorting.
+		long[] bitmap = new long[(idOrder.size() + 63) >>> 6];
+
+		for (int i = 0; i < count; i++) {
+			int rank = idOrder.getRank(positions[i]);
+			bitmap[rank >>> 6] |= 1L << rank;
+		}
+
+		int[] byId = new int[count];
+		int size = 0;
+
+		for (int word = 0; word < bitmap.length; word++) {
+			for (long bits = bitmap[word]; bits != 0; bits &= bits - 1) {
+				byId[size++] = idOrder.getPosition((word << 6) + Long.numberOfTrailingZeros(bits));
+			}
+		}
+
+		return byId;
+	}
+
+	private static long[] sorted(long[] keys, int size) {
+		long[] sorted = Arrays.copyOf(keys, size);
+		Arrays.sort(sorted);
+
+		return sorted;
+	}
+
+	private static long[] smallest(long[] keys, int size, int limit) { // Bounded top-k: the limit smallest keys in order, kept in a max heap so the cost is size * log(limit) rather than sorting them all.
+		long[] heap = Arrays.copyOf(keys, limit);
+
+		for (int i = limit / 2 - 1; i >= 0; i--) {
+			siftDown(heap, i);
+		}
+
+		for (int i = limit; i < size; i++) {
+			if (keys[i] < heap[0]) { // Smaller than the largest kept, so it replaces it.
+				heap[0] = keys[i];
+				siftDown(heap, 0);
+			}
+		}
+
+		Arrays.sort(heap);
+
+		return heap;
+	}
+
+	private static void siftDown(long[] heap, int i) {
+		while (2 * i + 1 < heap.length) {
+			int child = 2 * i + 1;
+
+			if (child + 1 < heap.length && heap[child + 1] > heap[child]) {
+				child++;
+			}
+
+			if (heap[i] >= heap[child]) {
+				return;
+			}
+
+			long swap = heap[i];
+			heap[i] = heap[child];
+			heap[child] = swap;
+			i = child;
+		}
+	}
+
+	public int size() {
+		return refs.length;
+	}
+
+	public boolean isEmpty() {
+		return refs.length == 0;
+	}
+
+	public boolean hasMore() { // True if there are more results after this page.
+		return more;
+	}
+
+	public int getLastId() { // Id of the last user in the results, which is where the next page starts.
+		int ref = refs[refs.length - 1];
+
+		return ref >= 0 ? users.getId(ref) : searchUsers.get(-1 - ref).getId();
+	}
+
+	public List<APIUsersResponse> toList() { // Creates the result users, in id order.
+		List<APIUsersResponse> list = new ArrayList<APIUsersResponse>(refs.length);
+
+		for (int ref : refs) {
+			list.add(ref >= 0 ? users.get(ref) : searchUsers.get(-1 - ref));
+		}
+
+		return list;
+	}
+
+	public byte[] toJson(ObjectMapper objectMapper, DwpMsUserJsonFragments fragments) { // Writes the results as a json array, the same bytes as the mapper would write for toList().
+		byte[][] parts = new byte[refs.length][];
+		boolean useFragments = fragments != null && fragments.isFor(users);
+		int length = 2 + Math.max(0, refs.length - 1); // Brackets and commas.
+
+		for (int i = 0; i < refs.length; i++) {
+			parts[i] = getJson(i, objectMapper, useFragments ? fragments : null);
+			length += parts[i].length;
+		}
+
+		byte[] json = new byte[length]; // Exact size, so the body is copied once and never resized.
+		int offset = 0;
+		json[offset++] = '[';
+
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0) {
+				json[offset++] = ',';
+			}
+
+			System.arraycopy(parts[i], 0, json, offset, parts[i].length);
+			offset += parts[i].length;
+		}
+
+		json[offset] = ']';
+
+		return json;
+	}
+
+	public void writeNdjson(OutputStream out, ObjectMapper objectMapper, DwpMsUserJsonFragments fragments) throws IOException { // Writes the results one user per line as they are read, so only the current user's json is held rather than the whole body.
+		boolean useFragments = fragments != null && fragments.isFor(users);
+
+		for (int i = 0; i < refs.length; i++) {
+			out.write(getJson(i, objectMapper, useFragments ? fragments : null));
+			out.write('\n');
+		}
+	}
+
+	private byte[] getJson(int i, ObjectMapper objectMapper, DwpMsUserJsonFragments fragments) { // Json of the i'th result, from the stored fragments where there are some.
+		int ref = refs[i];
+
+		if (ref < 0) {
+			return DwpMsUserJsonFragments.write(objectMapper, searchUsers.get(-1 - ref)); // Search users aren't in the snapshot, and there are only ever a few.
+		}
+
+		return fragments != null ? fragments.get(ref) : DwpMsUserJsonFragments.write(objectMapper, users.get(ref));
+	}
+}
@@ -0,0 +1,100 @@
+package gov.dwp.ms.api;
+
+
+public class DwpMsSearchArea { // Lat/lon bounding box that is guaranteed to contain every point within the radius of the source location on the WGS84 ellipsoid.
+
+	public static final double METERS_PER_MILE = 1609.34;
+	private static final double MIN_METERS_PER_DEGREE = 110574; // Shortest length of a degree of latitude (at the equator), so dividing by it over estimates the box which keeps it safe.
+
+	private final double lat;
+	private final double lon;
+	private final double radiusMiles;
+	private final double radiusMeters;
+	private final double minLat;
+	private final double maxLat;
+	private final double lonDelta;
+	private final boolean allLongitudes;
+
+	public DwpMsSearchArea(double lat, double lon, double radiusMiles) {
+		this.lat = lat;
+		this.lon = normaliseLongitude(lon);
+		this.radiusMiles = radiusMiles;
+		this.radiusMeters = radiusMiles * METERS_PER_MILE;
+
+		double latDelta = radiusMeters / MIN_METERS_PER_DEGREE;
+		this.minLat = lat - latDelta;
+		this.maxLat = lat + latDelta;
+
+		double maxAbsLat = Math.max(Math.abs(minLat), Math.abs(maxLat));
+
+		if (maxAbsLat >= 90) {
+			this.lonDelta = 180; // The circle contains a pole so every longitude is possible.
+		} else {
+			this.lonDelta = Math.min(180, latDelta / Math.cos(Math.toRadians(maxAbsLat))); // Degrees of longitude shrink towards the poles, so widen using the highest latitude in the box.
+		}
+
+		this.allLongitudes = lonDelta >= 180;
+	}
+
+	public static DwpMsSearchArea ofMiles(double lat, double lon, int radius) {
+		return new DwpMsSearchArea(lat, lon, radius);
+	}
+
+	public static double normaliseLongitude(double lon) { // Wraps a longitude into the range -180 to 180.
+		if (lon >= -180 && lon < 180) {
+			return lon;
+		}
+
+		return ((lon + 180) % 360 + 360) % 360 - 180;
+	}
+
+	public boolean contains(double pointLat, double pointLon) { // Cheap check to reject points outside the bounding box.
+		if (pointLat < minLat || pointLat > maxLat) {
+			return false;
+		}
+
+		if (allLongitudes) {
+			return true;
+		}
+
+		double diff = Math.abs(normaliseLongitude(pointLon) - lon);
+
+		return Math.min(diff, 360 - diff) <= lonDelta; // Take the shortest way round so boxes crossing the antimeridian work.
+	}
+
+	public double getLat() {
+		return lat;
+	}
+
+	public double getLon() {
+		return lon;
+	}
+
+	public double getRadiusMiles() {
+		return radiusMiles;
+	}
+
+	public double getRadiusMeters() {
+		return radiusMeters;
+	}
+
+	public double getMinLat() {
+		return minLat;
+	}
+
+	public double getMaxLat() {
+		return maxLat;
+	}
+
+	public double getMinLon() {
+		return lon - lonDelta; // May be below -180 when the box crosses the antimeridian.
+	}
+
+	public double getMaxLon() {
+		return lon + lonDelta; // May be above 180 when the box crosses the antimeridian.
+	}
+
+	public boolean isAllLongitudes() {
+		return allLongitudes;
+	}
+}
@@ -0,0 +1,32 @@
+package gov.dwp.ms.api;
+
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.springframework.http.MediaType;
+
+
+public class DwpMsStreamedResults { // Response body for the streaming (ndjson) mode. Written to the response as it goes by DwpMsNdjsonMessageConverter, so the body is never held in full.
+
+	public static final String NDJSON_VALUE = "application/x-ndjson";
+	public static final MediaType NDJSON = MediaType.parseMediaType(NDJSON_VALUE);
+
+	private final DwpMsResults results;
+	private final ObjectMapper objectMapper;
+	private final DwpMsUserJsonFragments fragments;
+
+	public DwpMsStreamedResults(DwpMsResults results, ObjectMapper objectMapper, DwpMsUserJsonFragments fragments) {
+		this.results = results;
+		this.objectMapper = objectMapper;
+		this.fragments = fragments;
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		results.writeNdjson(out, objectMapper, fragments);
+	}
+}
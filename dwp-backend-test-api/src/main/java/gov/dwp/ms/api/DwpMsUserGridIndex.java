@@ -0,0 +1,233 @@
+package gov.dwp.ms.api;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersDelta;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+
+public class DwpMsUserGridIndex { // Immutable grid index over the users list, so radius queries only look at users in cells that intersect the search area.
+
+	static final double CELL_DEGREES = 0.5; // Roughly 35 miles square in the UK, so a typical radius query touches a handful of cells.
+	static final int ROWS = (int) (180 / CELL_DEGREES);
+	static final int COLUMNS = (int) (360 / CELL_DEGREES);
+
+	private final DwpMsUsersSnapshot users;
+	private final int[] cellKeys; // Cell key of each user, sorted so each cell (and each row of cells) is a contiguous range.
+	private final int[] positions; // Position of each user in the snapshot, in the same order as cellKeys.
+	private final double[] latitudes; // Co-ords copied in the same order as cellKeys, so a radius scan reads memory in order.
+	private final double[] longitudes;
+	private final ByteBuffer offHeapCoords; // For off heap snapshots the co-ords are copied off heap instead (latitude then longitude per entry), and the arrays above are null.
+
+	public DwpMsUserGridIndex(long version, List<APIUsersResponse> source) {
+		this(new DwpMsUsersSnapshot(version, source));
+	}
+
+	public DwpMsUserGridIndex(DwpMsUsersSnapshot source) {
+		this(source, source.size());
+
+		int size = source.size();
+		long[] packed = new long[size];
+
+		for (int i = 0; i < size; i++) {
+			packed[i] = entryKey(source, i); // Pack the cell key and position together so a primitive sort orders the users by cell.
+		}
+
+		Arrays.sort(packed);
+
+		for (int i = 0; i < size; i++) {
+			set(i, packed[i], source.getLatitude((int) packed[i]), source.getLongitude((int) packed[i]));
+		}
+	}
+
+	private DwpMsUserGridIndex(DwpMsUserGridIndex previous, DwpMsUsersSnapshot source, DwpMsUsersDelta delta) { // Copies the previous index, dropping the users that were removed or moved and merging in the ones added.
+		this(source, source.size());
+
+		boolean[] removed = new boolean[previous.users.size()];
+
+		for (int position : delta.getRemovedPositions()) {
+			removed[position] = true;
+		}
+
+		int[] addedPositions = delta.getAddedPositions();
+		long[] added = new long[addedPositions.length];
+
+		for (int k = 0; k < added.length; k++) {
+			added[k] = entryKey(source, addedPositions[k]);
+		}
+
+		Arrays.sort(added); // Only the changes are sorted, the rest of the index is already in order.
+
+		int entry = 0;
+		int k = 0;
+
+		for (int i = 0; i < previous.size(); i++) {
+			if (removed[previous.positions[i]]) {
+				continue;
+			}
+
+			long key = ((long) previous.cellKeys[i] << 32) | previous.positions[i];
+
+			for (; k < added.length && added[k] < key; k++) {
+				set(entry++, added[k], source.getLatitude((int) added[k]), source.getLongitude((int) added[k]));
+			}
+
+			set(entry++, key, previous.getLatitude(i), previous.getLongitude(i)); // Co-ords come from the previous index, unchanged users aren't read from the snapshot at all.
+		}
+
+		for (; k < added.length; k++) {
+			set(entry++, added[k], source.getLatitude((int) added[k]), source.getLongitude((int) added[k]));
+		}
+
+		if (entry != positions.length) {
+			throw new IllegalStateException("Users delta does not match the previous index"); // Shouldn't get here, as the delta is only used against the version it was made from.
+		}
+	}
+
+	private DwpMsUserGridIndex(DwpMsUsersSnapshot source, int size) {
+		this.users = source;
+		this.cellKeys = new int[size];
+		this.positions = new int[size];
+		this.latitudes = source.isOffHeap() ? null : new double[size];
+		this.longitudes = source.isOffHeap() ? null : new double[size];
+		this.offHeapCoords = source.isOffHeap() ? ByteBuffer.allocateDirect(Math.multiplyExact(size, 16)).order(ByteOrder.nativeOrder()) : null;
+	}
+
+	public static DwpMsUserGridIndex update(DwpMsUserGridIndex previous, DwpMsUsersSnapshot source) { // Index for a new snapshot, applying only its changes to the previous index when it has them.
+		DwpMsUsersDelta delta = source.getDelta();
+
+		if (previous == null || delta == null || delta.getPreviousVersion() != previous.getVersion() || previous.users.isOffHeap() != source.isOffHeap()
+				|| delta.getChanges() > source.size() / 4) { // Lots of changes, a fresh sort is just as quick.
+			return new DwpMsUserGridIndex(source);
+		}
+
+		return new DwpMsUserGridIndex(previous, source, delta);
+	}
+
+	private void set(int entry, long key, double lat, double lon) {
+		cellKeys[entry] = (int) (key >>> 32);
+		positions[entry] = (int) key;
+
+		if (offHeapCoords != null) {
+			offHeapCoords.putDouble(entry * 16, lat);
+			offHeapCoords.putDouble(entry * 16 + 8, lon);
+		} else {
+			latitudes[entry] = lat;
+			longitudes[entry] = lon;
+		}
+	}
+
+	public long getVersion() { // Version of the users snapshot the index was built from.
+		return users.getVersion();
+	}
+
+	public int size() {
+		return positions.length;
+	}
+
+	public double getLatitude(int entry) {
+		return offHeapCoords != null ? offHeapCoords.getDouble(entry * 16) : latitudes[entry];
+	}
+
+	public double getLongitude(int entry) {
+		return offHeapCoords != null ? offHeapCoords.getDouble(entry * 16 + 8) : longitudes[entry];
+	}
+
+	public APIUsersResponse getUser(int entry) { // Creates the full user for an index entry, only needed for users in the results.
+		return users.get(positions[entry]);
+	}
+
+	public int getPosition(int entry) { // Position in the snapshot of the user at an index entry.
+		return positions[entry];
+	}
+
+	public DwpMsUsersSnapshot getUsers() { // Snapshot the index was built from.
+		return users;
+	}
+
+	public List<APIUsersResponse> getCandidates(DwpMsSearchArea area) { // Returns the users in every cell that intersects the search area. Callers still need to check the exact distance.
+		List<APIUsersResponse> candidates = new ArrayList<APIUsersResponse>();
+		forEachCandidate(area, entry -> candidates.add(getUser(entry)));
+
+		return candidates;
+	}
+
+	public void forEachCandidate(DwpMsSearchArea area, IntConsumer action) { // Passes the index entry of every user in a cell that intersects the search area, without creating any users.
+		int minRow = row(area.getMinLat());
+		int maxRow = row(area.getMaxLat());
+		boolean allColumns = area.isAllLongitudes() || area.getMaxLon() - area.getMinLon() >= 360 - 2 * CELL_DEGREES; // Nearly all the way round, so wrapped columns could overlap.
+
+		for (int row = minRow; row <= maxRow; row++) {
+			if (allColumns) {
+				forEachInRange(action, row, 0, COLUMNS - 1);
+				continue;
+			}
+
+			int minColumn = column(area.getMinLon());
+			int maxColumn = column(area.getMaxLon());
+
+			if (minColumn <= maxColumn) {
+				forEachInRange(action, row, minColumn, maxColumn);
+			} else { // The area crosses the antimeridian so search both ends of the row.
+				forEachInRange(action, row, minColumn, COLUMNS - 1);
+				forEachInRange(action, row, 0, maxColumn);
+			}
+		}
+	}
+
+	void forEachInCell(int row, int column, IntConsumer action) { // Visits every user in one cell.
+		forEachInRange(action, row, column, column);
+	}
+
+	private void forEachInRange(IntConsumer action, int row, int minColumn, int maxColumn) { // Visits all users from a run of cells in a row, which are next to each other in the sorted arrays.
+		int startKey = row * COLUMNS + minColumn;
+		int endKey = row * COLUMNS + maxColumn;
+
+		for (int i = lowerBound(startKey); i < cellKeys.length && cellKeys[i] <= endKey; i++) {
+			action.accept(i);
+		}
+	}
+
+	private int lowerBound(int key) { // Binary search for the first position with a cell key >= key.
+		int low = 0;
+		int high = cellKeys.length;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (cellKeys[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	private static long entryKey(DwpMsUsersSnapshot source, int position) {
+		return ((long) cellKey(source.getLatitude(position), source.getLongitude(position)) << 32) | position;
+	}
+
+	static int cellKey(double lat, double lon) {
+		return row(lat) * COLUMNS + column(lon);
+	}
+
+	static int row(double lat) {
+		int row = (int) Math.floor((lat + 90) / CELL_DEGREES);
+
+		return Math.max(0, Math.min(ROWS - 1, row)); // Clamp so the poles (and any bad data) fall into the edge rows.
+	}
+
+	static int column(double lon) {
+		int column = (int) Math.floor((DwpMsSearchArea.normaliseLongitude(lon) + 180) / CELL_DEGREES);
+
+		return Math.min(COLUMNS - 1, column);
+	}
+}
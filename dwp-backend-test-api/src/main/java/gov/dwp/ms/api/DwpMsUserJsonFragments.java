@@ -0,0 +1,65 @@
+package gov.dwp.ms.api;
+
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+
+public class DwpMsUserJsonFragments { // Serialised json of users in a snapshot. A user's json is the same in every response, so it is written the first time the user is in a result and copied after that, for as many users as fit in maxBytes.
+
+	private final ObjectMapper objectMapper; // Same mapper Spring uses for response bodies, so the fragments match what it would write.
+	private final DwpMsUsersSnapshot users;
+	private final Cache<Integer, byte[]> fragments; // Utf-8 json by snapshot position. Bounded, as stored json for every user would be bigger than the snapshot itself, and would put the off heap users back on the heap.
+
+	public DwpMsUserJsonFragments(ObjectMapper objectMapper, DwpMsUsersSnapshot users, long maxBytes) {
+		this.objectMapper = objectMapper;
+		this.users = users;
+		this.fragments = Caffeine.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((Integer position, byte[] fragment) -> fragment.length + 64) // Plus roughly the entry, key and array headers.
+				.recordStats()
+				.build();
+	}
+
+	public long getVersion() {
+		return users.getVersion();
+	}
+
+	public boolean isFor(DwpMsUsersSnapshot users) { // True if the fragments are for this snapshot, so positions line up.
+		return users.getVersion() == getVersion() && users.size() == this.users.size();
+	}
+
+	public byte[] get(int position) { // Json for the user at a snapshot position. Must never be modified, as it is shared between responses.
+		byte[] fragment = fragments.getIfPresent(position);
+
+		if (fragment == null) {
+			fragment = write(users.get(position)); // Two requests may both write the same user, which is harmless as the bytes are the same.
+			fragments.put(position, fragment);
+		}
+
+		return fragment;
+	}
+
+	public Cache<Integer, byte[]> getCache() {
+		return fragments;
+	}
+
+	public byte[] write(APIUsersResponse user) { // Json for a user that isn't in the snapshot, e.g. a city search result.
+		return write(objectMapper, user);
+	}
+
+	static byte[] write(ObjectMapper objectMapper, APIUsersResponse user) {
+		try {
+			return objectMapper.writeValueAsBytes(user);
+
+		} catch(JsonProcessingException e) {
+			throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR); // Shouldn't get here, the users always serialise.
+		}
+	}
+}
@@ -8,6 +8,6 @@ import java.util.Comparator;
 public class DwpMsUserSort implements Comparator<APIUsersResponse> { 
 
     public int compare(APIUsersResponse a, APIUsersResponse b) { // Comparator for sorting by id.
-        return a.getId() - b.getId(); 
+        return Integer.compare(a.getId(), b.getId()); // Subtracting the ids overflows for ids of opposite sign and large size.
     } 
 } 
@@ -2,10 +2,25 @@ package gov.dwp.ms.api;
 
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import gov.dwp.ms.model.APINearestUserResponse;
+import gov.dwp.ms.model.APIRadiusQuery;
+import gov.dwp.ms.model.APIRadiusQueryResponse;
+import gov.dwp.ms.model.APIUsersResponse;
 import gov.dwp.ms.service.DwpMsService;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPInputStream;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
@@ -22,6 +37,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.server.ResponseStatusException;
 
 
@@ -39,6 +55,9 @@ public class DwpMsApiApplicationTest {
     @Autowired
     private TestRestTemplate mockApi;
 	
+    @Autowired
+    private DwpMsCityDistanceCache cityDistanceCache;
+	
     @Test
     public void locationByRadius_cityPathVariableMaxLength() throws Exception { // Test the city path variable errors if length is over 50 chars.
     	ResponseEntity<String> actualResult = mockApi.getForEntity("http://localhost:" + port + "/city/Londonasdasdasasdasdasasdasdasdasdasdasdasasdadasdasdasasdas/radius/50/users", String.class);
@@ -60,6 +79,24 @@ public class DwpMsApiApplicationTest {
         assertSame(HttpStatus.INTERNAL_SERVER_ERROR, actualResult.getStatusCode());
     }
 	 
+    @Test
+    public void actuator_connectionPoolMetrics() throws Exception { // Test the upstream connection pool stats are published on the actuator metrics endpoint.
+    	ResponseEntity<String> actualResult = mockApi.getForEntity("http://localhost:" + port + "/actuator/metrics/httpcomponents.httpclient.pool.total.max", String.class);
+        
+        assertSame(HttpStatus.OK, actualResult.getStatusCode());
+        assertTrue(actualResult.getBody().contains("dwp-upstream"));
+    }
+	 
+    @Test
+    public void actuator_cacheMetrics() throws Exception { // Test hit/miss stats for both caches are published on the actuator metrics endpoint.
+    	ResponseEntity<String> citiesResult = mockApi.getForEntity("http://localhost:" + port + "/actuator/metrics/cache.gets?tag=cache:cities", String.class);
+    	ResponseEntity<String> cityUsersResult = mockApi.getForEntity("http://localhost:" + port + "/actuator/metrics/cache.gets?tag=cache:cityUsers", String.class);
+        
+        assertSame(HttpStatus.OK, citiesResult.getStatusCode());
+        assertSame(HttpStatus.OK, cityUsersResult.getStatusCode());
+        assertTrue(citiesResult.getBody().contains("hit"));
+    }
+	 
     @Test
     public void londonFiftyMileRadius_successWithResults() throws Exception { // Test londonFiftyMileRadius call is a success and returns results.
     	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
@@ -80,6 +117,378 @@ public class DwpMsApiApplicationTest {
         assertEquals(expectedResult, actualResult.getBody()); // Run assertions to ensure matches
     }
     
+    @Test
+    public void londonFiftyMileRadius_materializedUntilUsersChange() throws Exception { // Test the default response is served from memory while the users snapshot version is the same, and rebuilt when it changes.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setSearchResponse(135, "Mechelle", "Boam", "test@test.com", "113.71.242.187", -6.5115909, 105.652983);
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	dwpTestBuilder.setUsersResponse(137, "Phyllys", "Hebbs", "test@test.com", "113.71.242.187", -6.7098551, 111.3479498, false);
+    	
+    	DwpMsApiTestBuilder changedTestBuilder = new DwpMsApiTestBuilder();
+    	changedTestBuilder.setUsersResponse(138, "Stephen", "Mapstone", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(1001, dwpTestBuilder.getUsersResponse().get())));
+        
+        String first = mockApi.getForEntity("http://localhost:" + port + "/", String.class).getBody();
+        
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(1001, changedTestBuilder.getUsersResponse().get()))); // Same version, so not looked at.
+        
+        ResponseEntity<String> second = mockApi.getForEntity("http://localhost:" + port + "/", String.class);
+        
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(1002, changedTestBuilder.getUsersResponse().get())));
+        
+        String third = mockApi.getForEntity("http://localhost:" + port + "/", String.class).getBody();
+        
+        assertEquals(dwpTestBuilder.getExpectedResults(), first);
+        assertEquals(first, second.getBody());
+        assertEquals("application/json", second.getHeaders().getContentType().toString());
+        assertTrue(third.contains("Mapstone") && !third.contains("Garnsworthy"));
+    }
+    
+    @Test
+    public void londonFiftyMileRadius_materializedForNewSearchLists() throws Exception { // Test the default response is still served from memory when the search results are a new list with the same users, as from the WebClient service.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setSearchResponse(135, "Mechelle", "Boam", "test@test.com", "113.71.242.187", -6.5115909, 105.652983);
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+    	DwpMsApiTestBuilder changedTestBuilder = new DwpMsApiTestBuilder();
+    	changedTestBuilder.setSearchResponse(135, "Mechelle", "Boam", "test@test.com", "113.71.242.187", -6.5115909, 105.652983);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(1011, dwpTestBuilder.getUsersResponse().get())));
+        
+        String first = mockApi.getForEntity("http://localhost:" + port + "/", String.class).getBody();
+        
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(changedTestBuilder.getSearchResponse()); // New list, same search users.
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(1011, changedTestBuilder.getUsersResponse().get()))); // Same version with no users, which would be an error if processed again.
+        
+        ResponseEntity<String> second = mockApi.getForEntity("http://localhost:" + port + "/", String.class);
+        
+        changedTestBuilder.setSearchResponse(139, "Ruthi", "Caunce", "test@test.com", "113.71.242.187", -6.5115909, 105.652983);
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(1011, dwpTestBuilder.getUsersResponse().get())));
+        
+        String third = mockApi.getForEntity("http://localhost:" + port + "/", String.class).getBody();
+        
+        assertEquals(dwpTestBuilder.getExpectedResults(), first);
+        assertSame(HttpStatus.OK, second.getStatusCode());
+        assertEquals(first, second.getBody());
+        assertTrue(third.contains("Caunce")); // Different search users, so processed again.
+    }
+    
+    @Test
+    public void locationByRadius_notModified() throws Exception { // Test a repeat request with the ETag gets a 304 with no body, also from a new snapshot of the same users (as after a restart), while a different query or different users get a new response.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setLocationResponse("London", "51.5073219", "-0.1276474");
+    	dwpTestBuilder.setSearchResponse(135, "Mechelle", "Boam", "test@test.com", "113.71.242.187", -6.5115909, 105.652983);
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+    	DwpMsApiTestBuilder changedTestBuilder = new DwpMsApiTestBuilder();
+    	changedTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "changed@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getLocationResults("London")).thenReturn(dwpTestBuilder.getLocationResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2001, dwpTestBuilder.getUsersResponse().get())));
+        
+        ResponseEntity<String> first = mockApi.getForEntity("http://localhost:" + port + "/city/London/radius/50/users", String.class);
+        String etag = first.getHeaders().getETag();
+        
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(etag);
+        
+        ResponseEntity<String> repeat = mockApi.exchange("http://localhost:" + port + "/city/London/radius/50/users", HttpMethod.GET, new HttpEntity<Object>(headers), String.class);
+        ResponseEntity<String> otherRadius = mockApi.exchange("http://localhost:" + port + "/city/London/radius/60/users", HttpMethod.GET, new HttpEntity<Object>(headers), String.class);
+        
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2002, dwpTestBuilder.getUsersResponse().get())));
+        
+        ResponseEntity<String> newVersion = mockApi.exchange("http://localhost:" + port + "/city/London/radius/50/users", HttpMethod.GET, new HttpEntity<Object>(headers), String.class);
+        
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2002, changedTestBuilder.getUsersResponse().get())));
+        
+        ResponseEntity<String> changedUsers = mockApi.exchange("http://localhost:" + port + "/city/London/radius/50/users", HttpMethod.GET, new HttpEntity<Object>(headers), String.class);
+        
+        assertSame(HttpStatus.OK, first.getStatusCode());
+        assertTrue(etag.matches("\"[0-9a-f]{16}-[0-9a-f]{24}(-gzip)?\""), etag);
+        assertTrue(first.getHeaders().getCacheControl().startsWith("max-age="));
+        assertSame(HttpStatus.NOT_MODIFIED, repeat.getStatusCode());
+        assertEquals(null, repeat.getBody());
+        assertEquals(etag, repeat.getHeaders().getETag());
+        assertSame(HttpStatus.OK, otherRadius.getStatusCode());
+        assertSame(HttpStatus.NOT_MODIFIED, newVersion.getStatusCode()); // Same users, so the same tag.
+        assertSame(HttpStatus.OK, changedUsers.getStatusCode());
+        assertTrue(changedUsers.getBody().contains("changed@test.com"));
+    }
+    
+    @Test
+    public void londonFiftyMileRadius_notModified() throws Exception { // Test the default call also honours If-None-Match, and unversioned users get no ETag.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(dwpTestBuilder.getUsersResponse());
+        
+        ResponseEntity<String> unversioned = mockApi.getForEntity("http://localhost:" + port + "/", String.class);
+        
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2003, dwpTestBuilder.getUsersResponse().get())));
+        
+        ResponseEntity<String> first = mockApi.getForEntity("http://localhost:" + port + "/", String.class);
+        
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.IF_NONE_MATCH, "\"other\", W/" + first.getHeaders().getETag());
+        
+        ResponseEntity<String> repeat = mockApi.exchange("http://localhost:" + port + "/", HttpMethod.GET, new HttpEntity<Object>(headers), String.class);
+        
+        assertEquals(null, unversioned.getHeaders().getETag());
+        assertSame(HttpStatus.OK, first.getStatusCode());
+        assertSame(HttpStatus.NOT_MODIFIED, repeat.getStatusCode());
+    }
+    
+    @Test
+    public void londonFiftyMileRadius_gzipped() throws Exception { // Test a requester accepting gzip gets the same json compressed, with its own ETag.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setSearchResponse(135, "Mechelle", "Boam", "test@test.com", "113.71.242.187", -6.5115909, 105.652983);
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2004, dwpTestBuilder.getUsersResponse().get())));
+        
+        HttpURLConnection plain = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection(); // Plain connection, which doesn't decompress the body for us.
+        HttpURLConnection gzipped = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+        gzipped.setRequestProperty(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        
+        String plainBody = StreamUtils.copyToString(plain.getInputStream(), StandardCharsets.UTF_8);
+        String gzippedBody = StreamUtils.copyToString(new GZIPInputStream(gzipped.getInputStream()), StandardCharsets.UTF_8);
+        
+        assertEquals(null, plain.getHeaderField(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("gzip", gzipped.getHeaderField(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(dwpTestBuilder.getExpectedResults(), plainBody);
+        assertEquals(plainBody, gzippedBody);
+        assertEquals("Accept, Accept-Encoding", gzipped.getHeaderField(HttpHeaders.VARY));
+        assertTrue(gzipped.getHeaderField(HttpHeaders.ETAG).endsWith("-gzip\""));
+        assertTrue(!plain.getHeaderField(HttpHeaders.ETAG).equals(gzipped.getHeaderField(HttpHeaders.ETAG)));
+    }
+    
+    @Test
+    public void locationByRadius_streamedNdjson() throws Exception { // Test a requester asking for ndjson gets the same users, one per line in id order, without an ETag.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setLocationResponse("London", "51.5073219", "-0.1276474");
+    	dwpTestBuilder.setSearchResponse(135, "Mechelle", "Boam", "test@test.com", "113.71.242.187", -6.5115909, 105.652983);
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	dwpTestBuilder.setUsersResponse(137, "Phyllys", "Hebbs", "test@test.com", "113.71.242.187", -6.7098551, 111.3479498, false);
+    	dwpTestBuilder.setUsersResponse(138, "Stephen", "Mapstone", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getLocationResults("London")).thenReturn(dwpTestBuilder.getLocationResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2005, dwpTestBuilder.getUsersResponse().get())));
+        
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT, "application/x-ndjson");
+        
+        ResponseEntity<String> streamed = mockApi.exchange("http://localhost:" + port + "/city/London/radius/50/users", HttpMethod.GET, new HttpEntity<Object>(headers), String.class);
+        ResponseEntity<String> json = mockApi.getForEntity("http://localhost:" + port + "/city/London/radius/50/users", String.class);
+        
+        assertSame(HttpStatus.OK, streamed.getStatusCode());
+        assertEquals("application/x-ndjson", streamed.getHeaders().getContentType().toString());
+        assertEquals(null, streamed.getHeaders().getETag());
+        assertEquals("[" + streamed.getBody().trim().replace("\n", ",") + "]", json.getBody());
+        assertEquals(3, streamed.getBody().split("\n").length);
+    }
+    
+    @Test
+    public void locationByRadius_paged() throws Exception { // Test paging through the results with limit and the next cursor, that a new snapshot of the same users keeps the cursor, and that cursors from different users or not made by us are rejected.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setLocationResponse("London", "51.5073219", "-0.1276474");
+    	dwpTestBuilder.setSearchResponse(135, "Mechelle", "Boam", "test@test.com", "113.71.242.187", -6.5115909, 105.652983);
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	dwpTestBuilder.setUsersResponse(137, "Phyllys", "Hebbs", "test@test.com", "113.71.242.187", -6.7098551, 111.3479498, false);
+    	dwpTestBuilder.setUsersResponse(138, "Stephen", "Mapstone", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getLocationResults("London")).thenReturn(dwpTestBuilder.getLocationResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2006, dwpTestBuilder.getUsersResponse().get())));
+        
+        String url = "http://localhost:" + port + "/city/London/radius/50/users?limit=2";
+        ResponseEntity<String> first = mockApi.getForEntity(url, String.class);
+        String cursor = first.getHeaders().getFirst("X-Next-Cursor");
+        ResponseEntity<String> second = mockApi.getForEntity(url + "&cursor=" + cursor, String.class);
+        ResponseEntity<String> invalid = mockApi.getForEntity(url + "&cursor=nonsense", String.class);
+        
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2007, dwpTestBuilder.getUsersResponse().get())));
+        
+        ResponseEntity<String> sameUsers = mockApi.getForEntity(url + "&cursor=" + cursor, String.class);
+        
+        dwpTestBuilder.setUsersResponse(139, "Ruthi", "Caunce", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2008, dwpTestBuilder.getUsersResponse().get())));
+        
+        ResponseEntity<String> stale = mockApi.getForEntity(url + "&cursor=" + cursor, String.class);
+        
+        assertSame(HttpStatus.OK, first.getStatusCode());
+        assertTrue(first.getBody().contains("Boam") && first.getBody().contains("Garnsworthy") && !first.getBody().contains("Mapstone"));
+        assertNotNull(cursor);
+        assertSame(HttpStatus.OK, second.getStatusCode());
+        assertTrue(second.getBody().contains("Mapstone") && !second.getBody().contains("Garnsworthy"));
+        assertEquals(null, second.getHeaders().getFirst("X-Next-Cursor"));
+        assertSame(HttpStatus.BAD_REQUEST, invalid.getStatusCode());
+        assertEquals(second.getBody(), sameUsers.getBody());
+        assertSame(HttpStatus.GONE, stale.getStatusCode());
+    }
+    
+    @Test
+    public void locationByRadius_userInBothListsOnce() throws Exception { // Test a user returned by both the city search and the users api is only in the results once.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setLocationResponse("London", "51.5073219", "-0.1276474");
+    	dwpTestBuilder.setSearchResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497);
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "latest@test.com", "113.71.242.187", 51.5489435, 0.3860497, true); // Also within the radius, with newer details.
+    	dwpTestBuilder.setUsersResponse(Integer.MIN_VALUE, "Stephen", "Mapstone", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getLocationResults("London")).thenReturn(dwpTestBuilder.getLocationResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(dwpTestBuilder.getUsersResponse());
+        
+        ResponseEntity<String> actualResult = mockApi.getForEntity("http://localhost:" + port + "/city/London/radius/50/users", String.class);
+        
+        assertSame(HttpStatus.OK, actualResult.getStatusCode());
+        assertEquals(dwpTestBuilder.getExpectedResults(), actualResult.getBody()); // Expected results hold the user once with the users api details, and the lowest id first.
+        assertTrue(actualResult.getBody().contains("latest@test.com"));
+    }
+    
+    @Test
+    public void nearestUsers_successWithResults() throws Exception { // Test nearestUsers returns the k nearest users, nearest first, with their distance.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setLocationResponse("London", "51.5073219", "-0.1276474");
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, false);
+    	dwpTestBuilder.setUsersResponse(137, "Phyllys", "Hebbs", "test@test.com", "113.71.242.187", -6.7098551, 111.3479498, false);
+    	dwpTestBuilder.setUsersResponse(138, "Stephen", "Mapstone", "test@test.com", "113.71.242.187", 51.51, -0.13, false);
+    	
+        Mockito.when(dwpMsService.getLocationResults("London")).thenReturn(dwpTestBuilder.getLocationResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(dwpTestBuilder.getUsersResponse());
+        
+        ResponseEntity<APINearestUserResponse[]> actualResult = mockApi.getForEntity("http://localhost:" + port + "/city/London/nearest/2/users", APINearestUserResponse[].class);
+        ResponseEntity<String> tooMany = mockApi.getForEntity("http://localhost:" + port + "/city/London/nearest/1001/users", String.class);
+        
+        assertSame(HttpStatus.OK, actualResult.getStatusCode());
+        assertEquals(2, actualResult.getBody().length);
+        assertEquals(138, actualResult.getBody()[0].getId());
+        assertEquals(136, actualResult.getBody()[1].getId());
+        assertTrue(actualResult.getBody()[0].getDistance() < 1 && actualResult.getBody()[1].getDistance() > 10);
+        assertSame(HttpStatus.INTERNAL_SERVER_ERROR, tooMany.getStatusCode());
+    }
+    
+    @Test
+    public void coordinatesByRadius_successWithResults() throws Exception { // Test coordinatesByRadius filters the users from the given lat/lon, without a city search.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	dwpTestBuilder.setUsersResponse(137, "Phyllys", "Hebbs", "test@test.com", "113.71.242.187", -6.7098551, 111.3479498, false);
+    	dwpTestBuilder.setUsersResponse(138, "Stephen", "Mapstone", "test@test.com", "113.71.242.187", 51.51, -0.13, true);
+    	
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(dwpTestBuilder.getUsersResponse());
+        
+        ResponseEntity<String> actualResult = mockApi.getForEntity("http://localhost:" + port + "/lat/51.5073219/lon/-0.1276474/radius/50/users", String.class);
+        ResponseEntity<String> badLatitude = mockApi.getForEntity("http://localhost:" + port + "/lat/91/lon/-0.1276474/radius/50/users", String.class);
+        
+        assertSame(HttpStatus.OK, actualResult.getStatusCode());
+        assertEquals(dwpTestBuilder.getExpectedResults(), actualResult.getBody());
+        assertSame(HttpStatus.INTERNAL_SERVER_ERROR, badLatitude.getStatusCode()); // Same as the other path variable checks.
+    }
+    
+    @Test
+    public void coordinatesByRadius_cityDistancesNotCached() throws Exception { // Test repeat searches from given co-ordinates never measure city distances, as they can be anywhere.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 52.1234567, -1.7654321, true);
+    	
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.completedFuture(new DwpMsUsersSnapshot(2021, dwpTestBuilder.getUsersResponse().get())));
+        
+        for (int i = 0; i < 5; i++) {
+        	assertSame(HttpStatus.OK, mockApi.getForEntity("http://localhost:" + port + "/lat/52.1234567/lon/-1.7654321/radius/50/users", String.class).getStatusCode());
+        }
+        
+        assertFalse(cityDistanceCache.getCache().asMap().containsKey("52.1234567,-1.7654321"));
+    }
+    
+    @Test
+    public void batchLocationByRadius_resultPerQuery() throws Exception { // Test each batch query gets its own results and status, with each city only looked up once.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setLocationResponse("Batchford", "51.5073219", "-0.1276474");
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	dwpTestBuilder.setUsersResponse(137, "Phyllys", "Hebbs", "test@test.com", "113.71.242.187", -6.7098551, 111.3479498, false);
+    	
+        Mockito.when(dwpMsService.getLocationResults("Batchford")).thenReturn(dwpTestBuilder.getLocationResponse());
+        Mockito.when(dwpMsService.getSearchResults("Batchford")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getLocationResults("Nowhereton")).thenReturn(CompletableFuture.failedFuture(new ResponseStatusException(HttpStatus.NOT_FOUND)));
+        Mockito.when(dwpMsService.getSearchResults("Nowhereton")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(dwpTestBuilder.getUsersResponse());
+        
+        List<APIRadiusQuery> queries = new ArrayList<APIRadiusQuery>();
+        queries.add(radiusQuery("Batchford", 50));
+        queries.add(radiusQuery("Nowhereton", 10));
+        queries.add(radiusQuery("Batchford", 50));
+        queries.add(radiusQuery("Batchford", 1));
+        
+        ResponseEntity<APIRadiusQueryResponse[]> actualResult = mockApi.postForEntity("http://localhost:" + port + "/batch/radius/users", queries, APIRadiusQueryResponse[].class);
+        
+        assertSame(HttpStatus.OK, actualResult.getStatusCode());
+        assertEquals(4, actualResult.getBody().length);
+        assertEquals(200, actualResult.getBody()[0].getStatus());
+        assertEquals(1, actualResult.getBody()[0].getUsers().size());
+        assertEquals(136, actualResult.getBody()[0].getUsers().get(0).getId());
+        assertEquals(404, actualResult.getBody()[1].getStatus());
+        assertEquals(null, actualResult.getBody()[1].getUsers());
+        assertEquals(200, actualResult.getBody()[2].getStatus());
+        assertEquals(204, actualResult.getBody()[3].getStatus()); // No users within a mile.
+        assertEquals("Batchford", actualResult.getBody()[3].getCity());
+        assertEquals(1, actualResult.getBody()[3].getRadius());
+        Mockito.verify(dwpMsService, Mockito.times(1)).getLocationResults("Batchford");
+        Mockito.verify(dwpMsService, Mockito.times(1)).getSearchResults("Batchford");
+    }
+    
+    @Test
+    public void batchLocationByRadius_queryErrorKeptWithQuery() throws Exception { // Test an unexpected error in one query, here a latitude that isn't a number, is a 500 for that query only.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setLocationResponse("Batchford", "51.5073219", "-0.1276474");
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+    	DwpMsApiTestBuilder badTestBuilder = new DwpMsApiTestBuilder();
+    	badTestBuilder.setLocationResponse("Badford", "north", "-0.1276474");
+    	
+        Mockito.when(dwpMsService.getLocationResults("Batchford")).thenReturn(dwpTestBuilder.getLocationResponse());
+        Mockito.when(dwpMsService.getSearchResults("Batchford")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getLocationResults("Badford")).thenReturn(badTestBuilder.getLocationResponse());
+        Mockito.when(dwpMsService.getSearchResults("Badford")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(dwpTestBuilder.getUsersResponse());
+        
+        ResponseEntity<APIRadiusQueryResponse[]> actualResult = mockApi.postForEntity("http://localhost:" + port + "/batch/radius/users",
+        		List.of(radiusQuery("Batchford", 50), radiusQuery("Badford", 50), radiusQuery("Batchford", 60)), APIRadiusQueryResponse[].class);
+        
+        assertSame(HttpStatus.OK, actualResult.getStatusCode());
+        assertEquals(3, actualResult.getBody().length);
+        assertEquals(200, actualResult.getBody()[0].getStatus());
+        assertEquals(500, actualResult.getBody()[1].getStatus());
+        assertEquals("Badford", actualResult.getBody()[1].getCity());
+        assertEquals(null, actualResult.getBody()[1].getUsers());
+        assertEquals(200, actualResult.getBody()[2].getStatus());
+    }
+    
+    @Test
+    public void batchLocationByRadius_badQueries() throws Exception { // Test a batch with no queries, too many queries, or a radius out of range is a bad request.
+    	List<APIRadiusQuery> tooMany = new ArrayList<APIRadiusQuery>();
+    	
+    	for (int i = 0; i < 101; i++) {
+    		tooMany.add(radiusQuery("London", 50));
+    	}
+    	
+        assertSame(HttpStatus.BAD_REQUEST, mockApi.postForEntity("http://localhost:" + port + "/batch/radius/users", new ArrayList<APIRadiusQuery>(), String.class).getStatusCode());
+        assertSame(HttpStatus.BAD_REQUEST, mockApi.postForEntity("http://localhost:" + port + "/batch/radius/users", tooMany, String.class).getStatusCode());
+        assertSame(HttpStatus.BAD_REQUEST, mockApi.postForEntity("http://localhost:" + port + "/batch/radius/users", List.of(radiusQuery("London", 101)), String.class).getStatusCode());
+    }
+    
+    private APIRadiusQuery radiusQuery(String city, int radius) {
+    	APIRadiusQuery query = new APIRadiusQuery();
+    	query.setCity(city);
+    	query.setRadius(radius);
+    	
+    	return query;
+    }
+    
     @Test
     public void locationByRadius_successWithResults() throws Exception { // Test locationByRadius call is a success and returns results.
     	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
@@ -557,4 +966,49 @@ public class DwpMsApiApplicationTest {
         
         assertSame(HttpStatus.INTERNAL_SERVER_ERROR, actualResult.getStatusCode());
     }
-}
+    
+    @Test
+    @DirtiesContext
+    public void locationByRadius_userApiFailedFuture() throws Exception { // Test locationByRadius passes through the status when a service future completes with an error, rather than throwing.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setLocationResponse("London", "51.5073219", "-0.1276474");
+    	dwpTestBuilder.setSearchResponse(135, "Mechelle", "Boam", "test@test.com", "113.71.242.187", -6.5115909, 105.652983);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(CompletableFuture.failedFuture(new CompletionException(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE)))); // Same as an @Async method throwing.
+        Mockito.when(dwpMsService.getLocationResults("London")).thenReturn(dwpTestBuilder.getLocationResponse());
+        
+        ResponseEntity<String> actualResult = mockApi.getForEntity("http://localhost:" + port + "/city/London/radius/50/users", String.class);
+        
+        assertSame(HttpStatus.SERVICE_UNAVAILABLE, actualResult.getStatusCode());
+    }
+    
+    @Test
+    @DirtiesContext
+    public void londonFiftyMileRadius_searchApiFailedFuture() throws Exception { // Test londonFiftyMileRadius passes through the status when a service future completes with an error, rather than throwing.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(CompletableFuture.failedFuture(new ResponseStatusException(HttpStatus.NOT_FOUND)));
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(dwpTestBuilder.getUsersResponse());
+        
+        ResponseEntity<String> actualResult = mockApi.getForEntity("http://localhost:" + port + "/", String.class);
+        
+        assertSame(HttpStatus.NOT_FOUND, actualResult.getStatusCode());
+    }
+    
+    @Test
+    @DirtiesContext
+    public void locationByRadius_asyncTimeout() throws Exception { // Test locationByRadius returns service unavailable if the service futures never complete.
+    	DwpMsApiTestBuilder dwpTestBuilder = new DwpMsApiTestBuilder();
+    	dwpTestBuilder.setLocationResponse("London", "51.5073219", "-0.1276474");
+    	
+        Mockito.when(dwpMsService.getSearchResults("London")).thenReturn(dwpTestBuilder.getSearchResponse());
+        Mockito.when(dwpMsService.getUsersResults()).thenReturn(new CompletableFuture<List<APIUsersResponse>>()); // Never completes.
+        Mockito.when(dwpMsService.getLocationResults("London")).thenReturn(dwpTestBuilder.getLocationResponse());
+        
+        ResponseEntity<String> actualResult = mockApi.getForEntity("http://localhost:" + port + "/city/London/radius/50/users", String.class);
+        
+        assertSame(HttpStatus.SERVICE_UNAVAILABLE, actualResult.getStatusCode());
+    }
+}
\ No newline at end of file
@@ -6,9 +6,9 @@ import gov.dwp.ms.model.APILocationResponse;
 import gov.dwp.ms.model.APIUsersResponse;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import org.springframework.context.annotation.Profile;
 
@@ -19,10 +19,14 @@ public class DwpMsApiTestBuilder {
 	private List<APIUsersResponse> userList = new ArrayList<APIUsersResponse>();
 	private List<APIUsersResponse> searchList = new ArrayList<APIUsersResponse>();
 	private APILocationResponse location = new APILocationResponse();
-	private Set<APIUsersResponse> resultSet = new HashSet<APIUsersResponse>(); 
+	private Map<Integer, APIUsersResponse> usersResults = new LinkedHashMap<Integer, APIUsersResponse>(); // Results by id, so a user added twice is only expected once, the same as the main app.
+	private Map<Integer, APIUsersResponse> searchResults = new LinkedHashMap<Integer, APIUsersResponse>();
 
 	public String getExpectedResults() throws Exception { // Get a sorted list of results for matching purposes.
-		List<APIUsersResponse> expectedResults = new ArrayList<APIUsersResponse>(resultSet); // Convert the set into a list.
+		Map<Integer, APIUsersResponse> results = new LinkedHashMap<Integer, APIUsersResponse>(searchResults);
+		results.putAll(usersResults); // Users api results win over search results with the same id, as they are the latest users data.
+		
+		List<APIUsersResponse> expectedResults = new ArrayList<APIUsersResponse>(results.values()); // Convert the results into a list.
 		Collections.sort(expectedResults, new DwpMsUserSort()); // Sort using the same method as main app to ensure consistency.
 		
 		return getJsonString(expectedResults);
@@ -53,7 +57,7 @@ public class DwpMsApiTestBuilder {
 		userList.add(response); // Add to user list as a return value.
 		
 		if (isResult) {
-			resultSet.add(response); // If this entry has been marked as a positive result, add it to the result set as well.
+			usersResults.putIfAbsent(id, response); // If this entry has been marked as a positive result, add it to the results as well.
 		}
 	}
 	
@@ -68,7 +72,7 @@ public class DwpMsApiTestBuilder {
 		response.setLongitude(longitude);
 		
 		searchList.add(response);
-		resultSet.add(response); // Search responses get added to both the set and list by default as this is behaviour in the main app.
+		searchResults.putIfAbsent(id, response); // Search responses get added to both the results and list by default as this is behaviour in the main app.
 	}
 	
 	public void setLocationResponse(String name, String lat, String lon) { // Creates a location response when called.
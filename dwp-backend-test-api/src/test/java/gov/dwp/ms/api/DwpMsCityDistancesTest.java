@@ -0,0 +1,136 @@
+package gov.dwp.ms.api;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+
+public class DwpMsCityDistancesTest {
+
+	private Random random = new Random(42); // Fixed seed so any failure can be reproduced.
+
+	@Test
+	public void countWithin_sameUsersAsRadiusCheck() throws Exception { // Test the prefix for every radius holds exactly the users the radius check accepts, in both distance modes.
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(new DwpMsUsersSnapshot(1, randomUsers(20000)));
+
+		for (String mode : new String[] {"exact", "fast"}) {
+			DwpMsDistanceEngine engine = new DwpMsDistanceEngine(mode);
+
+			for (int i = 0; i < 10; i++) {
+				double lat = 50 + random.nextDouble() * 8;
+				double lon = -6 + random.nextDouble() * 8;
+				DwpMsCityDistances distances = DwpMsCityDistances.compute(index, engine, lat, lon);
+
+				for (int radius = 1; radius <= DwpMsCityDistances.MAX_RADIUS; radius += 11) {
+					Set<Integer> expected = new HashSet<Integer>();
+					DwpMsSearchArea area = new DwpMsSearchArea(lat, lon, radius);
+					index.forEachCandidate(area, entry -> {
+						if (engine.isWithinRadius(area, index.getLatitude(entry), index.getLongitude(entry))) {
+							expected.add(index.getUser(entry).getId());
+						}
+					});
+
+					Set<Integer> actual = new HashSet<Integer>();
+					for (int n = 0; n < distances.countWithin(radius); n++) {
+						actual.add(distances.getUser(n).getId());
+					}
+
+					assertEquals(expected, actual);
+				}
+
+				for (int n = 1; n < distances.size(); n++) {
+					assertTrue(distances.getMiles(n - 1) <= distances.getMiles(n)); // Nearest first.
+				}
+			}
+		}
+	}
+
+	@Test
+	public void get_reusedUntilSnapshotChanges() throws Exception { // Test a city's distances are measured once per snapshot version and dropped for older snapshots.
+		DwpMsCityDistanceCache cache = new DwpMsCityDistanceCache(10, 1, Runnable::run); // Measure on the calling thread so the results are ready straight away.
+		DwpMsDistanceEngine engine = new DwpMsDistanceEngine("exact");
+		List<APIUsersResponse> users = randomUsers(1000);
+		DwpMsUserGridIndex first = new DwpMsUserGridIndex(new DwpMsUsersSnapshot(1, users));
+		DwpMsUserGridIndex second = new DwpMsUserGridIndex(new DwpMsUsersSnapshot(2, users));
+
+		DwpMsCityDistances london = cache.get(first, engine, 51.5073219, -0.1276474);
+
+		assertSame(london, cache.get(first, engine, 51.5073219, -0.1276474));
+		assertNotSame(london, cache.get(first, engine, 51.5073220, -0.1276474)); // A different geocode is a different entry.
+
+		DwpMsCityDistances updated = cache.get(second, engine, 51.5073219, -0.1276474);
+
+		assertNotSame(london, updated);
+		assertEquals(2, updated.getVersion());
+		assertNull(cache.get(first, engine, 51.5073219, -0.1276474)); // A request still on the older snapshot searches the index as normal...
+		assertSame(updated, cache.get(second, engine, 51.5073219, -0.1276474)); // ...without replacing the newer entry.
+
+		cache.invalidateBefore(2);
+
+		assertEquals(1, cache.getCache().asMap().size());
+	}
+
+	@Test
+	public void get_notReadyWhileMeasuring() throws Exception { // Test requests don't wait for the distances to be measured.
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		DwpMsCityDistanceCache cache = new DwpMsCityDistanceCache(10, 1, tasks::add); // Tasks only run when the test says so.
+		DwpMsDistanceEngine engine = new DwpMsDistanceEngine("exact");
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(new DwpMsUsersSnapshot(1, randomUsers(1000)));
+
+		assertNull(cache.get(index, engine, 51.5073219, -0.1276474));
+		assertNull(cache.get(index, engine, 51.5073219, -0.1276474));
+		assertEquals(1, tasks.size()); // Measured once, however many requests arrive meanwhile.
+
+		tasks.get(0).run();
+
+		assertEquals(1, cache.get(index, engine, 51.5073219, -0.1276474).getVersion());
+	}
+
+	@Test
+	public void get_onlyMeasuredOnceSearchedEnough() throws Exception { // Test a location is only measured once it has been searched min hits times.
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		DwpMsCityDistanceCache cache = new DwpMsCityDistanceCache(10, 3, tasks::add);
+		DwpMsDistanceEngine engine = new DwpMsDistanceEngine("exact");
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(new DwpMsUsersSnapshot(1, randomUsers(1000)));
+
+		assertNull(cache.get(index, engine, 51.5073219, -0.1276474));
+		assertNull(cache.get(index, engine, 51.5073219, -0.1276474));
+		assertNull(cache.get(index, engine, 53.4807593, -2.2426305));
+		assertEquals(0, tasks.size()); // Not searched enough yet.
+
+		assertNull(cache.get(index, engine, 51.5073219, -0.1276474));
+		assertEquals(1, tasks.size());
+
+		tasks.get(0).run();
+
+		assertEquals(1, cache.get(index, engine, 51.5073219, -0.1276474).getVersion());
+		assertNull(cache.get(index, engine, 53.4807593, -2.2426305));
+		assertEquals(1, tasks.size());
+	}
+
+	private List<APIUsersResponse> randomUsers(int count) { // Users clustered around the UK.
+		List<APIUsersResponse> users = new ArrayList<APIUsersResponse>();
+
+		for (int i = 0; i < count; i++) {
+			APIUsersResponse user = new APIUsersResponse();
+			user.setId(i);
+			user.setLatitude(49 + random.nextDouble() * 10);
+			user.setLongitude(-7 + random.nextDouble() * 10);
+			users.add(user);
+		}
+
+		return users;
+	}
+}
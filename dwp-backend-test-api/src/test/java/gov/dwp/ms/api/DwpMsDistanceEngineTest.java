@@ -0,0 +1,70 @@
+package gov.dwp.ms.api;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import net.sf.geographiclib.Geodesic;
+import net.sf.geographiclib.GeodesicData;
+import org.junit.Test;
+
+
+public class DwpMsDistanceEngineTest {
+
+	private Random random = new Random(42); // Fixed seed so any failure can be reproduced.
+
+	@Test
+	public void isWithinRadius_exactModeMatchesGeodesic() throws Exception { // Test the tiered checks give the same answer as the full geodesic solve, including points right on the boundary.
+		DwpMsDistanceEngine engine = new DwpMsDistanceEngine("exact");
+
+		for (int i = 0; i < 200000; i++) {
+			double lat = random.nextDouble() * 180 - 90;
+			double lon = random.nextDouble() * 360 - 180;
+			int radius = 1 + random.nextInt(100);
+			double[] point = nearBoundary(lat, lon, radius);
+
+			boolean expected = Geodesic.WGS84.Inverse(lat, lon, point[0], point[1]).s12 / 1609.34 <= radius;
+
+			assertEquals(expected, engine.isWithinRadius(new DwpMsSearchArea(lat, lon, radius), point[0], point[1]));
+		}
+	}
+
+	@Test
+	public void isWithinRadius_fastModeWithinSphereError() throws Exception { // Test fast mode only disagrees with the exact check within the spherical error margin.
+		DwpMsDistanceEngine engine = new DwpMsDistanceEngine("fast");
+
+		for (int i = 0; i < 100000; i++) {
+			double lat = random.nextDouble() * 180 - 90;
+			double lon = random.nextDouble() * 360 - 180;
+			int radius = 1 + random.nextInt(100);
+			double[] point = nearBoundary(lat, lon, radius);
+
+			double miles = Geodesic.WGS84.Inverse(lat, lon, point[0], point[1]).s12 / 1609.34;
+
+			if (engine.isWithinRadius(new DwpMsSearchArea(lat, lon, radius), point[0], point[1]) != (miles <= radius)) {
+				assertTrue(Math.abs(miles - radius) <= radius * 0.01);
+			}
+		}
+	}
+
+	@Test
+	public void exactDistance_matchesDefaultMask() throws Exception { // Test asking for the distance only gives the same distance as the default geodesic solve.
+		for (int i = 0; i < 10000; i++) {
+			double lat1 = random.nextDouble() * 180 - 90;
+			double lon1 = random.nextDouble() * 360 - 180;
+			double lat2 = random.nextDouble() * 180 - 90;
+			double lon2 = random.nextDouble() * 360 - 180;
+
+			assertEquals(Geodesic.WGS84.Inverse(lat1, lon1, lat2, lon2).s12, DwpMsDistanceEngine.exactDistance(lat1, lon1, lat2, lon2));
+		}
+	}
+
+	private double[] nearBoundary(double lat, double lon, int radius) { // Random point between 0 and 2 times the radius away, weighted towards the radius boundary.
+		double distance = radius * 1609.34 * (1 + (random.nextDouble() - 0.5) * (random.nextBoolean() ? 0.05 : 2));
+		double azimuth = random.nextDouble() * 360 - 180;
+		GeodesicData data = Geodesic.WGS84.Direct(lat, lon, azimuth, distance);
+
+		return new double[] {data.lat2, data.lon2};
+	}
+}
@@ -0,0 +1,92 @@
+package gov.dwp.ms.api;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+
+public class DwpMsNearestUsersTest {
+
+	private Random random = new Random(42); // Fixed seed so any failure can be reproduced.
+
+	@Test
+	public void find_sameAsFullSort() throws Exception { // Test the best-first search finds the same nearest users as measuring and sorting everyone, in both distance modes.
+		List<APIUsersResponse> users = randomUsers(20000);
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(new DwpMsUsersSnapshot(1, users));
+
+		for (String mode : new String[] {"exact", "fast"}) {
+			DwpMsDistanceEngine engine = new DwpMsDistanceEngine(mode);
+
+			for (int i = 0; i < 30; i++) {
+				double lat = i % 3 == 0 ? random.nextDouble() * 180 - 90 : 50 + random.nextDouble() * 8;
+				double lon = i % 3 == 0 ? random.nextDouble() * 360 - 180 : -6 + random.nextDouble() * 8;
+
+				assertNearest(index, engine, lat, lon, 1 + random.nextInt(200));
+			}
+		}
+	}
+
+	@Test
+	public void find_edgeLocations() throws Exception { // Test locations by the poles and the antimeridian, where the nearest users are across the edge of the grid.
+		List<APIUsersResponse> users = randomUsers(10000);
+		users.add(buildUser(-1, 89.9, 10));
+		users.add(buildUser(-2, 89.9, -170));
+		users.add(buildUser(-3, 10, 179.9));
+		users.add(buildUser(-4, 10, -179.9));
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(new DwpMsUsersSnapshot(1, users));
+		DwpMsDistanceEngine engine = new DwpMsDistanceEngine("exact");
+
+		double[][] locations = {{89.5, 0}, {-89.5, 120}, {10, 179.8}, {10, -179.8}, {0, 180}, {90, 0}, {-90, 0}};
+
+		for (double[] location : locations) {
+			assertNearest(index, engine, location[0], location[1], 10);
+		}
+	}
+
+	private void assertNearest(DwpMsUserGridIndex index, DwpMsDistanceEngine engine, double lat, double lon, int k) {
+		DwpMsNearestUsers nearest = DwpMsNearestUsers.find(index, engine, lat, lon, k);
+		double[] all = new double[index.size()];
+
+		for (int entry = 0; entry < index.size(); entry++) {
+			all[entry] = engine.distanceMiles(lat, lon, index.getLatitude(entry), index.getLongitude(entry));
+		}
+
+		Arrays.sort(all);
+
+		assertEquals(Math.min(k, all.length), nearest.size());
+
+		for (int i = 0; i < nearest.size(); i++) {
+			assertEquals(all[i], nearest.getMiles(i)); // Distances match the full sort, so no nearer user was missed.
+		}
+	}
+
+	private List<APIUsersResponse> randomUsers(int count) { // Half the users spread around the world and half clustered around the UK.
+		List<APIUsersResponse> users = new ArrayList<APIUsersResponse>();
+
+		for (int i = 0; i < count; i++) {
+			if (i % 2 == 0) {
+				users.add(buildUser(i, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+			} else {
+				users.add(buildUser(i, 50 + random.nextDouble() * 8, -6 + random.nextDouble() * 8));
+			}
+		}
+
+		return users;
+	}
+
+	private APIUsersResponse buildUser(int id, double lat, double lon) {
+		APIUsersResponse user = new APIUsersResponse();
+		user.setId(id);
+		user.setLatitude(lat);
+		user.setLongitude(lon);
+
+		return user;
+	}
+}
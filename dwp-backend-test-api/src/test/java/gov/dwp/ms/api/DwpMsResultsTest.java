@@ -0,0 +1,170 @@
+package gov.dwp.ms.api;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import gov.dwp.ms.service.DwpMsUsersSnapshotBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+
+public class DwpMsResultsTest {
+
+	private Random random = new Random(42); // Fixed seed so any failure can be reproduced.
+	private ObjectMapper objectMapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_ABSENT); // Same inclusion as spring.jackson.default-property-inclusion.
+
+	@Test
+	public void toJson_sameBytesAsMapper() throws Exception { // Test the json written from fragments matches the mapper serialising the list, for heap and off heap snapshots.
+		List<APIUsersResponse> users = randomUsers(2000);
+		List<APIUsersResponse> searchUsers = randomUsers(5);
+
+		for (DwpMsUsersSnapshot snapshot : new DwpMsUsersSnapshot[] {DwpMsUsersSnapshotBuilder.of(users).build(1, false), DwpMsUsersSnapshotBuilder.of(users).build(1, true)}) {
+			DwpMsUserJsonFragments fragments = new DwpMsUserJsonFragments(objectMapper, snapshot, 1 << 20);
+			int[] positions = new int[500];
+
+			for (int i = 0; i < positions.length; i++) {
+				positions[i] = random.nextInt(snapshot.size());
+			}
+
+			DwpMsResults results = new DwpMsResults(snapshot, positions, positions.length, searchUsers);
+			byte[] expected = objectMapper.writeValueAsBytes(results.toList());
+
+			assertArrayEquals(expected, results.toJson(objectMapper, fragments));
+			assertArrayEquals(expected, results.toJson(objectMapper, fragments)); // Again, now from stored fragments.
+			assertArrayEquals(expected, results.toJson(objectMapper, null));
+			assertSame(fragments.get(positions[0]), fragments.get(positions[0]));
+		}
+	}
+
+	@Test
+	public void get_boundedByBytes() throws Exception { // Test stored json is dropped once over the max bytes, and dropped users are written again the same.
+		DwpMsUsersSnapshot snapshot = DwpMsUsersSnapshotBuilder.of(randomUsers(2000)).build(1, true);
+		DwpMsUserJsonFragments fragments = new DwpMsUserJsonFragments(objectMapper, snapshot, 20000);
+
+		for (int i = 0; i < snapshot.size(); i++) {
+			assertArrayEquals(objectMapper.writeValueAsBytes(snapshot.get(i)), fragments.get(i));
+		}
+
+		fragments.getCache().cleanUp(); // Eviction runs in the background, so wait for it.
+
+		assertTrue(fragments.getCache().policy().eviction().get().weightedSize().getAsLong() <= 20000);
+		assertTrue(fragments.getCache().estimatedSize() < snapshot.size());
+		assertArrayEquals(objectMapper.writeValueAsBytes(snapshot.get(0)), fragments.get(0));
+	}
+
+	@Test
+	public void toList_sortedById() throws Exception { // Test snapshot and search users come back merged in id order.
+		List<APIUsersResponse> users = randomUsers(100);
+		DwpMsUsersSnapshot snapshot = new DwpMsUsersSnapshot(1, users);
+		List<APIUsersResponse> searchUsers = randomUsers(3);
+
+		List<APIUsersResponse> list = new DwpMsResults(snapshot, new int[] {5, 50, 7, 99}, 3, searchUsers).toList();
+
+		assertEquals(6, list.size());
+
+		for (int i = 1; i < list.size(); i++) {
+			assertEquals(true, list.get(i - 1).getId() <= list.get(i).getId());
+		}
+	}
+
+	@Test
+	public void page_sameAsFullSort() throws Exception { // Test paging through with the bounded top-k gives the same users, in the same order, as the full sorted list.
+		List<APIUsersResponse> users = randomUsers(5000);
+		List<APIUsersResponse> searchUsers = randomUsers(3);
+
+		for (int i = 0; i < users.size(); i++) {
+			users.get(i).setId((i * 7919) % 5000 * 2); // Unique even ids in a jumbled order, as the cursor is by id.
+		}
+
+		for (int i = 0; i < searchUsers.size(); i++) {
+			searchUsers.get(i).setId(i * 1000 + 1);
+		}
+
+		DwpMsUsersSnapshot snapshot = new DwpMsUsersSnapshot(7, users);
+		int[] positions = new int[snapshot.size()];
+
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = i;
+		}
+
+		List<APIUsersResponse> expected = new DwpMsResults(snapshot, positions, positions.length, searchUsers).toList();
+
+		for (DwpMsIdOrder idOrder : new DwpMsIdOrder[] {null, new DwpMsIdOrder(snapshot)}) { // Sorted and bitmap ordered.
+			List<APIUsersResponse> paged = new ArrayList<APIUsersResponse>();
+			DwpMsPage page = DwpMsPage.of(333, null);
+			DwpMsResults results;
+
+			do {
+				results = new DwpMsResults(snapshot, positions, positions.length, searchUsers, page, idOrder);
+				assertEquals(true, results.size() <= 333);
+
+				paged.addAll(results.toList());
+				page = DwpMsPage.of(333, DwpMsPage.cursor(snapshot, results.getLastId()));
+			} while (results.hasMore());
+
+			assertEquals(expected.size(), paged.size());
+
+			for (int i = 0; i < paged.size(); i++) {
+				assertEquals(expected.get(i).getId(), paged.get(i).getId());
+			}
+		}
+	}
+
+	@Test
+	public void merge_eachIdOnce() throws Exception { // Test users in both the search results and the radius results, or in either twice, are only returned once, whether ordered by sorting or by the bitmap.
+		List<APIUsersResponse> users = randomUsers(3000);
+
+		for (APIUsersResponse user : users) {
+			user.setId(user.getId() % 500); // Lots of repeated ids, including negative ones.
+		}
+
+		DwpMsUsersSnapshot snapshot = new DwpMsUsersSnapshot(3, users);
+		List<APIUsersResponse> searchUsers = new ArrayList<APIUsersResponse>(users.subList(0, 20)); // Same users as the snapshot has, but different objects once it creates them.
+		searchUsers.add(searchUsers.get(0));
+		int[] positions = new int[1000];
+
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = i * 3;
+		}
+
+		List<APIUsersResponse> sorted = new DwpMsResults(snapshot, positions, positions.length, searchUsers, DwpMsPage.ALL, null).toList();
+		List<APIUsersResponse> bitmap = new DwpMsResults(snapshot, positions, positions.length, searchUsers, DwpMsPage.ALL, new DwpMsIdOrder(snapshot)).toList();
+
+		assertEquals(sorted.size(), bitmap.size());
+
+		for (int i = 0; i < sorted.size(); i++) {
+			assertEquals(sorted.get(i).getId(), bitmap.get(i).getId());
+
+			if (i > 0) {
+				assertEquals(true, sorted.get(i - 1).getId() < sorted.get(i).getId());
+			}
+		}
+	}
+
+	private List<APIUsersResponse> randomUsers(int count) { // Some users are missing details, which non_absent leaves out of the json.
+		List<APIUsersResponse> users = new ArrayList<APIUsersResponse>();
+
+		for (int i = 0; i < count; i++) {
+			APIUsersResponse user = new APIUsersResponse();
+			user.setId(random.nextInt(100000) - 50000);
+			user.setFirst_name(i % 7 == 0 ? null : "Firsté \"" + i + "\"");
+			user.setLast_name("Last" + i);
+			user.setEmail(i % 5 == 0 ? null : "user" + i + "@test.com");
+			user.setIp_address("10.0.0." + (i % 256));
+			user.setLatitude(random.nextDouble() * 180 - 90);
+			user.setLongitude(random.nextDouble() * 360 - 180);
+			users.add(user);
+		}
+
+		return users;
+	}
+}
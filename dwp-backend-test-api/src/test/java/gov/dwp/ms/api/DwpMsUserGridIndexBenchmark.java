@@ -0,0 +1,117 @@
+package gov.dwp.ms.api;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import net.sf.geographiclib.Geodesic;
+
+
+public class DwpMsUserGridIndexBenchmark { // Compares a full scan of the users list against the grid index. Not a unit test, run the main method from the IDE or with the test classpath.
+
+	private static final double[][] CITIES = {{51.5073219, -0.1276474}, {53.4794892, -2.2451148}, {52.4796992, -1.9026911}, {55.8609825, -4.2488787}, {51.4538022, -2.5972985}};
+
+	public static void main(String[] args) {
+		int[] sizes = args.length > 0 ? new int[] {Integer.parseInt(args[0])} : new int[] {10000, 100000, 1000000};
+
+		for (int size : sizes) {
+			run(size);
+		}
+	}
+
+	private static void run(int size) {
+		Random random = new Random(42);
+		List<APIUsersResponse> users = new ArrayList<APIUsersResponse>(size);
+
+		for (int i = 0; i < size; i++) { // Half the users spread around the world and half clustered around the UK, which is worst case for the UK queries below.
+			APIUsersResponse user = new APIUsersResponse();
+			user.setId(i);
+			user.setLatitude(i % 2 == 0 ? random.nextDouble() * 180 - 90 : 50 + random.nextDouble() * 8);
+			user.setLongitude(i % 2 == 0 ? random.nextDouble() * 360 - 180 : -6 + random.nextDouble() * 8);
+			users.add(user);
+		}
+
+		long buildStart = System.nanoTime();
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(1, users);
+		long buildNanos = System.nanoTime() - buildStart;
+
+		int iterations = Math.max(5, 2000000 / size);
+		long matches = 0;
+
+		for (int warmup = 0; warmup < 2; warmup++) { // Let the JIT compile every path before timing them.
+			matches += fullScan(users, iterations);
+			matches += indexScan(index, iterations);
+			matches += tieredScan(index, iterations);
+		}
+
+		long scanStart = System.nanoTime();
+		matches += fullScan(users, iterations);
+		long scanNanos = (System.nanoTime() - scanStart) / iterations;
+
+		long indexStart = System.nanoTime();
+		matches += indexScan(index, iterations);
+		long indexNanos = (System.nanoTime() - indexStart) / iterations;
+
+		long tieredStart = System.nanoTime();
+		matches += tieredScan(index, iterations);
+		long tieredNanos = (System.nanoTime() - tieredStart) / iterations;
+
+		System.out.printf("users=%d build=%.1fms fullScan=%.3fms/query index=%.3fms/query (%.1fx) index+tiered=%.3fms/query (%.1fx) (%d)%n",
+				size, buildNanos / 1e6, scanNanos / 1e6, indexNanos / 1e6, (double) scanNanos / indexNanos, tieredNanos / 1e6, (double) scanNanos / tieredNanos, matches);
+	}
+
+	private static long fullScan(List<APIUsersResponse> users, int iterations) {
+		long matches = 0;
+
+		for (int i = 0; i < iterations; i++) {
+			double[] city = CITIES[i % CITIES.length];
+
+			for (APIUsersResponse u : users) {
+				if (Geodesic.WGS84.Inverse(city[0], city[1], u.getLatitude(), u.getLongitude()).s12 / 1609.34 <= 50) {
+					matches++;
+				}
+			}
+		}
+
+		return matches;
+	}
+
+	private static long indexScan(DwpMsUserGridIndex index, int iterations) {
+		long matches = 0;
+
+		for (int i = 0; i < iterations; i++) {
+			double[] city = CITIES[i % CITIES.length];
+
+			for (APIUsersResponse u : index.getCandidates(DwpMsSearchArea.ofMiles(city[0], city[1], 50))) {
+				if (Geodesic.WGS84.Inverse(city[0], city[1], u.getLatitude(), u.getLongitude()).s12 / 1609.34 <= 50) {
+					matches++;
+				}
+			}
+		}
+
+		return matches;
+	}
+
+	private static long tieredScan(DwpMsUserGridIndex index, int iterations) {
+		DwpMsDistanceEngine engine = new DwpMsDistanceEngine("exact");
+		long matches = 0;
+
+		for (int i = 0; i < iterations; i++) {
+			double[] city = CITIES[i % CITIES.length];
+			DwpMsSearchArea area = DwpMsSearchArea.ofMiles(city[0], city[1], 50);
+			long[] found = new long[1];
+
+			index.forEachCandidate(area, entry -> { // Same as the api helper, scanning the index columns and only creating users that match.
+				if (engine.isWithinRadius(area, index.getLatitude(entry), index.getLongitude(entry))) {
+					index.getUser(entry);
+					found[0]++;
+				}
+			});
+
+			matches += found[0];
+		}
+
+		return matches;
+	}
+}
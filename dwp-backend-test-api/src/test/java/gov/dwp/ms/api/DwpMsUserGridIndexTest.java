@@ -0,0 +1,148 @@
+package gov.dwp.ms.api;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import gov.dwp.ms.service.DwpMsUsersSnapshotBuilder;
+import gov.dwp.ms.service.DwpMsUsersSnapshotStore;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import net.sf.geographiclib.Geodesic;
+import org.junit.Test;
+
+
+public class DwpMsUserGridIndexTest {
+
+	private Random random = new Random(42); // Fixed seed so any failure can be reproduced.
+
+	@Test
+	public void getCandidates_containsAllUsersWithinRadius() throws Exception { // Test the index never misses a user that a full scan would find.
+		List<APIUsersResponse> users = randomUsers(10000);
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(1, users);
+
+		for (int i = 0; i < 100; i++) {
+			double lat = random.nextDouble() * 180 - 90;
+			double lon = random.nextDouble() * 360 - 180;
+			int radius = 1 + random.nextInt(100);
+
+			assertEquals(fullScan(users, lat, lon, radius), indexScan(index, lat, lon, radius));
+		}
+	}
+
+	@Test
+	public void getCandidates_edgeLocations() throws Exception { // Test search areas crossing the antimeridian and containing the poles.
+		List<APIUsersResponse> users = randomUsers(10000);
+		users.add(buildUser(-1, 89.9, 10));
+		users.add(buildUser(-2, 89.9, -170));
+		users.add(buildUser(-3, 10, 179.9));
+		users.add(buildUser(-4, 10, -179.9));
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(1, users);
+
+		double[][] locations = {{89.5, 0}, {-89.5, 120}, {10, 179.5}, {10, -179.5}, {0, 180}, {90, 0}, {-90, 0}};
+
+		for (double[] location : locations) {
+			for (int radius = 1; radius <= 100; radius += 9) {
+				assertEquals(fullScan(users, location[0], location[1], radius), indexScan(index, location[0], location[1], radius));
+			}
+		}
+	}
+
+	@Test
+	public void getCandidates_offHeapSnapshot() throws Exception { // Test an index over an off heap snapshot, which reads co-ords in place, finds the same users.
+		List<APIUsersResponse> users = randomUsers(10000);
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(DwpMsUsersSnapshotBuilder.of(users).build(1, true));
+
+		for (int i = 0; i < 100; i++) {
+			double lat = 50 + random.nextDouble() * 8;
+			double lon = -6 + random.nextDouble() * 8;
+			int radius = 1 + random.nextInt(100);
+
+			assertEquals(fullScan(users, lat, lon, radius), indexScan(index, lat, lon, radius));
+		}
+	}
+
+	@Test
+	public void update_sameAsFullBuild() throws Exception { // Test an index updated with a snapshot's changes matches one built from scratch.
+		List<APIUsersResponse> users = randomUsers(10000);
+		DwpMsUsersSnapshotStore store = new DwpMsUsersSnapshotStore();
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(store.publish(users));
+
+		for (int round = 0; round < 5; round++) {
+			users = new ArrayList<APIUsersResponse>(users);
+
+			for (int i = 0; i < 200; i++) {
+				users.remove(random.nextInt(users.size()));
+				users.add(buildUser(10000 + round * 200 + i, 50 + random.nextDouble() * 8, -6 + random.nextDouble() * 8));
+				users.get(random.nextInt(users.size())).setLatitude(random.nextDouble() * 180 - 90); // Moved users (the list is a copy, but the users are shared so only ever move them).
+			}
+
+			DwpMsUsersSnapshot snapshot = store.publish(DwpMsUsersSnapshotBuilder.of(users));
+			index = DwpMsUserGridIndex.update(index, snapshot);
+			DwpMsUserGridIndex rebuilt = new DwpMsUserGridIndex(snapshot);
+
+			assertTrue(snapshot.getDelta() != null);
+			assertEquals(rebuilt.size(), index.size());
+
+			for (int entry = 0; entry < index.size(); entry++) {
+				assertEquals(rebuilt.getUser(entry).getId(), index.getUser(entry).getId());
+				assertEquals(rebuilt.getLatitude(entry), index.getLatitude(entry));
+				assertEquals(rebuilt.getLongitude(entry), index.getLongitude(entry));
+			}
+		}
+	}
+
+	@Test
+	public void getCandidates_onlySearchesNearbyCells() throws Exception { // Test a London query only looks at a small part of a worldwide users list.
+		List<APIUsersResponse> users = randomUsers(10000);
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(1, users);
+
+		int candidates = index.getCandidates(DwpMsSearchArea.ofMiles(51.5073219, -0.1276474, 50)).size();
+
+		assertTrue(candidates < users.size() / 10); // The UK cluster is 8 degrees square, so around 5% of users are in cells near London.
+	}
+
+	private Set<Integer> fullScan(List<APIUsersResponse> users, double lat, double lon, int radius) { // Same check the helper used to run against every user.
+		Set<Integer> ids = new HashSet<Integer>();
+
+		for (APIUsersResponse u : users) {
+			if (Geodesic.WGS84.Inverse(lat, lon, u.getLatitude(), u.getLongitude()).s12 / 1609.34 <= radius) {
+				ids.add(u.getId());
+			}
+		}
+
+		return ids;
+	}
+
+	private Set<Integer> indexScan(DwpMsUserGridIndex index, double lat, double lon, int radius) {
+		return fullScan(index.getCandidates(DwpMsSearchArea.ofMiles(lat, lon, radius)), lat, lon, radius);
+	}
+
+	private List<APIUsersResponse> randomUsers(int count) { // Half the users spread around the world and half clustered around the UK.
+		List<APIUsersResponse> users = new ArrayList<APIUsersResponse>();
+
+		for (int i = 0; i < count; i++) {
+			if (i % 2 == 0) {
+				users.add(buildUser(i, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+			} else {
+				users.add(buildUser(i, 50 + random.nextDouble() * 8, -6 + random.nextDouble() * 8));
+			}
+		}
+
+		return users;
+	}
+
+	private APIUsersResponse buildUser(int id, double lat, double lon) {
+		APIUsersResponse user = new APIUsersResponse();
+		user.setId(id);
+		user.setLatitude(lat);
+		user.setLongitude(lon);
+
+		return user;
+	}
+}
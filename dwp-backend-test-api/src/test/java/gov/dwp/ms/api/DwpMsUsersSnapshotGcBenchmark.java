@@ -0,0 +1,95 @@
+package gov.dwp.ms.api;
+
+
+import gov.dwp.ms.service.DwpMsUsersSnapshot;
+import gov.dwp.ms.service.DwpMsUsersSnapshotBuilder;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+
+public class DwpMsUsersSnapshotGcBenchmark { // Compares GC pauses with a heap and an off heap users snapshot. Not a unit test, run the main method with the test classpath.
+	// Run each storage in its own JVM with the same heap settings so they don't affect each other, e.g.
+	//   java -Xmx2g -cp <test classpath> gov.dwp.ms.api.DwpMsUsersSnapshotGcBenchmark heap 2000000
+	//   java -Xmx2g -cp <test classpath> gov.dwp.ms.api.DwpMsUsersSnapshotGcBenchmark offheap 2000000
+
+	private static final double[][] CITIES = {{51.5073219, -0.1276474}, {53.4794892, -2.2451148}, {52.4796992, -1.9026911}, {55.8609825, -4.2488787}, {51.4538022, -2.5972985}};
+
+	public static void main(String[] args) {
+		boolean offHeap = args.length > 0 && "offheap".equalsIgnoreCase(args[0]);
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+		DwpMsUsersSnapshot snapshot = buildSnapshot(size, offHeap);
+		DwpMsUserGridIndex index = new DwpMsUserGridIndex(snapshot);
+		DwpMsDistanceEngine engine = new DwpMsDistanceEngine("exact");
+
+		for (int i = 0; i < 3; i++) {
+			System.gc(); // Settle the heap so the snapshot is in the old generation before measuring.
+		}
+
+		long fullGcStart = System.nanoTime();
+		System.gc();
+		long fullGcNanos = System.nanoTime() - fullGcStart;
+
+		Runtime runtime = Runtime.getRuntime();
+		long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+
+		long[] before = gcTotals();
+		long start = System.nanoTime();
+		long matches = 0;
+		int queries = 0;
+
+		while (System.nanoTime() - start < 20_000_000_000L) { // 20 seconds of radius queries, each creating its result users and some request garbage.
+			double[] city = CITIES[queries % CITIES.length];
+			DwpMsSearchArea area = DwpMsSearchArea.ofMiles(city[0], city[1], 50);
+			long[] found = new long[1];
+
+			index.forEachCandidate(area, entry -> {
+				if (engine.isWithinRadius(area, index.getLatitude(entry), index.getLongitude(entry))) {
+					found[0] += index.getUser(entry).getId() >= 0 ? 1 : 0;
+				}
+			});
+
+			byte[][] requestGarbage = new byte[64][];
+
+			for (int i = 0; i < requestGarbage.length; i++) {
+				requestGarbage[i] = new byte[1024]; // Roughly what serialising a response allocates.
+			}
+
+			matches += found[0] + requestGarbage.length;
+			queries++;
+		}
+
+		long[] after = gcTotals();
+
+		System.out.printf("storage=%s users=%d heapUsed=%.0fMB fullGc=%.1fms queries=%d gcCount=%d gcTime=%dms meanPause=%.2fms (%d)%n",
+				offHeap ? "offheap" : "heap", size, heapUsed / 1e6, fullGcNanos / 1e6, queries, after[0] - before[0], after[1] - before[1],
+				after[0] == before[0] ? 0 : (double) (after[1] - before[1]) / (after[0] - before[0]), matches);
+	}
+
+	private static DwpMsUsersSnapshot buildSnapshot(int size, boolean offHeap) { // Half the users spread around the world and half clustered around the UK.
+		Random random = new Random(42);
+		String[] names = {"Ancell", "Phyllys", "Stephen", "Hugo", "Terry", "Mechelle", "Tiffi", "Katee"};
+		DwpMsUsersSnapshotBuilder builder = new DwpMsUsersSnapshotBuilder();
+
+		for (int i = 0; i < size; i++) {
+			builder.add(i, names[random.nextInt(names.length)], names[random.nextInt(names.length)] + "son", "user" + i + "@example.com", random.nextInt(256) + "." + random.nextInt(256) + ".1.2",
+					i % 2 == 0 ? random.nextDouble() * 180 - 90 : 50 + random.nextDouble() * 8,
+					i % 2 == 0 ? random.nextDouble() * 360 - 180 : -6 + random.nextDouble() * 8);
+		}
+
+		return builder.build(1, offHeap);
+	}
+
+	private static long[] gcTotals() { // Total collections and collection time across all collectors.
+		long count = 0;
+		long time = 0;
+
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			time += Math.max(0, gc.getCollectionTime());
+		}
+
+		return new long[] {count, time};
+	}
+}
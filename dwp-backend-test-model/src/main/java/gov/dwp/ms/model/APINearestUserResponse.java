@@ -0,0 +1,15 @@
+package gov.dwp.ms.model;
+
+
+public class APINearestUserResponse extends APIUsersResponse {
+
+    private double distance; // Miles from the searched city.
+    
+    public double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(double value) {
+        this.distance = value;
+    }
+}
@@ -0,0 +1,24 @@
+package gov.dwp.ms.model;
+
+
+public class APIRadiusQuery {
+
+    private String city;
+    private int radius;
+    
+    public String getCity() {
+        return city;
+    }
+
+    public void setCity(String value) {
+        this.city = value;
+    }
+    
+    public int getRadius() {
+        return radius;
+    }
+
+    public void setRadius(int value) {
+        this.radius = value;
+    }
+}
@@ -0,0 +1,45 @@
+package gov.dwp.ms.model;
+
+
+import java.util.List;
+
+
+public class APIRadiusQueryResponse {
+
+    private String city;
+    private int radius;
+    private int status; // Http status the same query would get from the radius endpoint.
+    private List<APIUsersResponse> users; // Null unless the status is 200.
+    
+    public String getCity() {
+        return city;
+    }
+
+    public void setCity(String value) {
+        this.city = value;
+    }
+    
+    public int getRadius() {
+        return radius;
+    }
+
+    public void setRadius(int value) {
+        this.radius = value;
+    }
+    
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int value) {
+        this.status = value;
+    }
+    
+    public List<APIUsersResponse> getUsers() {
+        return users;
+    }
+
+    public void setUsers(List<APIUsersResponse> value) {
+        this.users = value;
+    }
+}
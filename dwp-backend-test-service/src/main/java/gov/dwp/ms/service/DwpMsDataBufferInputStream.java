@@ -0,0 +1,74 @@
+package gov.dwp.ms.service;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+
+public class DwpMsDataBufferInputStream extends InputStream { // Reads a stream of body buffers in order, releasing each one once read, so a large body can be parsed without joining it into one buffer.
+
+	private final Stream<DataBuffer> buffers;
+	private final Iterator<DataBuffer> iterator;
+	private DataBuffer current;
+
+	DwpMsDataBufferInputStream(Stream<DataBuffer> buffers) {
+		this.buffers = buffers;
+		this.iterator = buffers.iterator();
+	}
+
+	@Override
+	public int read() throws IOException {
+		DataBuffer buffer = next();
+
+		return buffer == null ? -1 : buffer.read() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+
+		DataBuffer buffer = next();
+
+		if (buffer == null) {
+			return -1;
+		}
+
+		int count = Math.min(length, buffer.readableByteCount());
+		buffer.read(bytes, offset, count);
+
+		return count;
+	}
+
+	private DataBuffer next() { // Current buffer if it has bytes left, otherwise the next one with bytes. Blocks until it arrives.
+		while (current == null || current.readableByteCount() == 0) {
+			release();
+
+			if (!iterator.hasNext()) {
+				return null;
+			}
+
+			current = iterator.next();
+		}
+
+		return current;
+	}
+
+	private void release() {
+		if (current != null) {
+			DataBufferUtils.release(current);
+			current = null;
+		}
+	}
+
+	@Override
+	public void close() { // Cancels the rest of the body if the parser stopped early, e.g. on invalid json.
+		release();
+		buffers.close();
+	}
+}
@@ -0,0 +1,125 @@
+package gov.dwp.ms.service;
+
+
+import gov.dwp.ms.model.APILocationResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import org.springframework.beans.factory.annotation.Autowired;
+
+
+public class DwpMsGazetteer { // Local table of known city co-ordinates, so the popular cities are geocoded without calling the location api.
+
+	private final String[] names; // Normalised names, sorted so a lookup is a binary search.
+	private final String[] displayNames; // The rest are in the same order as the names.
+	private final String[] lats;
+	private final String[] lons;
+
+	@Autowired(required = false)
+	MeterRegistry meterRegistry = new SimpleMeterRegistry(); // Replaced by the actuator registry when there is one.
+
+	public DwpMsGazetteer(InputStream csv) throws IOException { // Reads "name,region,lat,lon" lines. Blank lines and lines starting with # are skipped.
+		List<String[]> rows = new ArrayList<String[]>();
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(csv, StandardCharsets.UTF_8))) {
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] row = line.split(",");
+
+				if (row.length != 4) {
+					throw new IOException("Invalid gazetteer line: " + line);
+				}
+
+				Double.parseDouble(row[2]); // Fail at startup rather than sending bad co-ordinates back to a requester.
+				Double.parseDouble(row[3]);
+				rows.add(new String[] {normalise(row[0]), row[0].trim() + ", " + row[1].trim() + ", United Kingdom", row[2].trim(), row[3].trim()});
+			}
+		}
+
+		rows.sort((a, b) -> a[0].compareTo(b[0]));
+
+		this.names = new String[rows.size()];
+		this.displayNames = new String[rows.size()];
+		this.lats = new String[rows.size()];
+		this.lons = new String[rows.size()];
+
+		for (int i = 0; i < rows.size(); i++) {
+			if (i > 0 && rows.get(i)[0].equals(rows.get(i - 1)[0])) {
+				throw new IOException("Duplicate gazetteer name: " + rows.get(i)[0]);
+			}
+
+			names[i] = rows.get(i)[0];
+			displayNames[i] = rows.get(i)[1];
+			lats[i] = rows.get(i)[2];
+			lons[i] = rows.get(i)[3];
+		}
+	}
+
+	public static DwpMsGazetteer empty() { // No known cities, so every lookup goes to the location api.
+		try {
+			return new DwpMsGazetteer(InputStream.nullInputStream());
+
+		} catch(IOException e) {
+			throw new IllegalStateException(e); // Can't happen, there is nothing to read.
+		}
+	}
+
+	public APILocationResponse get(String city) { // Returns the city's location, or null if it isn't in the table.
+		int i = city == null ? -1 : Arrays.binarySearch(names, normalise(city));
+
+		if (i < 0) {
+			meterRegistry.counter("dwp.gazetteer.lookups", "result", "miss").increment();
+
+			return null;
+		}
+
+		meterRegistry.counter("dwp.gazetteer.lookups", "result", "hit").increment();
+
+		APILocationResponse location = new APILocationResponse(); // New each time, as the response is mutable.
+		location.setDisplay_name(displayNames[i]);
+		location.setType("city");
+		location.setLat(lats[i]);
+		location.setLon(lons[i]);
+
+		return location;
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public double getHits() { // Number of lookups answered from the table.
+		return getCount("hit");
+	}
+
+	public double getMisses() { // Number of lookups that still had to call the location api.
+		return getCount("miss");
+	}
+
+	private double getCount(String result) {
+		Counter counter = meterRegistry.find("dwp.gazetteer.lookups").tag("result", result).counter();
+
+		return counter == null ? 0 : counter.count();
+	}
+
+	static String normalise(String city) { // Lower case with accents and punctuation removed, so "St. Albans", "st albans" and "ST-ALBANS" are all the same name.
+		String name = Normalizer.normalize(city, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+
+		return name.toLowerCase(Locale.ROOT).replaceAll("['\u2019]", "").replaceAll("[^a-z0-9]+", " ").trim(); // Apostrophes are dropped rather than spaced, so "St David's" is "st davids".
+	}
+}
@@ -0,0 +1,75 @@
+package gov.dwp.ms.service;
+
+
+class DwpMsHeapUsersColumns implements DwpMsUsersColumns { // Users held in java arrays, one array per field.
+
+	private final int[] ids;
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final String[] firstNames;
+	private final String[] lastNames;
+	private final String[] emails;
+	private final String[] ipAddresses;
+
+	DwpMsHeapUsersColumns(int[] ids, double[] latitudes, double[] longitudes, String[] firstNames, String[] lastNames, String[] emails, String[] ipAddresses) {
+		this.ids = ids;
+		this.latitudes = latitudes;
+		this.longitudes = longitudes;
+		this.firstNames = firstNames;
+		this.lastNames = lastNames;
+		this.emails = emails;
+		this.ipAddresses = ipAddresses;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public int getId(int index) {
+		return ids[index];
+	}
+
+	public double getLatitude(int index) {
+		return latitudes[index];
+	}
+
+	public double getLongitude(int index) {
+		return longitudes[index];
+	}
+
+	public String getFirstName(int index) {
+		return firstNames[index];
+	}
+
+	public String getLastName(int index) {
+		return lastNames[index];
+	}
+
+	public String getEmail(int index) {
+		return emails[index];
+	}
+
+	public String getIpAddress(int index) {
+		return ipAddresses[index];
+	}
+
+	public boolean isOffHeap() {
+		return false;
+	}
+
+	public long fingerprint() {
+		DwpMsUsersFingerprint fingerprint = new DwpMsUsersFingerprint(ids.length);
+
+		for (int i = 0; i < ids.length; i++) {
+			fingerprint.add(ids[i]);
+			fingerprint.add(latitudes[i]);
+			fingerprint.add(longitudes[i]);
+			fingerprint.add(firstNames[i]);
+			fingerprint.add(lastNames[i]);
+			fingerprint.add(emails[i]);
+			fingerprint.add(ipAddresses[i]);
+		}
+
+		return fingerprint.get();
+	}
+}
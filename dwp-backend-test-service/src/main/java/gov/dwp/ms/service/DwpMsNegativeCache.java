@@ -0,0 +1,43 @@
+package gov.dwp.ms.service;
+
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.concurrent.TimeUnit;
+import org.springframework.http.HttpStatus;
+
+
+public class DwpMsNegativeCache { // Remembers lookups that failed because of the request itself (e.g. a misspelt city), so repeats are rejected without calling the api again.
+
+	private final Cache<String, HttpStatus> cache;
+
+	public DwpMsNegativeCache(long maxSize, long ttl) {
+		this.cache = Caffeine.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(ttl, TimeUnit.MILLISECONDS) // Kept short, so a city added to the api is found again soon.
+				.recordStats()
+				.build();
+	}
+
+	public HttpStatus get(String key) { // Returns the status the failed lookup was rejected with, or null if there is no failure cached.
+		return cache.getIfPresent(key);
+	}
+
+	public void put(String key, HttpStatus status) {
+		if (isCacheable(status)) {
+			cache.put(key, status);
+		}
+	}
+
+	public Cache<String, HttpStatus> getCache() {
+		return cache;
+	}
+
+	public static boolean isCacheable(HttpStatus status) { // Only client errors caused by the lookup itself. Auth, timeout and rate limit errors say nothing about the city so are never cached.
+		return status.is4xxClientError()
+				&& status != HttpStatus.UNAUTHORIZED
+				&& status != HttpStatus.FORBIDDEN
+				&& status != HttpStatus.REQUEST_TIMEOUT
+				&& status != HttpStatus.TOO_MANY_REQUESTS;
+	}
+}
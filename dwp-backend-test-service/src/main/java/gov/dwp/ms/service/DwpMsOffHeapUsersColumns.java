@@ -0,0 +1,200 @@
+package gov.dwp.ms.service;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+class DwpMsOffHeapUsersColumns implements DwpMsUsersColumns { // Users held outside the java heap, so millions of users add nothing for the garbage collector to trace.
+	// Each user is a fixed width record, so user i is always at i * RECORD_BYTES:
+	//   0 latitude (double), 8 longitude (double), 16 id (int), 20 first name, 24 last name, 28 email, 32 ip address (int string refs).
+	// String refs are offsets into the string pool, where each string is stored once as its byte length (int) then its UTF-8 bytes. -1 is null.
+
+	static final int RECORD_BYTES = 36;
+
+	private static final int LATITUDE = 0;
+	private static final int LONGITUDE = 8;
+	private static final int ID = 16;
+	private static final int FIRST_NAME = 20;
+	private static final int LAST_NAME = 24;
+	private static final int EMAIL = 28;
+	private static final int IP_ADDRESS = 32;
+
+	private final int size;
+	private final ByteBuffer records;
+	private final ByteBuffer strings;
+
+	DwpMsOffHeapUsersColumns(int size, ByteBuffer records, ByteBuffer strings) { // Wraps existing buffers, e.g. a memory mapped file.
+		this.size = size;
+		this.records = records.duplicate().order(ByteOrder.nativeOrder());
+		this.strings = strings.duplicate().order(ByteOrder.nativeOrder());
+	}
+
+	static DwpMsOffHeapUsersColumns copyOf(DwpMsUsersColumns source) { // Copies users into new direct buffers.
+		int size = source.size();
+		ByteBuffer records = ByteBuffer.allocateDirect(Math.multiplyExact(size, RECORD_BYTES)).order(ByteOrder.nativeOrder());
+		StringPool pool = new StringPool(size);
+
+		for (int i = 0; i < size; i++) {
+			int record = i * RECORD_BYTES;
+			records.putDouble(record + LATITUDE, source.getLatitude(i));
+			records.putDouble(record + LONGITUDE, source.getLongitude(i));
+			records.putInt(record + ID, source.getId(i));
+			records.putInt(record + FIRST_NAME, pool.add(source.getFirstName(i)));
+			records.putInt(record + LAST_NAME, pool.add(source.getLastName(i)));
+			records.putInt(record + EMAIL, pool.add(source.getEmail(i)));
+			records.putInt(record + IP_ADDRESS, pool.add(source.getIpAddress(i)));
+		}
+
+		return new DwpMsOffHeapUsersColumns(size, records, pool.toBuffer());
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getId(int index) {
+		return records.getInt(record(index) + ID);
+	}
+
+	public double getLatitude(int index) {
+		return records.getDouble(record(index) + LATITUDE);
+	}
+
+	public double getLongitude(int index) {
+		return records.getDouble(record(index) + LONGITUDE);
+	}
+
+	public String getFirstName(int index) {
+		return string(records.getInt(record(index) + FIRST_NAME));
+	}
+
+	public String getLastName(int index) {
+		return string(records.getInt(record(index) + LAST_NAME));
+	}
+
+	public String getEmail(int index) {
+		return string(records.getInt(record(index) + EMAIL));
+	}
+
+	public String getIpAddress(int index) {
+		return string(records.getInt(record(index) + IP_ADDRESS));
+	}
+
+	public boolean isOffHeap() {
+		return true;
+	}
+
+	public long fingerprint() { // Straight from the record and string pool bytes, so nothing is decoded.
+		DwpMsUsersFingerprint fingerprint = new DwpMsUsersFingerprint(size);
+
+		for (int i = 0; i < size; i++) {
+			int record = i * RECORD_BYTES;
+			fingerprint.add(records.getInt(record + ID));
+			fingerprint.add(records.getDouble(record + LATITUDE));
+			fingerprint.add(records.getDouble(record + LONGITUDE));
+			addString(fingerprint, records.getInt(record + FIRST_NAME));
+			addString(fingerprint, records.getInt(record + LAST_NAME));
+			addString(fingerprint, records.getInt(record + EMAIL));
+			addString(fingerprint, records.getInt(record + IP_ADDRESS));
+		}
+
+		return fingerprint.get();
+	}
+
+	private void addString(DwpMsUsersFingerprint fingerprint, int ref) {
+		if (ref < 0) {
+			fingerprint.addNull();
+
+		} else {
+			fingerprint.add(strings, ref + 4, strings.getInt(ref));
+		}
+	}
+
+	ByteBuffer getRecords() { // Read only views of the raw buffers, e.g. for writing them to disk.
+		return records.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+	}
+
+	ByteBuffer getStrings() {
+		return strings.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+	}
+
+	private int record(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+
+		return index * RECORD_BYTES;
+	}
+
+	private String string(int ref) {
+		if (ref < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[strings.getInt(ref)];
+		strings.get(ref + 4, bytes); // Absolute bulk get, so concurrent readers don't share a position.
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static class StringPool { // Writes each distinct string instance once. Names are already pooled by the snapshot builder, so they share a ref.
+
+		private final Map<String, Integer> refs = new IdentityHashMap<String, Integer>();
+		private ByteBuffer buffer;
+
+		StringPool(int users) {
+			buffer = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max(1024L, users * 48L))).order(ByteOrder.nativeOrder()); // Rough guess at the space needed, grows if not enough.
+		}
+
+		int add(String value) {
+			if (value == null) {
+				return -1;
+			}
+
+			Integer existing = refs.get(value);
+
+			if (existing != null) {
+				return existing;
+			}
+
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+			if (buffer.remaining() < bytes.length + 4) {
+				grow(bytes.length + 4);
+			}
+
+			int ref = buffer.position();
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+			refs.put(value, ref);
+
+			return ref;
+		}
+
+		ByteBuffer toBuffer() {
+			ByteBuffer pool = ByteBuffer.allocateDirect(buffer.position()).order(ByteOrder.nativeOrder()); // Trim to the space used.
+			buffer.flip();
+			pool.put(buffer);
+			pool.flip();
+
+			return pool;
+		}
+
+		private void grow(int needed) {
+			long capacity = Math.max((long) buffer.capacity() * 2, (long) buffer.position() + needed);
+
+			if (capacity > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Users string pool is larger than 2GB");
+			}
+
+			ByteBuffer bigger = ByteBuffer.allocateDirect((int) capacity).order(ByteOrder.nativeOrder());
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+}
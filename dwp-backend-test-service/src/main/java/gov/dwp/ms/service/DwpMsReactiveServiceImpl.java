@@ -0,0 +1,251 @@
+package gov.dwp.ms.service;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import gov.dwp.ms.model.APILocationResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+
+@Service
+@ConditionalOnProperty(name = "service.client", havingValue = "webclient") // Opt in with service.client=webclient, otherwise the RestTemplate service is used.
+public class DwpMsReactiveServiceImpl implements DwpMsService { // Non-blocking service. Api calls run on the WebClient event loop so no dwpTaskExec threads are held waiting on the network.
+
+    private static Logger log = LoggerFactory.getLogger(DwpMsReactiveServiceImpl.class);
+
+    private static final int READ_AHEAD_BUFFERS = 16; // Body buffers requested ahead of the users parser.
+
+    @Autowired
+    WebClient dwpWebClient;
+
+    @Autowired
+    DwpMsUsersSnapshotStore usersSnapshotStore;
+
+    @Autowired
+    DwpMsSingleFlight singleFlight;
+
+    @Autowired
+    DwpMsNegativeCache negativeCache;
+
+    @Autowired
+    DwpMsGazetteer gazetteer;
+
+    @Autowired
+    CacheManager cacheManager;
+
+    @Value("${usersApi.url}")
+    public String usersUrl;
+
+    @Value("${locationIq.url}")
+    public String locationIqUrl;
+
+    @Value("${locationIq.token}")
+    public String locationIqToken;
+
+    @Value("${error.location.api}")
+    public String locationErrorMsg;
+
+    @Value("${error.users.api}")
+    public String usersErrorMsg;
+
+    @Value("${users.snapshot.max.staleness.ms}")
+    public long usersMaxStalenessMs;
+
+    private String xCorrelationId;
+
+    public String getRequestId() throws Exception {
+    	return xCorrelationId;
+    }
+
+    public void setRequestId(String xCorrelationId) {
+    	this.xCorrelationId = xCorrelationId;
+    }
+
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<APILocationResponse> getLocationResults(String city) throws Exception { // Gets location results from LocationIq web service.
+    	APILocationResponse known = gazetteer.get(city);
+
+    	if (known != null) {
+    		log.debug(xCorrelationId + ": City match found in gazetteer for " + city);
+
+    		return CompletableFuture.completedFuture(known); // Known city, so there is no need to call the api.
+    	}
+
+    	String key = StringUtils.capitalize(city);
+    	Cache cities = cacheManager.getCache("cities"); // Same cache and key as the RestTemplate service, holding completed futures.
+    	CompletableFuture<APILocationResponse> cached = cities == null ? null : cities.get(key, CompletableFuture.class);
+
+    	if (cached != null) {
+    		return cached;
+    	}
+
+    	HttpStatus failedStatus = negativeCache.get(key);
+
+    	if (failedStatus != null) {
+    		log.debug(xCorrelationId + ": Lookup for " + city + " failed recently with " + failedStatus);
+
+    		return CompletableFuture.failedFuture(new ResponseStatusException(failedStatus)); // Same response as the original failure, without calling the api again.
+    	}
+
+    	URI url = UriComponentsBuilder.fromHttpUrl(locationIqUrl)
+    			.queryParam("key", locationIqToken)
+    			.queryParam("q", key)
+    			.queryParam("format", "json")
+    			.build().encode().toUri();
+
+    	log.debug(xCorrelationId + ": Getting location results from " + url.toString());
+
+    	return singleFlight.executeAsync("location:" + key, () -> get(url, APILocationResponse[].class, locationErrorMsg)
+    			.flatMap(results -> results.length > 0
+    					? Mono.just(results[0]) // Use the first result as this is the top result match.
+    					: Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND))) // No match for the city, treat the same as the api returning not found.
+    			.doOnNext(location -> {
+    				if (cities != null) {
+    					cities.put(key, CompletableFuture.completedFuture(location)); // Only cached once resolved. The call is still pending when this method returns, so caching its future would keep a later 5xx or timeout for the whole ttl.
+    				}
+    			})
+    			.doOnError(ResponseStatusException.class, e -> negativeCache.put(key, e.getStatus())) // Remember client errors so repeats don't call the api again.
+    			.toFuture());
+    }
+
+    public CompletableFuture<List<APIUsersResponse>> getUsersResults() throws Exception { // Gets users list from the users snapshot, only calling the users api if there is no usable snapshot.
+    	DwpMsUsersSnapshot snapshot = usersSnapshotStore.getCurrent();
+
+    	if (snapshot != null && snapshot.getAge() <= usersMaxStalenessMs) {
+    		return CompletableFuture.completedFuture(snapshot);
+    	}
+
+    	log.debug(xCorrelationId + ": No usable users snapshot, refreshing from users api");
+
+    	return singleFlight.executeAsync("users", () -> fetchUsersSnapshot().toFuture()).thenApply(users -> users);
+    }
+
+    public CompletableFuture<List<APIUsersResponse>> getSearchResults(String city) throws Exception { // Gets search results from users api.
+    	URI url = UriComponentsBuilder.fromHttpUrl(usersUrl)
+    			.path("city/")
+    			.path(StringUtils.capitalize(city))
+    			.path("/users")
+    			.build().encode().toUri();
+
+    	log.debug(xCorrelationId + ": Getting search results from " + url.toString());
+
+    	return singleFlight.executeAsync("search:" + StringUtils.capitalize(city), () -> get(url, APIUsersResponse[].class, usersErrorMsg)
+    			.<List<APIUsersResponse>>map(Arrays::asList)
+    			.toFuture());
+    }
+
+    public DwpMsUsersSnapshot refreshUsersSnapshot() throws Exception { // Called by the background refresher which runs on its own thread, so blocking here is fine.
+    	return singleFlight.execute("users", () -> fetchUsersSnapshot().block());
+    }
+
+    private Mono<DwpMsUsersSnapshot> fetchUsersSnapshot() { // Fetches the users list from the users api and publishes it as the new users snapshot.
+    	URI url = UriComponentsBuilder.fromHttpUrl(usersUrl)
+    			.path("users")
+    			.build().encode().toUri();
+
+    	String etag = usersSnapshotStore.getEtag();
+    	String lastModified = usersSnapshotStore.getLastModified();
+
+    	return retry(dwpWebClient.get()
+    			.uri(url)
+    			.headers(headers -> {
+    				if (etag != null) {
+    					headers.setIfNoneMatch(etag); // Conditional request, so an unchanged users list isn't downloaded again.
+    				}
+
+    				if (lastModified != null) {
+    					headers.set(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+    				}
+    			})
+    			.exchange() // Rather than retrieve, so the body can be read as it arrives instead of joined into one buffer.
+    			.flatMap(response -> response.statusCode().isError()
+    					? response.createException().flatMap(Mono::error) // Same exception retrieve would throw, so it is retried and mapped the same way.
+    					: Mono.just(response)), url, usersErrorMsg)
+    			.flatMap(response -> {
+    				if (response.statusCode() == HttpStatus.NOT_MODIFIED) {
+    					return response.releaseBody().then(Mono.justOrEmpty(usersSnapshotStore.renew())); // Users haven't changed, keep serving the current snapshot.
+    				}
+
+    				HttpHeaders headers = response.headers().asHttpHeaders();
+
+    				return read(response.bodyToFlux(DataBuffer.class)) // Raw body, parsed straight into columns rather than binding an APIUsersResponse per user.
+    						.map(users -> usersSnapshotStore.publish(users, headers.getETag(), headers.getFirst(HttpHeaders.LAST_MODIFIED)));
+    			})
+    			.switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, usersErrorMsg))) // Shouldn't get here, but sanity check anyway to prevent null pointer.
+    			.onErrorMap(UncheckedIOException.class, e -> { // Invalid json, same friendly error as other unexpected errors.
+    				log.error(xCorrelationId + ": Exception reading users " + e.getMessage());
+
+    				return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, usersErrorMsg);
+    			});
+    }
+
+    private Mono<DwpMsUsersSnapshotBuilder> read(Flux<DataBuffer> body) { // Parses the users json as the buffers arrive, so the whole body is never held (100k users is around 18MB).
+    	// The parser pulls from an InputStream, so it runs on a bounded elastic thread rather than blocking the event loop. Only a few buffers are requested ahead of the parser.
+    	return Mono.fromCallable(() -> {
+    		try (DwpMsDataBufferInputStream in = new DwpMsDataBufferInputStream(body.doOnDiscard(DataBuffer.class, DataBufferUtils::release).toStream(READ_AHEAD_BUFFERS))) {
+    			return DwpMsUsersStreamReader.read(in);
+
+    		} catch(IOException e) {
+    			throw new UncheckedIOException(e);
+    		}
+    	}).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private <T> Mono<T> get(URI url, Class<T> type, String errorMsg) { // Makes a GET request, retrying server errors (5xx) and mapping errors to the same responses as the RestTemplate service.
+    	return get(url, headers -> {}, type, errorMsg)
+    			.flatMap(response -> Mono.justOrEmpty(response.getBody()))
+    			.switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, errorMsg))); // Shouldn't get here, but sanity check anyway to prevent null pointer.
+    }
+
+    private <T> Mono<ResponseEntity<T>> get(URI url, Consumer<HttpHeaders> headers, Class<T> type, String errorMsg) { // Same, returning the whole response so the status and headers can be checked.
+    	return retry(dwpWebClient.get()
+    			.uri(url)
+    			.headers(headers)
+    			.retrieve()
+    			.toEntity(type), url, errorMsg);
+    }
+
+    private <T> Mono<T> retry(Mono<T> call, URI url, String errorMsg) { // Retries server errors (5xx) and maps errors to the same responses as the RestTemplate service.
+    	return call
+    			.retryWhen(Retry.fixedDelay(2, Duration.ofMillis(500)) // Same as @Retryable on the RestTemplate service, 3 attempts with a 500ms interval.
+    					.filter(e -> e instanceof WebClientResponseException && ((WebClientResponseException) e).getStatusCode().is5xxServerError())
+    					.onRetryExhaustedThrow((spec, signal) -> signal.failure()))
+    			.onErrorMap(e -> !(e instanceof ResponseStatusException), e -> {
+    				log.error(xCorrelationId + ": Exception calling " + url.getHost() + " " + e.getMessage());
+
+    				if (e instanceof WebClientResponseException) {
+    					return new ResponseStatusException(((WebClientResponseException) e).getStatusCode()); // Throw client (4xx) and server (5xx) errors back to the requester.
+    				}
+
+    				return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, errorMsg); // Throw all other errors back to the requester with a friendly error message.
+    			});
+    }
+}
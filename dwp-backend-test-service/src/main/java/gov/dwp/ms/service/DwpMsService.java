@@ -17,6 +17,8 @@ public interface DwpMsService {
     
     CompletableFuture<List<APIUsersResponse>> getSearchResults(String city) throws Exception;
     
+    DwpMsUsersSnapshot refreshUsersSnapshot() throws Exception;
+    
     void setRequestId(String xCorrelationId);
     
     String getRequestId() throws Exception;
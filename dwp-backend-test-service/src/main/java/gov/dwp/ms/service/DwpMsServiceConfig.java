@@ -1,22 +1,56 @@
 package gov.dwp.ms.service;
 
 
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.support.SimpleCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.retry.annotation.EnableRetry;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 
 @EnableAsync
 @EnableCaching
 @EnableRetry
+@EnableScheduling
 @Configuration
 public class DwpMsServiceConfig {
     
+    private static Logger log = LoggerFactory.getLogger(DwpMsServiceConfig.class);
+    
     @Value("${thread.core.pool.size}")
     private int corePoolSize;
 	
@@ -26,8 +60,68 @@ public class DwpMsServiceConfig {
     @Value("${thread.queue.capacity}")
     private int queueCapacity;
 	
+    @Value("${thread.mode}")
+    private String threadMode;
+	
+    @Value("${thread.virtual.max.concurrency}")
+    private int virtualMaxConcurrency;
+	
+    @Value("${cache.cities.max.size}")
+    private long citiesCacheMaxSize;
+	
+    @Value("${cache.cities.ttl.ms}")
+    private long citiesCacheTtl;
+	
+    @Value("${cache.city.users.max.size}")
+    private long cityUsersCacheMaxSize;
+	
+    @Value("${cache.city.users.ttl.ms}")
+    private long cityUsersCacheTtl;
+	
+    @Value("${cache.negative.max.size}")
+    private long negativeCacheMaxSize;
+	
+    @Value("${cache.negative.ttl.ms}")
+    private long negativeCacheTtl;
+	
+    @Value("${gazetteer.enabled}")
+    private boolean gazetteerEnabled;
+	
+    @Value("${gazetteer.file}")
+    private Resource gazetteerFile;
+	
+    @Value("${http.client.max.total}")
+    private int httpMaxTotal;
+	
+    @Value("${http.client.max.per.route}")
+    private int httpMaxPerRoute;
+	
+    @Value("${http.client.connect.timeout.ms}")
+    private int httpConnectTimeout;
+	
+    @Value("${http.client.read.timeout.ms}")
+    private int httpReadTimeout;
+	
+    @Value("${http.client.pool.acquire.timeout.ms}")
+    private int httpPoolAcquireTimeout;
+	
+    @Value("${http.client.keep.alive.ms}")
+    private long httpKeepAlive;
+	
     @Bean
-    public ThreadPoolTaskExecutor dwpTaskExec() { // Bean to create a thread pool that is used by the future methods in the service.
+    public TaskExecutor dwpTaskExec() { // Bean to create the executor that is used by the future methods in the service.
+        if ("virtual".equalsIgnoreCase(threadMode)) {
+            // Virtual threads are cheap to create and park while blocked on the network, so each task gets its own thread.
+            // Concurrency is capped at the connection pool size so we still can't flood the upstream apis.
+            DwpMsVirtualThreadExecutor executor = DwpMsVirtualThreadExecutor.create("dwp-ms-vthread-", virtualMaxConcurrency);
+            
+            if (executor != null) {
+                return executor;
+            }
+            
+            log.warn("thread.mode=virtual needs Java 21 or later, running on Java " + Runtime.version().feature() + " so using the platform thread pool");
+        }
+        
         // There are 3 futures that may need to run concurrently in this service.
         // Thread pool is setup to use core pool size of 3 times the Tomcat 200 connection default limit.
         // This will enable the program to always have 3 threads available for each potential Tomcat connection.
@@ -44,7 +138,109 @@ public class DwpMsServiceConfig {
     }
 	
     @Bean
-    public RestTemplate restTemplate() throws Exception { // Bean to setup a basic rest template to make api calls.
-        return new RestTemplate();
+    public CacheManager cacheManager() { // Bean to create size bounded caches that expire, rather than the default unbounded ConcurrentMapCache.
+        // Caffeine evicts using W-TinyLFU, so a burst of one-off (or made up) city names can't push out the popular cities.
+        // Stats are recorded so hits, misses and evictions are published on the actuator metrics endpoint (cache.gets, cache.evictions).
+        SimpleCacheManager cacheManager = new SimpleCacheManager();
+        cacheManager.setCaches(Arrays.asList(
+        		caffeineCache("cities", citiesCacheMaxSize, citiesCacheTtl), // City co-ords never change, so the ttl is only there to pick up LocationIq corrections.
+        		caffeineCache("cityUsers", cityUsersCacheMaxSize, cityUsersCacheTtl))); // Users by city can change, so these expire quickly.
+        
+        return cacheManager;
+    }
+	
+    @Bean
+    public DwpMsNegativeCache dwpNegativeCache() { // Bean to create the cache of failed city lookups (unknown cities and other client errors).
+        return new DwpMsNegativeCache(negativeCacheMaxSize, negativeCacheTtl);
+    }
+	
+    @Bean
+    public MeterBinder dwpNegativeCacheMetrics(DwpMsNegativeCache dwpNegativeCache) { // Publishes the failed lookup cache stats on the actuator metrics endpoint alongside the other caches.
+        return new CaffeineCacheMetrics(dwpNegativeCache.getCache(), "negativeCities", Collections.emptyList());
+    }
+	
+    @Bean
+    public DwpMsGazetteer dwpGazetteer() throws IOException { // Bean to load the local table of city co-ordinates once at startup, so known cities are never sent to the location api.
+        if (!gazetteerEnabled) {
+            return DwpMsGazetteer.empty(); // Every city is looked up with the location api, as before.
+        }
+        
+        try (InputStream csv = gazetteerFile.getInputStream()) {
+            DwpMsGazetteer gazetteer = new DwpMsGazetteer(csv);
+            log.info("Loaded " + gazetteer.size() + " cities into the gazetteer from " + gazetteerFile.getDescription());
+            
+            return gazetteer;
+        }
+    }
+	
+    @Bean
+    public PoolingHttpClientConnectionManager dwpConnectionManager() { // Bean to create a connection pool shared by all upstream api calls.
+        // Total connections match the dwpTaskExec pool size so every executor thread can hold a connection.
+        // Per route limit stops one slow upstream (e.g. LocationIq) from taking every connection from the other.
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(httpMaxTotal);
+        connectionManager.setDefaultMaxPerRoute(httpMaxPerRoute);
+        connectionManager.setValidateAfterInactivity(2000); // Check connections that have been idle for a while are still open before reusing them.
+        
+        return connectionManager;
+    }
+	
+    @Bean
+    public CloseableHttpClient dwpHttpClient(PoolingHttpClientConnectionManager dwpConnectionManager) { // Bean to create a keep-alive http client with timeouts so stuck sockets can't hold executor threads forever.
+        RequestConfig requestConfig = RequestConfig.custom()
+        		.setConnectTimeout(httpConnectTimeout) // Time to open the tcp connection.
+        		.setSocketTimeout(httpReadTimeout) // Max time between packets when reading the response.
+        		.setConnectionRequestTimeout(httpPoolAcquireTimeout) // Time to wait for a free connection from the pool.
+        		.build();
+        
+        return HttpClients.custom()
+        		.setConnectionManager(dwpConnectionManager)
+        		.setDefaultRequestConfig(requestConfig)
+        		.setKeepAliveStrategy((response, context) -> { // Use the server keep-alive header if there is one, capped at our own limit.
+        			long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        			
+        			return serverKeepAlive > 0 ? Math.min(serverKeepAlive, httpKeepAlive) : httpKeepAlive;
+        		})
+        		.disableConnectionState() // TLS connections are not tied to a user, so let every thread reuse them and the TLS session with them.
+        		.evictExpiredConnections()
+        		.evictIdleConnections(httpKeepAlive, TimeUnit.MILLISECONDS)
+        		.build();
+    }
+	
+    @Bean
+    public RestTemplate restTemplate(CloseableHttpClient dwpHttpClient) throws Exception { // Bean to setup a rest template using the pooled http client to make api calls.
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(dwpHttpClient));
+    }
+	
+    @Bean
+    @ConditionalOnProperty(name = "service.client", havingValue = "webclient")
+    public WebClient dwpWebClient(WebClient.Builder builder) { // Bean to create a non-blocking web client for the reactive service, using the same pool limits and timeouts as the rest template.
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("dwp-upstream")
+        		.maxConnections(httpMaxTotal)
+        		.pendingAcquireTimeout(Duration.ofMillis(httpPoolAcquireTimeout))
+        		.maxIdleTime(Duration.ofMillis(httpKeepAlive))
+        		.build();
+        
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+        		.tcpConfiguration(tcpClient -> tcpClient
+        				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, httpConnectTimeout)
+        				.doOnConnected(connection -> connection.addHandlerLast(new ReadTimeoutHandler(httpReadTimeout, TimeUnit.MILLISECONDS))));
+        
+        return builder
+        		.clientConnector(new ReactorClientHttpConnector(httpClient))
+        		.build();
+    }
+	
+    @Bean
+    public MeterBinder dwpConnectionPoolMetrics(PoolingHttpClientConnectionManager dwpConnectionManager) { // Publishes connection pool stats (leased, available, pending) on the actuator metrics endpoint.
+        return new PoolingHttpClientConnectionManagerMetricsBinder(dwpConnectionManager, "dwp-upstream");
+    }
+	
+    private CaffeineCache caffeineCache(String name, long maxSize, long ttl) {
+        return new CaffeineCache(name, Caffeine.newBuilder()
+        		.maximumSize(maxSize)
+        		.expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+        		.recordStats()
+        		.build());
     }
 }
\ No newline at end of file
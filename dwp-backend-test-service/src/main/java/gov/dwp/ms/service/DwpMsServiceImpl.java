@@ -6,14 +6,19 @@ import gov.dwp.ms.model.APIUsersResponse;
 import gov.dwp.ms.model.APILocationResponse;
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.retry.annotation.Backoff;
 import org.springframework.retry.annotation.Retryable;
@@ -28,12 +33,25 @@ import org.springframework.web.util.UriComponentsBuilder;
 
 
 @Service
+@ConditionalOnProperty(name = "service.client", havingValue = "resttemplate", matchIfMissing = true) // Default service, blocking RestTemplate calls run on the dwpTaskExec thread pool.
 public class DwpMsServiceImpl implements DwpMsService {
 	
     private static Logger log = LoggerFactory.getLogger(DwpMsServiceImpl.class);
 	
     @Autowired
     RestTemplate restTemplate;
+    
+    @Autowired
+    DwpMsUsersSnapshotStore usersSnapshotStore;
+    
+    @Autowired
+    DwpMsSingleFlight singleFlight;
+    
+    @Autowired
+    DwpMsNegativeCache negativeCache;
+    
+    @Autowired
+    DwpMsGazetteer gazetteer;
 	
     @Value("${usersApi.url}")
     public String usersUrl;
@@ -50,6 +68,9 @@ public class DwpMsServiceImpl implements DwpMsService {
     @Value("${error.users.api}")
     public String usersErrorMsg;
 	
+    @Value("${users.snapshot.max.staleness.ms}")
+    public long usersMaxStalenessMs;
+	
     private String xCorrelationId;
   	
     public String getRequestId() throws Exception {
@@ -64,11 +85,28 @@ public class DwpMsServiceImpl implements DwpMsService {
     		value = {HttpServerErrorException.class}, // Exception name we want to retry when thrown (can add addition classes).
     		maxAttempts = 3, // Number of retries.
     		backoff = @Backoff(delay = 500)) // Delay between retries.
-    @Cacheable("cities") // This methods results will be cached for faster retrieval. For city co-ords this is fine as they will never change.
+    @Cacheable(value = "cities", key = "T(org.springframework.util.StringUtils).capitalize(#p0)") // This methods results will be cached for faster retrieval. For city co-ords this is fine as they will never change. Keyed on the city as sent to the api so "london" and "London" share an entry.
     @Async("dwpTaskExec") // Assigns this method to the dwpTaskExec TaskExecutor thread pool.
     public CompletableFuture<APILocationResponse> getLocationResults(String city) throws Exception { // Gets location results from LocationIq web service.
     	try {
 	    	log.debug(xCorrelationId + ": Starting getLocationResults method");
+	    	
+	    	APILocationResponse known = gazetteer.get(city);
+	    	
+	    	if (known != null) {
+	    		log.debug(xCorrelationId + ": City match found in gazetteer " + getJsonString(known));
+	    		
+	    		return CompletableFuture.completedFuture(known); // Known city, so there is no need to call the api.
+	    	}
+	    	
+	    	HttpStatus failedStatus = negativeCache.get(StringUtils.capitalize(city));
+	    	
+	    	if (failedStatus != null) {
+	    		log.debug(xCorrelationId + ": Lookup for " + city + " failed recently with " + failedStatus);
+	    		
+	    		throw new ResponseStatusException(failedStatus); // Same response as the original failure, without calling the api again.
+	    	}
+	    	
 	    	log.debug("location: " + locationIqUrl);
 	    	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(locationIqUrl) 
 	    			.queryParam("key", locationIqToken)
@@ -78,13 +116,19 @@ public class DwpMsServiceImpl implements DwpMsService {
 	    	
 	    	log.debug(xCorrelationId + ": Getting results from " + url.toString());
 	    	
-	    	ResponseEntity<APILocationResponse[]> response = restTemplate.getForEntity(url, APILocationResponse[].class); // Call the api and serialise results into response object array.
+	    	ResponseEntity<APILocationResponse[]> response = singleFlight.execute("location:" + StringUtils.capitalize(city), () -> restTemplate.getForEntity(url, APILocationResponse[].class)); // Call the api and serialise results into response object array, sharing the call with any concurrent requests for the same city.
 	    	
 	    	log.debug(xCorrelationId + ": Status code " + response.getStatusCodeValue());
 	    	
 	    	if (response.getBody() == null) {
 	    		throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, locationErrorMsg); // Shouldn't get here, but sanity check anyway to prevent null pointer.
 	    	}
+	    	
+	    	if (response.getBody().length == 0) { // No match for the city, treat the same as the api returning not found.
+	    		negativeCache.put(StringUtils.capitalize(city), HttpStatus.NOT_FOUND);
+	    		
+	    		throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+	    	}
 			
 	    	APILocationResponse firstResult = new APILocationResponse();
 	    	firstResult = response.getBody()[0]; // Use the first result as this is the top result match.
@@ -94,8 +138,13 @@ public class DwpMsServiceImpl implements DwpMsService {
 
 	    	return CompletableFuture.completedFuture(firstResult);
 	    	
+    	} catch(ResponseStatusException e) { // Already has the status to send back to the requester.
+    		throw e;
+    		
     	} catch(HttpClientErrorException e) { // Check for any errors in the api call
     		log.error(xCorrelationId + ": Client Exception getLocationResults method " + e.getMessage());
+    		
+    		negativeCache.put(StringUtils.capitalize(city), e.getStatusCode()); // Remember the failure so repeats don't call the api again.
 
     		throw new ResponseStatusException(e.getStatusCode()); // Throw client errors (4xx) back to the requester.
     		
@@ -116,30 +165,22 @@ public class DwpMsServiceImpl implements DwpMsService {
     		maxAttempts = 3,
     		backoff = @Backoff(delay = 500))
     @Async("dwpTaskExec") 
-    public CompletableFuture<List<APIUsersResponse>> getUsersResults() throws Exception { // Gets users list from users api.
+    public CompletableFuture<List<APIUsersResponse>> getUsersResults() throws Exception { // Gets users list from the users snapshot, only calling the users api if there is no usable snapshot.
     	try {
     		log.debug(xCorrelationId + ": Starting getUsersResults method");
     		
-	    	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(usersUrl)
-	    			.path("users");
-	    	URI url = builder.build().encode().toUri();
-	    	
-	    	log.debug(xCorrelationId + ": Getting results from " + url.toString());
-	    	
-	    	ResponseEntity<APIUsersResponse[]> response = restTemplate.getForEntity(url, APIUsersResponse[].class);
-			
-	    	log.debug(xCorrelationId + ": Status code " + response.getStatusCodeValue());
-	    	
-	    	if (response.getBody() == null) {
-	    		throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, usersErrorMsg); // Shouldn't get here, but sanity check anyway to prevent null pointer.
-	    	}
+    		DwpMsUsersSnapshot snapshot = usersSnapshotStore.getCurrent();
     		
-	    	List<APIUsersResponse> results = Arrays.asList(response.getBody()); // Convert results array to a list.
+    		if (snapshot == null || snapshot.getAge() > usersMaxStalenessMs) { // Cold start, or the background refresh has been failing for longer than we are willing to serve stale data.
+    			log.debug(xCorrelationId + ": No usable users snapshot, refreshing from users api");
+    			
+    			snapshot = refreshUsersSnapshot();
+    		}
 	    	
-	    	log.debug(xCorrelationId + ": Users found " + getJsonString(results.get(0))); // Limited to first entry but could log whole response.
+	    	log.debug(xCorrelationId + ": Users snapshot version " + snapshot.getVersion() + " age " + snapshot.getAge() + "ms");
 	    	log.debug(xCorrelationId + ": Finishing getUsersResults method");
 
-	    	return CompletableFuture.completedFuture(results);
+	    	return CompletableFuture.completedFuture(snapshot);
 	    	
     	} catch(HttpClientErrorException e) {
     		log.error(xCorrelationId + ": Client Exception getUsersResults method " + e.getMessage());
@@ -158,10 +199,55 @@ public class DwpMsServiceImpl implements DwpMsService {
     	}
     }
     
+    public DwpMsUsersSnapshot refreshUsersSnapshot() throws Exception { // Fetches a new users snapshot, sharing the call with any concurrent refresh (cold start requests and the background refresher).
+    	return singleFlight.execute("users", this::fetchUsersSnapshot);
+    }
+    
+    private DwpMsUsersSnapshot fetchUsersSnapshot() throws Exception { // Fetches the users list from the users api and publishes it as the new users snapshot.
+    	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(usersUrl)
+    			.path("users");
+    	URI url = builder.build().encode().toUri();
+    	
+    	log.debug("Getting users snapshot from " + url.toString());
+    	
+    	String etag = usersSnapshotStore.getEtag();
+    	String lastModified = usersSnapshotStore.getLastModified();
+    	
+    	DwpMsUsersSnapshot snapshot = restTemplate.execute(url, HttpMethod.GET,
+    			request -> {
+    				request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+    				
+    				if (etag != null) {
+    					request.getHeaders().setIfNoneMatch(etag); // Conditional request, so an unchanged users list isn't downloaded again.
+    				}
+    				
+    				if (lastModified != null) {
+    					request.getHeaders().set(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+    				}
+    			},
+    			response -> {
+    				if (response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+    					return usersSnapshotStore.renew(); // Users haven't changed, keep serving the current snapshot.
+    				}
+    				
+    				return usersSnapshotStore.publish(DwpMsUsersStreamReader.read(response.getBody()), // Stream the body straight into columns rather than binding an APIUsersResponse per user. Error statuses are still thrown as HttpClientErrorException / HttpServerErrorException.
+    						response.getHeaders().getETag(), response.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED)); // Swap in the new snapshot (or changes to it), requests already holding the old one are unaffected.
+    			});
+    	
+    	if (snapshot == null) {
+    		throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, usersErrorMsg); // Shouldn't get here, but sanity check anyway to prevent null pointer.
+    	}
+    	
+    	log.debug("Users snapshot version " + snapshot.getVersion() + " published with " + snapshot.size() + " users" + (snapshot.getDelta() != null ? ", " + snapshot.getDelta() : ""));
+    	
+    	return snapshot;
+    }
+    
     @Retryable(
     		value = {HttpServerErrorException.class}, 
     		maxAttempts = 3,
     		backoff = @Backoff(delay = 500))
+    @Cacheable(value = "cityUsers", key = "T(org.springframework.util.StringUtils).capitalize(#p0)") // Cached for a short time (cache.city.users.ttl.ms) as users may change.
     @Async("dwpTaskExec") 
     public CompletableFuture<List<APIUsersResponse>> getSearchResults(String city) throws Exception { // Gets search results from users api. 	
     	try {
@@ -175,7 +261,7 @@ public class DwpMsServiceImpl implements DwpMsService {
 	    	
 	    	log.debug(xCorrelationId + ": Getting results from " + url.toString());
 	    	
-	    	ResponseEntity<APIUsersResponse[]> response = restTemplate.getForEntity(url, APIUsersResponse[].class);
+	    	ResponseEntity<APIUsersResponse[]> response = singleFlight.execute("search:" + StringUtils.capitalize(city), () -> restTemplate.getForEntity(url, APIUsersResponse[].class));
 	    	
 	    	if (response.getBody() == null) {
 	    		throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, usersErrorMsg); // Shouldn't get here, but sanity check anyway to prevent null pointer.
@@ -0,0 +1,112 @@
+package gov.dwp.ms.service;
+
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+
+@Component
+public class DwpMsSingleFlight { // Coalesces identical concurrent api calls, so while a call for a key is in flight every other caller for that key waits for and shares its result.
+
+	private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Object>>();
+
+	@Autowired(required = false)
+	MeterRegistry meterRegistry = new SimpleMeterRegistry(); // Replaced by the actuator registry when there is one.
+
+	@SuppressWarnings("unchecked")
+	public <T> T execute(String key, Callable<T> call) throws Exception { // Blocking version. The caller that starts the flight makes the call, the rest wait on its result.
+		CompletableFuture<Object> flight = new CompletableFuture<Object>();
+		CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+
+		if (existing != null) {
+			coalesced(key);
+
+			try {
+				return (T) existing.join();
+
+			} catch(CompletionException e) {
+				throw unwrap(e); // Followers see the same exception as the leader, so they handle errors the same way.
+			}
+		}
+
+		try {
+			T result = call.call();
+
+			inFlight.remove(key, flight); // Remove before completing, so later callers start a fresh call rather than getting this result.
+			flight.complete(result);
+
+			return result;
+
+		} catch(Throwable e) {
+			inFlight.remove(key, flight);
+			flight.completeExceptionally(e);
+
+			throw e;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> CompletableFuture<T> executeAsync(String key, Supplier<CompletableFuture<T>> call) { // Non-blocking version. Every caller gets its own copy of the shared future, so cancelling one doesn't affect the others.
+		CompletableFuture<Object> flight = new CompletableFuture<Object>();
+		CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+
+		if (existing != null) {
+			coalesced(key);
+
+			return existing.thenApply(result -> (T) result);
+		}
+
+		try {
+			call.get().whenComplete((result, e) -> {
+				inFlight.remove(key, flight);
+
+				if (e != null) {
+					flight.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+
+				} else {
+					flight.complete(result);
+				}
+			});
+
+		} catch(RuntimeException e) {
+			inFlight.remove(key, flight);
+			flight.completeExceptionally(e);
+		}
+
+		return flight.thenApply(result -> (T) result);
+	}
+
+	public double getCoalesced(String call) { // Number of callers that shared another caller's result for this type of call, e.g. "search".
+		Counter counter = meterRegistry.find("dwp.upstream.coalesced").tag("call", call).counter();
+
+		return counter == null ? 0 : counter.count();
+	}
+
+	private void coalesced(String key) {
+		meterRegistry.counter("dwp.upstream.coalesced", "call", getCall(key)).increment(); // Tagged by type of call rather than key, as a tag per city would be a new metric series for every city searched.
+	}
+
+	static String getCall(String key) { // Keys are "users" or "<call>:<city>".
+		int colon = key.indexOf(':');
+
+		return colon < 0 ? key : key.substring(0, colon);
+	}
+
+	private static Exception unwrap(CompletionException e) {
+		Throwable cause = e.getCause();
+
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+
+		return cause instanceof Exception ? (Exception) cause : e;
+	}
+}
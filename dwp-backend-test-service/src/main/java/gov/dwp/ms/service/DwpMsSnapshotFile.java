@@ -0,0 +1,231 @@
+package gov.dwp.ms.service;
+
+
+import gov.dwp.ms.model.APILocationResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+public class DwpMsSnapshotFile { // Binary file holding a users snapshot and the cached city locations, so a restarted service can serve straight away.
+	// Layout, header in big endian:
+	//   0 magic "DWPS", 4 format version, 8 byte order of the records (1 little, 2 big), 12 created at millis,
+	//   20 user count, 24 records length, 32 strings length, 40 cities length, 48 CRC32 of everything after the header.
+	// Then the users records and string pool exactly as held off heap (so they can be memory mapped and read in place), then the cities.
+
+	static final int MAGIC = 0x44575053;
+	static final int FORMAT_VERSION = 1;
+	static final int HEADER_BYTES = 56;
+
+	private final long createdAt;
+	private final DwpMsOffHeapUsersColumns users;
+	private final Map<String, APILocationResponse> cities;
+
+	private DwpMsSnapshotFile(long createdAt, DwpMsOffHeapUsersColumns users, Map<String, APILocationResponse> cities) {
+		this.createdAt = createdAt;
+		this.users = users;
+		this.cities = cities;
+	}
+
+	public long getCreatedAt() { // When the saved users were fetched, used to ignore files that are too old.
+		return createdAt;
+	}
+
+	public int getUserCount() {
+		return users.size();
+	}
+
+	DwpMsOffHeapUsersColumns getUsers() { // Users read in place from the memory mapped file.
+		return users;
+	}
+
+	public Map<String, APILocationResponse> getCities() {
+		return cities;
+	}
+
+	public static void write(Path file, DwpMsUsersSnapshot snapshot, Map<String, APILocationResponse> cities) throws IOException { // Writes to a temp file then renames it over the old one, so readers only ever see a complete file.
+		DwpMsOffHeapUsersColumns columns = snapshot.getColumns() instanceof DwpMsOffHeapUsersColumns
+				? (DwpMsOffHeapUsersColumns) snapshot.getColumns()
+				: DwpMsOffHeapUsersColumns.copyOf(snapshot.getColumns()); // Heap snapshots are converted to the same record layout.
+
+		ByteBuffer records = columns.getRecords();
+		ByteBuffer strings = columns.getStrings();
+		ByteBuffer citiesBuffer = encodeCities(cities);
+
+		CRC32 crc = new CRC32();
+		crc.update(records.duplicate());
+		crc.update(strings.duplicate());
+		crc.update(citiesBuffer.duplicate());
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.putInt(byteOrderFlag(ByteOrder.nativeOrder()));
+		header.putLong(snapshot.getCreatedAt()); // When the users were fetched, not when the file was written, so a stale snapshot saved on shutdown is still stale when loaded.
+		header.putInt(columns.size());
+		header.putLong(records.remaining());
+		header.putLong(strings.remaining());
+		header.putLong(citiesBuffer.remaining());
+		header.putLong(crc.getValue());
+		header.flip();
+
+		Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp"); // Same directory so the rename can be atomic.
+
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				for (ByteBuffer buffer : new ByteBuffer[] {header, records, strings, citiesBuffer}) {
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+
+				channel.force(true); // Make sure the data is on disk before the rename makes it visible.
+			}
+
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	public static DwpMsSnapshotFile load(Path file) throws IOException { // Memory maps the file and checks it. Throws IOException if the file is missing, from another version or corrupt.
+		ByteBuffer mapped;
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Snapshot file is an invalid size " + channel.size());
+			}
+
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // Stays valid after the channel is closed.
+		}
+
+		int size = mapped.capacity();
+
+		if (mapped.getInt(0) != MAGIC) {
+			throw new IOException("Not a snapshot file");
+		}
+
+		if (mapped.getInt(4) != FORMAT_VERSION) {
+			throw new IOException("Snapshot file format version " + mapped.getInt(4) + " is not supported");
+		}
+
+		if (mapped.getInt(8) != byteOrderFlag(ByteOrder.nativeOrder())) {
+			throw new IOException("Snapshot file was written on a machine with a different byte order");
+		}
+
+		long createdAt = mapped.getLong(12);
+		int userCount = mapped.getInt(20);
+		long recordsLength = mapped.getLong(24);
+		long stringsLength = mapped.getLong(32);
+		long citiesLength = mapped.getLong(40);
+		long checksum = mapped.getLong(48);
+
+		if (userCount < 0 || recordsLength != (long) userCount * DwpMsOffHeapUsersColumns.RECORD_BYTES || stringsLength < 0 || citiesLength < 0
+				|| HEADER_BYTES + recordsLength + stringsLength + citiesLength != size) {
+			throw new IOException("Snapshot file is truncated or has invalid lengths");
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(mapped.slice(HEADER_BYTES, size - HEADER_BYTES));
+
+		if (crc.getValue() != checksum) {
+			throw new IOException("Snapshot file checksum does not match");
+		}
+
+		ByteBuffer records = mapped.slice(HEADER_BYTES, (int) recordsLength);
+		ByteBuffer strings = mapped.slice(HEADER_BYTES + (int) recordsLength, (int) stringsLength);
+		ByteBuffer cities = mapped.slice(HEADER_BYTES + (int) (recordsLength + stringsLength), (int) citiesLength);
+
+		return new DwpMsSnapshotFile(createdAt, new DwpMsOffHeapUsersColumns(userCount, records, strings), decodeCities(cities));
+	}
+
+	private static ByteBuffer encodeCities(Map<String, APILocationResponse> cities) { // Count, then the key and location fields of each city as length prefixed UTF-8.
+		byte[][][] encoded = new byte[cities.size()][][];
+		int length = 4;
+		int i = 0;
+
+		for (Map.Entry<String, APILocationResponse> city : cities.entrySet()) {
+			APILocationResponse location = city.getValue();
+			encoded[i] = new byte[][] {bytes(city.getKey()), bytes(location.getDisplayName()), bytes(location.getType()), bytes(location.getLat()), bytes(location.getLon())};
+
+			for (byte[] field : encoded[i]) {
+				length += 4 + (field == null ? 0 : field.length);
+			}
+
+			i++;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(encoded.length);
+
+		for (byte[][] city : encoded) {
+			for (byte[] field : city) {
+				buffer.putInt(field == null ? -1 : field.length);
+
+				if (field != null) {
+					buffer.put(field);
+				}
+			}
+		}
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	private static Map<String, APILocationResponse> decodeCities(ByteBuffer buffer) throws IOException {
+		Map<String, APILocationResponse> cities = new LinkedHashMap<String, APILocationResponse>();
+
+		try {
+			int count = buffer.getInt();
+
+			for (int i = 0; i < count; i++) {
+				String key = string(buffer);
+				APILocationResponse location = new APILocationResponse();
+				location.setDisplay_name(string(buffer));
+				location.setType(string(buffer));
+				location.setLat(string(buffer));
+				location.setLon(string(buffer));
+				cities.put(key, location);
+			}
+
+		} catch(RuntimeException e) { // Buffer under/overflow, only possible if the checksum missed corruption.
+			throw new IOException("Snapshot file cities are invalid", e);
+		}
+
+		return cities;
+	}
+
+	private static byte[] bytes(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(ByteBuffer buffer) {
+		int length = buffer.getInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int byteOrderFlag(ByteOrder order) {
+		return order == ByteOrder.LITTLE_ENDIAN ? 1 : 2;
+	}
+}
@@ -0,0 +1,136 @@
+package gov.dwp.ms.service;
+
+
+import com.github.benmanes.caffeine.cache.Cache;
+import gov.dwp.ms.model.APILocationResponse;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+
+@Component
+public class DwpMsSnapshotPersistence { // Saves the users snapshot and city locations to disk, and loads them on startup so the service can serve before the first users api call returns.
+
+	private static final Logger log = LoggerFactory.getLogger(DwpMsSnapshotPersistence.class);
+
+	@Autowired
+	DwpMsUsersSnapshotStore usersSnapshotStore;
+
+	@Autowired
+	CacheManager cacheManager;
+
+	@Value("${users.snapshot.file:}")
+	String snapshotFile; // Empty turns persistence off.
+
+	@Value("${users.snapshot.file.max.age.ms:86400000}")
+	long maxAgeMs; // Older files are ignored completely.
+
+	@Value("${users.snapshot.max.staleness.ms:300000}")
+	long maxStalenessMs; // Users older than this would not be served anyway, so only the cities are loaded from the file.
+
+	@PostConstruct
+	public void load() { // Runs before the scheduled refresh starts, which then replaces the loaded snapshot in the background.
+		if (snapshotFile.isEmpty()) {
+			return;
+		}
+
+		Path file = Paths.get(snapshotFile);
+
+		try {
+			DwpMsSnapshotFile snapshot = DwpMsSnapshotFile.load(file);
+			long age = System.currentTimeMillis() - snapshot.getCreatedAt();
+
+			if (age > maxAgeMs) {
+				log.warn("Ignoring snapshot file " + file + " as it is " + age + "ms old");
+				return;
+			}
+
+			putCities(snapshot.getCities()); // City co-ordinates never change, so they are worth loading from any file within the max age.
+
+			if (age > maxStalenessMs) {
+				log.info("Loaded " + snapshot.getCities().size() + " cities from snapshot file " + file + ", users ignored as they are " + age + "ms old");
+				return;
+			}
+
+			usersSnapshotStore.publish(snapshot.getUsers(), snapshot.getCreatedAt());
+
+			log.info("Loaded " + snapshot.getUserCount() + " users and " + snapshot.getCities().size() + " cities from snapshot file " + file);
+
+		} catch(NoSuchFileException e) {
+			log.info("No snapshot file at " + file);
+
+		} catch(IOException | RuntimeException e) { // A bad file must never stop the service starting, it just starts cold.
+			log.warn("Ignoring snapshot file " + file + ": " + e.getMessage());
+		}
+	}
+
+	@EventListener
+	public void onUsersSnapshot(DwpMsUsersSnapshotEvent event) { // Runs on the refresh thread, so writing the file is off the request path.
+		save(event.getSnapshot());
+	}
+
+	@PreDestroy
+	public void close() { // Saves again on shutdown to pick up cities looked up since the last refresh.
+		save(usersSnapshotStore.getCurrent());
+	}
+
+	void save(DwpMsUsersSnapshot snapshot) {
+		if (snapshotFile.isEmpty() || snapshot == null) {
+			return;
+		}
+
+		try {
+			DwpMsSnapshotFile.write(Paths.get(snapshotFile), snapshot, getCities());
+
+		} catch(IOException | RuntimeException e) {
+			log.warn("Failed to write snapshot file " + snapshotFile + ": " + e.getMessage());
+		}
+	}
+
+	Map<String, APILocationResponse> getCities() { // The cities cache holds the futures returned by the @Cacheable location calls, only completed ones are saved.
+		Map<String, APILocationResponse> cities = new LinkedHashMap<String, APILocationResponse>();
+		Cache<Object, Object> cache = getCitiesCache();
+
+		if (cache != null) {
+			cache.asMap().forEach((key, value) -> {
+				if (value instanceof CompletableFuture && ((CompletableFuture<?>) value).isDone() && !((CompletableFuture<?>) value).isCompletedExceptionally()) {
+					Object location = ((CompletableFuture<?>) value).join();
+
+					if (location instanceof APILocationResponse) {
+						cities.put(key.toString(), (APILocationResponse) location);
+					}
+				}
+			});
+		}
+
+		return cities;
+	}
+
+	void putCities(Map<String, APILocationResponse> cities) {
+		Cache<Object, Object> cache = getCitiesCache();
+
+		if (cache != null) {
+			cities.forEach((key, location) -> cache.put(key, CompletableFuture.completedFuture(location)));
+		}
+	}
+
+	private Cache<Object, Object> getCitiesCache() {
+		org.springframework.cache.Cache cache = cacheManager.getCache("cities");
+
+		return cache instanceof CaffeineCache ? ((CaffeineCache) cache).getNativeCache() : null;
+	}
+}
@@ -0,0 +1,25 @@
+package gov.dwp.ms.service;
+
+
+interface DwpMsUsersColumns { // Storage behind a users snapshot, one value per user for each field.
+
+	int size();
+
+	int getId(int index);
+
+	double getLatitude(int index);
+
+	double getLongitude(int index);
+
+	String getFirstName(int index);
+
+	String getLastName(int index);
+
+	String getEmail(int index);
+
+	String getIpAddress(int index);
+
+	boolean isOffHeap();
+
+	long fingerprint(); // Hash of every user in order, worked out from the stored values without creating any Strings.
+}
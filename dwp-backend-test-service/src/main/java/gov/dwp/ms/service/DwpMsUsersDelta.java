@@ -0,0 +1,187 @@
+package gov.dwp.ms.service;
+
+
+import java.util.Arrays;
+import java.util.Objects;
+
+
+public class DwpMsUsersDelta { // Changes between a users snapshot and the users list fetched after it, matched by user id.
+	// Users keep their position from the previous snapshot where they can, so anything indexed by position (e.g. the grid index)
+	// only has to drop the positions in getRemovedPositions() and add the ones in getAddedPositions(), rather than being rebuilt.
+
+	private final long previousVersion;
+	private final int added;
+	private final int removed;
+	private final int updated;
+	private final int moved;
+	private final int[] removedPositions;
+	private final int[] addedPositions;
+	private int[] layout; // Position in the fetched list of the user at each new position. Only needed until the new columns are built.
+
+	private DwpMsUsersDelta(long previousVersion, int added, int removed, int updated, int moved, int[] removedPositions, int[] addedPositions, int[] layout) {
+		this.previousVersion = previousVersion;
+		this.added = added;
+		this.removed = removed;
+		this.updated = updated;
+		this.moved = moved;
+		this.removedPositions = removedPositions;
+		this.addedPositions = addedPositions;
+		this.layout = layout;
+	}
+
+	static DwpMsUsersDelta diff(DwpMsUsersSnapshot previous, DwpMsUsersColumns fetched) { // Returns null if either list has duplicate ids, as users can't then be matched up and a full rebuild is needed.
+		DwpMsUsersColumns old = previous.getColumns();
+		long[] oldIds = sortedIds(old);
+		long[] newIds = sortedIds(fetched);
+
+		if (oldIds == null || newIds == null) {
+			return null;
+		}
+
+		int oldSize = oldIds.length;
+		int newSize = newIds.length;
+		int[] previousPosition = new int[newSize]; // Position in the previous snapshot of each fetched user, or -1 if it is new.
+		Arrays.fill(previousPosition, -1);
+		boolean[] reindex = new boolean[newSize]; // Fetched users whose index entry has to be (re)added.
+		int added = 0, removed = 0, updated = 0, moved = 0;
+		int[] removedPositions = new int[oldSize];
+		int removedCount = 0;
+
+		for (int i = 0, j = 0; i < oldSize || j < newSize;) { // Merge the two sorted id lists.
+			long oldId = i < oldSize ? oldIds[i] >> 32 : Long.MAX_VALUE;
+			long newId = j < newSize ? newIds[j] >> 32 : Long.MAX_VALUE;
+
+			if (oldId == newId) {
+				int oldPosition = (int) oldIds[i++];
+				int newPosition = (int) newIds[j++];
+				previousPosition[newPosition] = oldPosition;
+
+				if (old.getLatitude(oldPosition) != fetched.getLatitude(newPosition) || old.getLongitude(oldPosition) != fetched.getLongitude(newPosition)) {
+					moved++;
+					reindex[newPosition] = true;
+					removedPositions[removedCount++] = oldPosition;
+
+				} else if (!sameDetails(old, oldPosition, fetched, newPosition)) {
+					updated++; // The index only holds co-ords, so details changes don't touch it.
+				}
+
+			} else if (oldId < newId) {
+				removed++;
+				removedPositions[removedCount++] = (int) oldIds[i++];
+
+			} else {
+				added++;
+				reindex[(int) newIds[j++]] = true;
+			}
+		}
+
+		int[] layout = new int[newSize];
+		Arrays.fill(layout, -1);
+		int[] pending = new int[newSize]; // Fetched users that can't keep their previous position.
+		int pendingCount = 0;
+
+		for (int j = 0; j < newSize; j++) {
+			if (previousPosition[j] >= 0 && previousPosition[j] < newSize) {
+				layout[previousPosition[j]] = j;
+
+			} else {
+				if (previousPosition[j] >= 0 && !reindex[j]) { // Past the end of the smaller list, so it has to move to a free position. Moved users already had their old position removed.
+					removedPositions[removedCount++] = previousPosition[j];
+					reindex[j] = true;
+				}
+
+				pending[pendingCount++] = j;
+			}
+		}
+
+		int[] addedPositions = new int[newSize];
+		int addedCount = 0;
+
+		for (int position = 0, p = 0; position < newSize; position++) {
+			if (layout[position] < 0) { // Free position left by a removed user, or past the end of the previous list.
+				layout[position] = pending[p++];
+			}
+
+			if (reindex[layout[position]]) {
+				addedPositions[addedCount++] = position;
+			}
+		}
+
+		return new DwpMsUsersDelta(previous.getVersion(), added, removed, updated, moved,
+				Arrays.copyOf(removedPositions, removedCount), Arrays.copyOf(addedPositions, addedCount), layout);
+	}
+
+	DwpMsHeapUsersColumns apply(DwpMsUsersColumns fetched) { // Creates the new columns with the fetched users in their new positions.
+		int size = layout.length;
+		int[] ids = new int[size];
+		double[] latitudes = new double[size];
+		double[] longitudes = new double[size];
+		String[] firstNames = new String[size];
+		String[] lastNames = new String[size];
+		String[] emails = new String[size];
+		String[] ipAddresses = new String[size];
+
+		for (int position = 0; position < size; position++) {
+			int j = layout[position];
+			ids[position] = fetched.getId(j);
+			latitudes[position] = fetched.getLatitude(j);
+			longitudes[position] = fetched.getLongitude(j);
+			firstNames[position] = fetched.getFirstName(j);
+			lastNames[position] = fetched.getLastName(j);
+			emails[position] = fetched.getEmail(j);
+			ipAddresses[position] = fetched.getIpAddress(j);
+		}
+
+		layout = null; // Not needed once applied, so the snapshot doesn't hold on to it.
+
+		return new DwpMsHeapUsersColumns(ids, latitudes, longitudes, firstNames, lastNames, emails, ipAddresses);
+	}
+
+	public long getPreviousVersion() { // Version of the snapshot the positions are relative to.
+		return previousVersion;
+	}
+
+	public boolean isEmpty() { // No users added, removed or changed, so the previous snapshot can carry on being served.
+		return added == 0 && removed == 0 && updated == 0 && moved == 0;
+	}
+
+	public int getChanges() {
+		return added + removed + updated + moved;
+	}
+
+	public int[] getRemovedPositions() { // Positions in the previous snapshot whose index entries are no longer valid.
+		return removedPositions.clone();
+	}
+
+	public int[] getAddedPositions() { // Positions in the new snapshot that need adding to the index, in ascending order.
+		return addedPositions.clone();
+	}
+
+	@Override
+	public String toString() {
+		return added + " added, " + removed + " removed, " + updated + " updated, " + moved + " moved";
+	}
+
+	private static long[] sortedIds(DwpMsUsersColumns columns) { // Id and position packed together and sorted by id, or null if there are duplicate ids.
+		long[] ids = new long[columns.size()];
+
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = ((long) columns.getId(i) << 32) | i;
+		}
+
+		Arrays.sort(ids);
+
+		for (int i = 1; i < ids.length; i++) {
+			if (ids[i] >> 32 == ids[i - 1] >> 32) {
+				return null;
+			}
+		}
+
+		return ids;
+	}
+
+	private static boolean sameDetails(DwpMsUsersColumns a, int i, DwpMsUsersColumns b, int j) {
+		return Objects.equals(a.getFirstName(i), b.getFirstName(j)) && Objects.equals(a.getLastName(i), b.getLastName(j))
+				&& Objects.equals(a.getEmail(i), b.getEmail(j)) && Objects.equals(a.getIpAddress(i), b.getIpAddress(j));
+	}
+}
@@ -0,0 +1,111 @@
+package gov.dwp.ms.service;
+
+
+import java.nio.ByteBuffer;
+
+
+class DwpMsUsersFingerprint { // 64 bit hash of a users list, fed field by field. Strings are hashed as their UTF-8 bytes, so heap columns (from the Strings) and off heap columns (from the stored bytes) give the same hash without decoding anything.
+
+	private long hash;
+	private long pending; // Up to 8 bytes waiting to be mixed in, so bytes are mixed a long at a time.
+	private int pendingBytes;
+
+	DwpMsUsersFingerprint(int size) {
+		this.hash = mix(0, size);
+	}
+
+	void add(long value) {
+		hash = mix(hash, value);
+	}
+
+	void add(double value) {
+		hash = mix(hash, Double.doubleToLongBits(value));
+	}
+
+	void add(String value) { // Same bytes as value.getBytes(UTF_8), which is how the off heap string pool stores them.
+		if (value == null) {
+			addNull();
+			return;
+		}
+
+		int count = 0;
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			if (c < 0x80) {
+				addByte(c);
+				count += 1;
+
+			} else if (c < 0x800) {
+				addByte(0xC0 | (c >> 6));
+				addByte(0x80 | (c & 0x3F));
+				count += 2;
+
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				addByte(0xF0 | (codePoint >> 18));
+				addByte(0x80 | ((codePoint >> 12) & 0x3F));
+				addByte(0x80 | ((codePoint >> 6) & 0x3F));
+				addByte(0x80 | (codePoint & 0x3F));
+				count += 4;
+
+			} else if (Character.isSurrogate(c)) {
+				addByte('?'); // Unpaired surrogate, replaced the same as getBytes does.
+				count += 1;
+
+			} else {
+				addByte(0xE0 | (c >> 12));
+				addByte(0x80 | ((c >> 6) & 0x3F));
+				addByte(0x80 | (c & 0x3F));
+				count += 3;
+			}
+		}
+
+		endString(count);
+	}
+
+	void add(ByteBuffer buffer, int offset, int length) { // UTF-8 bytes of a string, read in place with absolute gets.
+		for (int i = 0; i < length; i++) {
+			addByte(buffer.get(offset + i));
+		}
+
+		endString(length);
+	}
+
+	void addNull() {
+		flush();
+		hash = mix(hash, -1);
+	}
+
+	long get() {
+		flush();
+
+		return hash;
+	}
+
+	private void addByte(int b) {
+		pending = (pending << 8) | (b & 0xFF);
+
+		if (++pendingBytes == 8) {
+			flush();
+		}
+	}
+
+	private void endString(int length) { // The length ends each string, so "ab" + "c" and "a" + "bc" hash differently.
+		flush();
+		hash = mix(hash, length);
+	}
+
+	private void flush() {
+		if (pendingBytes > 0) {
+			hash = mix(hash, pending);
+			pending = 0;
+			pendingBytes = 0;
+		}
+	}
+
+	private static long mix(long hash, long value) {
+		return Long.rotateLeft(hash ^ (value * 0x9E3779B97F4A7C15L), 29) * 0xBF58476D1CE4E5B9L;
+	}
+}
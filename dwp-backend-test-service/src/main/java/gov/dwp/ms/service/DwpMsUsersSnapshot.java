@@ -0,0 +1,119 @@
+package gov.dwp.ms.service;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class DwpMsUsersSnapshot extends AbstractList<APIUsersResponse> { // Immutable, versioned view of the users api list. Behaves as a normal list so callers of getUsersResults are unaffected.
+	// Users are held in columns rather than as objects. The radius search only needs the id, latitude and longitude,
+	// so an APIUsersResponse is only created when get() is called, e.g. for users that are in the results.
+
+	private final long version;
+	private final long createdAt;
+	private final DwpMsUsersColumns columns;
+	private final DwpMsUsersDelta delta;
+	private final AtomicLong fingerprint; // 0 until first asked for.
+
+	public DwpMsUsersSnapshot(long version, List<APIUsersResponse> users) {
+		this(version, DwpMsUsersSnapshotBuilder.of(users).build(version).columns);
+	}
+
+	DwpMsUsersSnapshot(long version, DwpMsUsersColumns columns) {
+		this(version, columns, null);
+	}
+
+	DwpMsUsersSnapshot(long version, DwpMsUsersColumns columns, DwpMsUsersDelta delta) {
+		this(version, columns, delta, System.currentTimeMillis());
+	}
+
+	DwpMsUsersSnapshot(long version, DwpMsUsersColumns columns, DwpMsUsersDelta delta, long createdAt) { // createdAt is when the users were fetched, which for a loaded file is when it was saved rather than now.
+		this(version, columns, delta, createdAt, new AtomicLong());
+	}
+
+	private DwpMsUsersSnapshot(long version, DwpMsUsersColumns columns, DwpMsUsersDelta delta, long createdAt, AtomicLong fingerprint) {
+		this.version = version;
+		this.createdAt = createdAt;
+		this.columns = columns;
+		this.delta = delta;
+		this.fingerprint = fingerprint;
+	}
+
+	DwpMsUsersSnapshot renew() { // Same version and users, created now. Used when the users api confirms nothing has changed.
+		return new DwpMsUsersSnapshot(version, columns, delta, System.currentTimeMillis(), fingerprint); // Shares the fingerprint, so it is only worked out once for the users.
+	}
+
+	public long getVersion() { // Increases every time a new snapshot is published, so it can be used to detect changes in the users data.
+		return version;
+	}
+
+	public long getFingerprint() { // Hash of the users themselves. Unlike the version it is the same for the same users after a restart or on another instance, so it can go in ETags and cursors.
+		// Worked out the first time it is needed rather than on publish, so publishing and loading a snapshot file stay cheap. Two requests may both work it out, which is harmless as the hash is the same.
+		long value = fingerprint.get();
+
+		if (value == 0) {
+			value = columns.fingerprint();
+			value = value == 0 ? 1 : value; // 0 means not worked out yet.
+			fingerprint.set(value);
+		}
+
+		return value;
+	}
+
+	public long getCreatedAt() { // When the users were last fetched or confirmed unchanged by the users api.
+		return createdAt;
+	}
+
+	public long getAge() { // Age of the snapshot in milliseconds.
+		return System.currentTimeMillis() - createdAt;
+	}
+
+	public int getId(int index) {
+		return columns.getId(index);
+	}
+
+	public double getLatitude(int index) {
+		return columns.getLatitude(index);
+	}
+
+	public double getLongitude(int index) {
+		return columns.getLongitude(index);
+	}
+
+	public DwpMsUsersDelta getDelta() { // Changes from the previous version, or null if this snapshot was built from scratch.
+		return delta;
+	}
+
+	public boolean isOffHeap() {
+		return columns.isOffHeap();
+	}
+
+	DwpMsUsersColumns getColumns() {
+		return columns;
+	}
+
+	@Override
+	public APIUsersResponse get(int index) { // Creates the full user from the columns. A new object is returned each time.
+		if (index < 0 || index >= columns.size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + columns.size());
+		}
+
+		APIUsersResponse user = new APIUsersResponse();
+		user.setId(columns.getId(index));
+		user.setFirst_name(columns.getFirstName(index));
+		user.setLast_name(columns.getLastName(index));
+		user.setEmail(columns.getEmail(index));
+		user.setIp_address(columns.getIpAddress(index));
+		user.setLatitude(columns.getLatitude(index));
+		user.setLongitude(columns.getLongitude(index));
+
+		return user;
+	}
+
+	@Override
+	public int size() {
+		return columns.size();
+	}
+}
@@ -0,0 +1,91 @@
+package gov.dwp.ms.service;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class DwpMsUsersSnapshotBuilder { // Collects users into columns (struct of arrays) for a users snapshot, without creating an object per user.
+
+	private int size;
+	private int[] ids = new int[1024];
+	private double[] latitudes = new double[1024];
+	private double[] longitudes = new double[1024];
+	private String[] firstNames = new String[1024];
+	private String[] lastNames = new String[1024];
+	private String[] emails = new String[1024];
+	private String[] ipAddresses = new String[1024];
+
+	private final Map<String, String> stringPool = new HashMap<String, String>(); // Repeated names are stored once per snapshot.
+
+	public static DwpMsUsersSnapshotBuilder of(List<APIUsersResponse> users) { // Builds columns from an already parsed users list, skipping any null entries.
+		DwpMsUsersSnapshotBuilder builder = new DwpMsUsersSnapshotBuilder();
+
+		for (APIUsersResponse u : users) {
+			if (u != null) {
+				builder.add(u.getId(), u.getFirst_name(), u.getLast_name(), u.getEmail(), u.getIp_address(), u.getLatitude(), u.getLongitude());
+			}
+		}
+
+		return builder;
+	}
+
+	public void add(int id, String firstName, String lastName, String email, String ipAddress, double latitude, double longitude) {
+		if (size == ids.length) {
+			grow();
+		}
+
+		ids[size] = id;
+		latitudes[size] = latitude;
+		longitudes[size] = longitude;
+		firstNames[size] = pooled(firstName);
+		lastNames[size] = pooled(lastName);
+		emails[size] = email; // Emails and ip addresses are nearly always unique, so pooling them would only add work.
+		ipAddresses[size] = ipAddress;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public DwpMsUsersSnapshot build(long version) {
+		return build(version, false);
+	}
+
+	public DwpMsUsersSnapshot build(long version, boolean offHeap) { // Off heap snapshots are copied out of the builder's arrays, which are then left for the garbage collector.
+		DwpMsUsersColumns columns = columns();
+
+		return new DwpMsUsersSnapshot(version, offHeap ? DwpMsOffHeapUsersColumns.copyOf(columns) : columns);
+	}
+
+	DwpMsHeapUsersColumns columns() {
+		return new DwpMsHeapUsersColumns(
+				Arrays.copyOf(ids, size), Arrays.copyOf(latitudes, size), Arrays.copyOf(longitudes, size),
+				Arrays.copyOf(firstNames, size), Arrays.copyOf(lastNames, size), Arrays.copyOf(emails, size), Arrays.copyOf(ipAddresses, size)); // Trimmed to size, so the snapshot holds no spare capacity.
+	}
+
+	private String pooled(String value) {
+		if (value == null) {
+			return null;
+		}
+
+		String existing = stringPool.putIfAbsent(value, value);
+
+		return existing != null ? existing : value;
+	}
+
+	private void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		latitudes = Arrays.copyOf(latitudes, capacity);
+		longitudes = Arrays.copyOf(longitudes, capacity);
+		firstNames = Arrays.copyOf(firstNames, capacity);
+		lastNames = Arrays.copyOf(lastNames, capacity);
+		emails = Arrays.copyOf(emails, capacity);
+		ipAddresses = Arrays.copyOf(ipAddresses, capacity);
+	}
+}
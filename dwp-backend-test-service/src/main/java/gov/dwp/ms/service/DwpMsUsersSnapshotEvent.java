@@ -0,0 +1,21 @@
+package gov.dwp.ms.service;
+
+
+import org.springframework.context.ApplicationEvent;
+
+
+public class DwpMsUsersSnapshotEvent extends ApplicationEvent { // Published when the background refresh swaps in a new users snapshot, so anything derived from the users can be rebuilt off the request path.
+
+	private static final long serialVersionUID = 1L;
+	
+	private final transient DwpMsUsersSnapshot snapshot;
+
+	public DwpMsUsersSnapshotEvent(Object source, DwpMsUsersSnapshot snapshot) {
+		super(source);
+		this.snapshot = snapshot;
+	}
+
+	public DwpMsUsersSnapshot getSnapshot() {
+		return snapshot;
+	}
+}
@@ -0,0 +1,39 @@
+package gov.dwp.ms.service;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+
+@Component
+public class DwpMsUsersSnapshotRefresher {
+
+    private static Logger log = LoggerFactory.getLogger(DwpMsUsersSnapshotRefresher.class);
+
+    @Autowired
+    DwpMsService dwpMsService;
+
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
+
+    private long publishedVersion = -1; // Last version listeners were told about. Only touched by the scheduler thread.
+
+    @Scheduled(fixedDelayString = "${users.snapshot.refresh.ms}") // Runs at startup and then in the background, so request threads never wait on the users api once warmed up.
+    public void refresh() {
+    	try {
+    		DwpMsUsersSnapshot snapshot = dwpMsService.refreshUsersSnapshot();
+    		
+    		if (snapshot != null && snapshot.getVersion() != publishedVersion) { // Unchanged users keep their version, so there is nothing to rebuild.
+    			publishedVersion = snapshot.getVersion();
+    			eventPublisher.publishEvent(new DwpMsUsersSnapshotEvent(this, snapshot)); // Let listeners rebuild anything derived from the users before requests need it.
+    		}
+
+    	} catch(Exception e) {
+    		log.warn("Unable to refresh users snapshot, continuing to serve the previous snapshot " + e.getMessage()); // Stale snapshot is served until it reaches the max staleness.
+    	}
+    }
+}
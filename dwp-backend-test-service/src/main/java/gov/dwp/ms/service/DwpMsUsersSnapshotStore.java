@@ -0,0 +1,86 @@
+package gov.dwp.ms.service;
+
+
+import gov.dwp.ms.model.APIUsersResponse;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+
+@Component
+public class DwpMsUsersSnapshotStore { // Holds the current users snapshot. Readers always get a complete snapshot as new ones are swapped in atomically.
+
+	private final AtomicReference<DwpMsUsersSnapshot> current = new AtomicReference<DwpMsUsersSnapshot>();
+	private final AtomicLong versions = new AtomicLong();
+	private volatile String[] validators = new String[2]; // ETag and Last-Modified, swapped together.
+
+	@Value("${users.snapshot.storage:heap}")
+	String storage; // heap or offheap.
+
+	public DwpMsUsersSnapshot getCurrent() { // Returns the latest snapshot, or null if the users api has not been fetched yet.
+		return current.get();
+	}
+
+	public DwpMsUsersSnapshot publish(List<APIUsersResponse> users) { // Creates a new snapshot version from the fetched users and makes it the current one.
+		return publish(DwpMsUsersSnapshotBuilder.of(users));
+	}
+
+	public DwpMsUsersSnapshot publish(DwpMsUsersSnapshotBuilder users) { // Creates a new snapshot version from users read straight into columns and makes it the current one.
+		return publish(users, null, null);
+	}
+
+	public DwpMsUsersSnapshot publish(DwpMsUsersSnapshotBuilder users, String etag, String lastModified) { // Same, also keeping the users api response validators for the next conditional request.
+		boolean offHeap = "offheap".equalsIgnoreCase(storage);
+		DwpMsUsersSnapshot previous = current.get();
+		DwpMsUsersColumns fetched = users.columns();
+		DwpMsUsersDelta delta = previous == null ? null : DwpMsUsersDelta.diff(previous, fetched); // Diff by user id against the current snapshot.
+		DwpMsUsersSnapshot snapshot;
+
+		if (delta == null) {
+			snapshot = new DwpMsUsersSnapshot(versions.incrementAndGet(), offHeap ? DwpMsOffHeapUsersColumns.copyOf(fetched) : fetched);
+
+		} else if (delta.isEmpty()) {
+			snapshot = previous.renew(); // Nothing changed, keep the same version so nothing derived from it is rebuilt.
+
+		} else {
+			DwpMsUsersColumns columns = delta.apply(fetched); // A new copy, the previous snapshot is never modified as requests may still be reading it.
+			snapshot = new DwpMsUsersSnapshot(versions.incrementAndGet(), offHeap ? DwpMsOffHeapUsersColumns.copyOf(columns) : columns, delta);
+		}
+
+		this.validators = new String[] {etag, lastModified};
+		current.set(snapshot);
+
+		return snapshot;
+	}
+
+	public DwpMsUsersSnapshot renew() { // The users api said the users have not been modified, so the current snapshot is fresh again.
+		DwpMsUsersSnapshot previous = current.get();
+
+		if (previous == null) {
+			return null;
+		}
+
+		DwpMsUsersSnapshot snapshot = previous.renew();
+		current.compareAndSet(previous, snapshot);
+
+		return snapshot;
+	}
+
+	public String getEtag() { // ETag of the users api response the current snapshot came from, or null.
+		return validators[0];
+	}
+
+	public String getLastModified() { // Last-Modified of the users api response the current snapshot came from, or null.
+		return validators[1];
+	}
+
+	DwpMsUsersSnapshot publish(DwpMsUsersColumns users, long createdAt) { // Makes already built columns, e.g. loaded from the snapshot file, the current snapshot. Keeps the age they had when saved, so the staleness checks still apply.
+		DwpMsUsersSnapshot snapshot = new DwpMsUsersSnapshot(versions.incrementAndGet(), users, null, createdAt);
+		this.validators = new String[2]; // Not from a users api response, so the next fetch must be unconditional.
+		current.set(snapshot);
+
+		return snapshot;
+	}
+}
@@ -0,0 +1,88 @@
+package gov.dwp.ms.service;
+
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+public class DwpMsUsersStreamReader { // Reads the users api json array token by token straight into snapshot columns, so no APIUsersResponse objects are created.
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	public static DwpMsUsersSnapshotBuilder read(InputStream body) throws IOException {
+		DwpMsUsersSnapshotBuilder builder = new DwpMsUsersSnapshotBuilder();
+
+		try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new JsonParseException(parser, "Expected an array of users");
+			}
+
+			JsonToken token;
+
+			while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+				if (token == JsonToken.VALUE_NULL) {
+					continue; // Nothing to add, same as a null entry in a bound array.
+				}
+
+				if (token != JsonToken.START_OBJECT) {
+					throw new JsonParseException(parser, "Expected a user object but found " + token);
+				}
+
+				readUser(parser, builder);
+			}
+		}
+
+		return builder;
+	}
+
+	private static void readUser(JsonParser parser, DwpMsUsersSnapshotBuilder builder) throws IOException {
+		int id = 0;
+		String firstName = null;
+		String lastName = null;
+		String email = null;
+		String ipAddress = null;
+		double latitude = 0;
+		double longitude = 0;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+
+			switch (field) { // Values are read the same way as Jackson binding would, e.g. numbers sent as strings are still parsed.
+				case "id":
+					id = parser.getValueAsInt();
+					break;
+				case "first_name":
+					firstName = parser.getValueAsString();
+					break;
+				case "last_name":
+					lastName = parser.getValueAsString();
+					break;
+				case "email":
+					email = parser.getValueAsString();
+					break;
+				case "ip_address":
+					ipAddress = parser.getValueAsString();
+					break;
+				case "latitude":
+					latitude = parser.getValueAsDouble();
+					break;
+				case "longitude":
+					longitude = parser.getValueAsDouble();
+					break;
+				default:
+					parser.skipChildren(); // Ignore fields we don't use, including any nested objects or arrays.
+			}
+		}
+
+		if (parser.currentToken() != JsonToken.END_OBJECT) {
+			throw new JsonParseException(parser, "Unexpected end of users list");
+		}
+
+		builder.add(id, firstName, lastName, email, ipAddress, latitude, longitude);
+	}
+}
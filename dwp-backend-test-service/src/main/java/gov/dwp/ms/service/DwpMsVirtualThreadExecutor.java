@@ -0,0 +1,81 @@
+package gov.dwp.ms.service;
+
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.task.TaskExecutor;
+
+
+public class DwpMsVirtualThreadExecutor implements TaskExecutor, DisposableBean { // Runs each task on its own virtual thread, with a limit on how many run at once so the upstream apis are not flooded.
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+
+	DwpMsVirtualThreadExecutor(ExecutorService executor, int maxConcurrency) { // Package private so tests can pass a platform thread executor on JVMs without virtual threads.
+		this.executor = executor;
+		this.permits = new Semaphore(maxConcurrency);
+	}
+
+	public static DwpMsVirtualThreadExecutor create(String namePrefix, int maxConcurrency) { // Returns null if the JVM does not support virtual threads (Java 21+).
+		ExecutorService executor = newThreadPerTaskExecutor(namePrefix);
+
+		return executor == null ? null : new DwpMsVirtualThreadExecutor(executor, maxConcurrency);
+	}
+
+	public static ExecutorService newThreadPerTaskExecutor(String namePrefix) { // Unbounded executor starting a new virtual thread for each task, or null if virtual threads are not supported.
+		ThreadFactory factory = virtualThreadFactory(namePrefix);
+
+		if (factory == null) {
+			return null;
+		}
+
+		try {
+			Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class); // Looked up by reflection as the application is compiled for Java 13.
+
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+
+		} catch(ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	public static ThreadFactory virtualThreadFactory(String namePrefix) { // Equivalent of Thread.ofVirtual().name(namePrefix, 0).factory(), or null if virtual threads are not supported.
+		try {
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder"); // Methods are looked up on the public interface, as the builder's own class is not public and can't be invoked through.
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+
+			return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		executor.execute(() -> { // Wait for a permit on the virtual thread itself, so callers are never blocked and waiting costs no OS thread.
+			permits.acquireUninterruptibly();
+
+			try {
+				task.run();
+
+			} finally {
+				permits.release();
+			}
+		});
+	}
+
+	public int getAvailablePermits() {
+		return permits.availablePermits();
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+}
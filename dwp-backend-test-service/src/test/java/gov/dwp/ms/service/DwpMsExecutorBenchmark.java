@@ -0,0 +1,93 @@
+package gov.dwp.ms.service;
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+
+public class DwpMsExecutorBenchmark { // Load test comparing the platform thread pool with virtual threads. Not a unit test, run the main method from the IDE or with the test classpath.
+	// Each request makes 3 concurrent blocking calls (location, users, search) of 50ms, the same shape as the controller.
+	// Virtual threads need Java 21 or later, otherwise only the platform pool is measured.
+
+	private static final int CALLS_PER_REQUEST = 3;
+	private static final long CALL_MILLIS = 50;
+
+	public static void main(String[] args) throws Exception {
+		int[] clients = args.length > 0 ? new int[] {Integer.parseInt(args[0])} : new int[] {200, 1000, 4000};
+
+		for (int concurrentClients : clients) {
+			ThreadPoolTaskExecutor platform = new ThreadPoolTaskExecutor(); // Same settings as application.properties.
+			platform.setCorePoolSize(600);
+			platform.setMaxPoolSize(600);
+			platform.setQueueCapacity(300);
+			platform.setThreadNamePrefix("bench-exec-");
+			platform.initialize();
+
+			run("platform", platform, concurrentClients);
+			platform.shutdown();
+
+			DwpMsVirtualThreadExecutor virtual = DwpMsVirtualThreadExecutor.create("bench-vthread-", 600);
+
+			if (virtual != null) {
+				run("virtual", virtual, concurrentClients);
+				virtual.destroy();
+			}
+		}
+	}
+
+	private static void run(String name, Executor executor, int concurrentClients) throws Exception {
+		int requestsPerClient = 10;
+		AtomicInteger rejected = new AtomicInteger();
+		AtomicLong totalLatency = new AtomicLong();
+		Thread[] threads = new Thread[concurrentClients];
+		long start = System.nanoTime();
+
+		for (int c = 0; c < concurrentClients; c++) {
+			threads[c] = new Thread(() -> {
+				for (int r = 0; r < requestsPerClient; r++) {
+					long requestStart = System.nanoTime();
+
+					try {
+						CompletableFuture<?>[] calls = new CompletableFuture<?>[CALLS_PER_REQUEST];
+
+						for (int i = 0; i < CALLS_PER_REQUEST; i++) {
+							calls[i] = CompletableFuture.runAsync(DwpMsExecutorBenchmark::blockingCall, executor);
+						}
+
+						CompletableFuture.allOf(calls).join();
+
+					} catch(TaskRejectedException e) {
+						rejected.incrementAndGet(); // The platform pool queue is full, which the controller would return as an error.
+					}
+
+					totalLatency.addAndGet(System.nanoTime() - requestStart);
+				}
+			});
+			threads[c].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		long elapsedNanos = System.nanoTime() - start;
+		int requests = concurrentClients * requestsPerClient;
+		int completed = requests - rejected.get(); // Rejected requests fail fast, so only completed requests count towards throughput.
+
+		System.out.printf("%-8s clients=%d requests=%d elapsed=%.0fms throughput=%.0f req/s meanLatency=%.1fms rejected=%d%n",
+				name, concurrentClients, requests, elapsedNanos / 1e6, completed / (elapsedNanos / 1e9), totalLatency.get() / 1e6 / requests, rejected.get());
+	}
+
+	private static void blockingCall() { // Stands in for a blocking RestTemplate call.
+		try {
+			Thread.sleep(CALL_MILLIS);
+
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package gov.dwp.ms.service;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gov.dwp.ms.model.APILocationResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+
+public class DwpMsGazetteerTest {
+
+    @Test
+    public void get_normalisedNames() throws Exception { // Test the shipped table loads, and names match ignoring case, accents and punctuation.
+    	DwpMsGazetteer gazetteer;
+
+    	try (InputStream csv = getClass().getResourceAsStream("/gazetteer/uk-cities.csv")) {
+    		gazetteer = new DwpMsGazetteer(csv);
+    	}
+
+    	APILocationResponse london = gazetteer.get("London");
+
+    	assertTrue(gazetteer.size() > 100);
+    	assertEquals("51.5073219", london.getLat()); // Same co-ordinates as the default London search.
+    	assertEquals("-0.1276474", london.getLon());
+    	assertEquals(london.getLat(), gazetteer.get("  LONDON ").getLat());
+    	assertEquals("St Albans, England, United Kingdom", gazetteer.get("st. albans").getDisplayName());
+    	assertEquals(gazetteer.get("Stoke-on-Trent").getLat(), gazetteer.get("stoke on trent").getLat());
+    	assertEquals(gazetteer.get("St Davids").getLat(), gazetteer.get("St David's").getLat());
+    	assertEquals(gazetteer.get("Derry").getLat(), gazetteer.get("Londonderry").getLat());
+    	assertNull(gazetteer.get("Perth")); // Left for the location api, which knows the bigger Perth.
+    	assertNull(gazetteer.get("Lundon"));
+    	assertEquals(9, gazetteer.getHits());
+    	assertEquals(2, gazetteer.getMisses());
+    }
+
+    @Test
+    public void new_badLines() throws Exception { // Test a table with a bad line or a repeated name fails to load, rather than returning bad co-ordinates.
+    	assertThrows(IOException.class, () -> load("Leeds,England,53.7974185\n"));
+    	assertThrows(NumberFormatException.class, () -> load("Leeds,England,north,-1.5437941\n"));
+    	assertThrows(IOException.class, () -> load("Leeds,England,53.7974185,-1.5437941\nLEEDS,England,53.7974185,-1.5437941\n"));
+    	assertEquals(0, DwpMsGazetteer.empty().size());
+    	assertNull(DwpMsGazetteer.empty().get("Leeds"));
+    }
+
+    private DwpMsGazetteer load(String csv) throws IOException {
+    	return new DwpMsGazetteer(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,95 @@
+package gov.dwp.ms.service;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gov.dwp.ms.model.APIUsersResponse;
+import org.junit.Test;
+
+
+public class DwpMsOffHeapUsersColumnsTest {
+
+    @Test
+    public void build_sameUsersAsHeap() throws Exception { // Test an off heap snapshot returns exactly the users it was built from.
+    	DwpMsUsersSnapshotBuilder builder = new DwpMsUsersSnapshotBuilder();
+    	builder.add(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497);
+    	builder.add(137, "Zoë", "Ó Briain", null, "113.71.242.188", -6.7098551, 111.3479498);
+    	builder.add(138, "Ancell", null, "test2@test.com", null, -90, 180);
+
+    	DwpMsUsersSnapshot heap = builder.build(1);
+    	DwpMsUsersSnapshot offHeap = builder.build(1, true);
+
+    	assertTrue(offHeap.isOffHeap());
+    	assertEquals(heap.size(), offHeap.size());
+
+    	for (int i = 0; i < heap.size(); i++) {
+    		assertUserEquals(heap.get(i), offHeap.get(i));
+    		assertEquals(heap.getId(i), offHeap.getId(i));
+    		assertEquals(heap.getLatitude(i), offHeap.getLatitude(i));
+    		assertEquals(heap.getLongitude(i), offHeap.getLongitude(i));
+    	}
+
+    	assertEquals("Zoë", offHeap.get(1).getFirst_name()); // Non ascii names survive the UTF-8 round trip.
+    	assertNull(offHeap.get(1).getEmail());
+    }
+
+    @Test
+    public void build_namesStoredOnce() throws Exception { // Test repeated (pooled) names share one entry in the string pool.
+    	DwpMsUsersSnapshotBuilder builder = new DwpMsUsersSnapshotBuilder();
+
+    	for (int i = 0; i < 1000; i++) {
+    		builder.add(i, "Hugo", "Lynd", null, null, 0, 0);
+    	}
+
+    	DwpMsOffHeapUsersColumns columns = (DwpMsOffHeapUsersColumns) builder.build(1, true).getColumns();
+
+    	assertEquals(1000 * DwpMsOffHeapUsersColumns.RECORD_BYTES, columns.getRecords().capacity());
+    	assertEquals(2 * 4 + "Hugo".length() + "Lynd".length(), columns.getStrings().capacity());
+    }
+
+    @Test
+    public void fingerprint_sameAsHeap() throws Exception { // Test the fingerprint read from the off heap bytes matches the one from the heap Strings, including non ascii and surrogate pair names.
+    	DwpMsUsersSnapshotBuilder builder = new DwpMsUsersSnapshotBuilder();
+    	builder.add(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497);
+    	builder.add(137, "Zoë", "Ó Briain", null, "113.71.242.188", -6.7098551, 111.3479498);
+    	builder.add(138, "Ancell\uD83D\uDE00", "\u20AC\uD800", "test2@test.com", null, -90, 180);
+
+    	DwpMsUsersSnapshot heap = builder.build(1);
+    	DwpMsUsersSnapshot offHeap = builder.build(2, true);
+
+    	assertEquals(heap.getFingerprint(), offHeap.getFingerprint());
+    	assertEquals(heap.getFingerprint(), offHeap.renew().getFingerprint());
+
+    	DwpMsUsersSnapshotBuilder changed = new DwpMsUsersSnapshotBuilder();
+    	changed.add(136, "Ancel", "lGarnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497); // Same bytes, split differently.
+
+    	DwpMsUsersSnapshotBuilder original = new DwpMsUsersSnapshotBuilder();
+    	original.add(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497);
+
+    	assertNotEquals(original.build(1, true).getFingerprint(), changed.build(1, true).getFingerprint());
+    }
+
+    @Test
+    public void get_outOfBounds() throws Exception { // Test reads outside the snapshot fail rather than returning another user's bytes.
+    	DwpMsUsersSnapshotBuilder builder = new DwpMsUsersSnapshotBuilder();
+    	builder.add(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497);
+    	DwpMsUsersSnapshot offHeap = builder.build(1, true);
+
+    	assertThrows(IndexOutOfBoundsException.class, () -> offHeap.get(1));
+    	assertThrows(IndexOutOfBoundsException.class, () -> offHeap.getLatitude(-1));
+    }
+
+    private void assertUserEquals(APIUsersResponse expected, APIUsersResponse actual) {
+    	assertEquals(expected.getId(), actual.getId());
+    	assertEquals(expected.getFirst_name(), actual.getFirst_name());
+    	assertEquals(expected.getLast_name(), actual.getLast_name());
+    	assertEquals(expected.getEmail(), actual.getEmail());
+    	assertEquals(expected.getIp_address(), actual.getIp_address());
+    	assertEquals(expected.getLatitude(), actual.getLatitude());
+    	assertEquals(expected.getLongitude(), actual.getLongitude());
+    }
+}
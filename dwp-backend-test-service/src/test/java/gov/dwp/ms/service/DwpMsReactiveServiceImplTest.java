@@ -0,0 +1,173 @@
+package gov.dwp.ms.service;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.dwp.ms.model.APILocationResponse;
+import gov.dwp.ms.model.APIUsersResponse;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+
+public class DwpMsReactiveServiceImplTest {
+
+    private DwpMsReactiveServiceImpl dwpService = new DwpMsReactiveServiceImpl();
+
+    private AtomicInteger requests = new AtomicInteger(); // Counts the api calls made through the mock web client.
+    private HttpStatus mockStatus = HttpStatus.OK;
+    private Object mockBody;
+
+    @Before
+    public void beforeTest() {
+    	dwpService.dwpWebClient = WebClient.builder().exchangeFunction(request -> { // Mock the web client exchange so we can inject responses.
+    		requests.incrementAndGet();
+
+    		try {
+	    		return Mono.just(ClientResponse.create(mockStatus)
+	    				.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+	    				.body(new ObjectMapper().writeValueAsString(mockBody))
+	    				.build());
+
+    		} catch(Exception e) {
+    			return Mono.error(e);
+    		}
+    	}).build();
+    	dwpService.usersSnapshotStore = new DwpMsUsersSnapshotStore();
+    	dwpService.singleFlight = new DwpMsSingleFlight();
+    	dwpService.negativeCache = new DwpMsNegativeCache(100, 300000);
+    	dwpService.gazetteer = DwpMsGazetteer.empty(); // Empty, so every city goes to the mock web client.
+    	dwpService.cacheManager = new ConcurrentMapCacheManager("cities");
+    	dwpService.usersUrl = "https://testusers.com";
+    	dwpService.locationIqUrl = "https://testlocation.com/v1/search.php";
+    	dwpService.locationIqToken = "test_token";
+    	dwpService.locationErrorMsg = "Unable to obtain city from location api.";
+    	dwpService.usersErrorMsg = "Unable to obtain users from users api.";
+    	dwpService.usersMaxStalenessMs = 300000; // Set the class with the variables ready for testing.
+    	dwpService.setRequestId("client-xyz-id-12345");
+    }
+
+    @Test
+    public void getLocationResults_successWithResults() throws Exception { // Test getLocationResults returns the first location result.
+    	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
+    	dwpTestBuilder.setLocationResponse("London", "51.5073219", "-0.1276474");
+    	mockBody = new APILocationResponse[] {dwpTestBuilder.getLocationResponse()[0]};
+
+    	APILocationResponse location = dwpService.getLocationResults("London").get();
+
+    	assertEquals("51.5073219", location.getLat());
+    	assertEquals("-0.1276474", location.getLon());
+    }
+
+    @Test
+    public void getLocationResults_emptyResultsCached() throws Exception { // Test getLocationResults returns not found for an unknown city, and only calls the api once for repeats.
+    	mockBody = new APILocationResponse[0];
+
+    	ExecutionException first = assertThrows(ExecutionException.class, () -> dwpService.getLocationResults("Lundon").get());
+    	ExecutionException second = assertThrows(ExecutionException.class, () -> dwpService.getLocationResults("Lundon").get());
+
+    	assertEquals(HttpStatus.NOT_FOUND, ((ResponseStatusException) first.getCause()).getStatus());
+    	assertEquals(HttpStatus.NOT_FOUND, ((ResponseStatusException) second.getCause()).getStatus());
+    	assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void getLocationResults_serverErrorNotCached() throws Exception { // Test a server error that happens after the call starts isn't cached, and the next success is.
+    	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
+    	dwpTestBuilder.setLocationResponse("London", "51.5073219", "-0.1276474");
+    	mockStatus = HttpStatus.SERVICE_UNAVAILABLE;
+    	mockBody = new APILocationResponse[] {dwpTestBuilder.getLocationResponse()[0]};
+
+    	ExecutionException e = assertThrows(ExecutionException.class, () -> dwpService.getLocationResults("London").get());
+
+    	assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((ResponseStatusException) e.getCause()).getStatus());
+    	assertEquals(3, requests.get()); // Retried, then failed.
+
+    	mockStatus = HttpStatus.OK;
+
+    	assertEquals("51.5073219", dwpService.getLocationResults("London").get().getLat());
+    	assertEquals("51.5073219", dwpService.getLocationResults("london").get().getLat());
+    	assertEquals(4, requests.get()); // Called again after the failure, then served from the cache.
+    }
+
+    @Test
+    public void getUsersResults_servedFromSnapshot() throws Exception { // Test getUsersResults only calls the users api once while the snapshot is fresh.
+    	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	dwpTestBuilder.setUsersResponse(137, "Phyllys", "Hebbs", "test@test.com", "113.71.242.187", -6.7098551, 111.3479498, false);
+    	mockBody = new APIUsersResponse[] {dwpTestBuilder.getUsersResponse()[0], dwpTestBuilder.getUsersResponse()[1]};
+
+    	List<APIUsersResponse> first = dwpService.getUsersResults().get();
+    	List<APIUsersResponse> second = dwpService.getUsersResults().get();
+
+    	assertEquals(1, requests.get());
+    	assertEquals(2, second.size());
+    	assertSame(first, second);
+    }
+
+    @Test
+    public void getUsersResults_largeBodyStreamed() throws Exception { // Test a users body well over the web client's in memory limit (256KB by default) is read as it arrives, and invalid json is not retried.
+    	APIUsersResponse[] body = new APIUsersResponse[5000]; // Around 900KB of json.
+
+    	for (int i = 0; i < body.length; i++) {
+    		body[i] = new APIUsersResponse();
+    		body[i].setId(i);
+    		body[i].setFirst_name("Ancell");
+    		body[i].setLast_name("Garnsworthy");
+    		body[i].setEmail("test@test.com");
+    		body[i].setIp_address("113.71.242.187");
+    		body[i].setLatitude(51.5489435);
+    		body[i].setLongitude(0.3860497);
+    	}
+
+    	mockBody = body;
+
+    	List<APIUsersResponse> users = dwpService.getUsersResults().get();
+
+    	assertEquals(5000, users.size());
+    	assertEquals(4999, users.get(4999).getId());
+    	assertEquals(1, requests.get());
+
+    	mockBody = "not users";
+
+    	ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> dwpService.refreshUsersSnapshot());
+
+    	assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, e.getStatus());
+    	assertEquals(2, requests.get()); // The call worked, so it isn't retried.
+    }
+
+    @Test
+    public void getSearchResults_clientException() throws Exception { // Test client errors (4xx) are passed back with the same status.
+    	mockStatus = HttpStatus.NOT_FOUND;
+    	mockBody = new APIUsersResponse[0];
+
+    	ExecutionException e = assertThrows(ExecutionException.class, () -> dwpService.getSearchResults("London").get());
+
+    	assertEquals(HttpStatus.NOT_FOUND, ((ResponseStatusException) e.getCause()).getStatus());
+    	assertEquals(1, requests.get()); // Client errors are not retried.
+    }
+
+    @Test
+    public void getSearchResults_serverException() throws Exception { // Test server errors (5xx) are retried and then passed back with the same status.
+    	mockStatus = HttpStatus.SERVICE_UNAVAILABLE;
+    	mockBody = new APIUsersResponse[0];
+
+    	ExecutionException e = assertThrows(ExecutionException.class, () -> dwpService.getSearchResults("London").get());
+
+    	assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((ResponseStatusException) e.getCause()).getStatus());
+    	assertEquals(3, requests.get());
+    }
+}
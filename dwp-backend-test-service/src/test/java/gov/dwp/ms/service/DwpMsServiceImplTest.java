@@ -2,10 +2,18 @@ package gov.dwp.ms.service;
 
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import gov.dwp.ms.model.APILocationResponse;
 import gov.dwp.ms.model.APIUsersResponse;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import org.junit.Before;
@@ -14,13 +22,20 @@ import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -34,6 +49,18 @@ public class DwpMsServiceImplTest {
     @Mock
     private RestTemplate mockApi; // Mock the rest template so we can inject responses.
  
+    @Spy
+    private DwpMsUsersSnapshotStore usersSnapshotStore = new DwpMsUsersSnapshotStore(); // Use a real snapshot store so snapshot behaviour can be tested.
+ 
+    @Spy
+    private DwpMsSingleFlight singleFlight = new DwpMsSingleFlight(); // Use a real single flight so calls still reach the mock rest template.
+ 
+    @Spy
+    private DwpMsNegativeCache negativeCache = new DwpMsNegativeCache(100, 300000); // Use a real negative cache so repeated failures can be tested.
+ 
+    @Spy
+    private DwpMsGazetteer gazetteer = DwpMsGazetteer.empty(); // Use an empty gazetteer so every city goes to the mock rest template.
+ 
     @InjectMocks
     private DwpMsServiceImpl dwpService = new DwpMsServiceImpl();
        
@@ -41,7 +68,8 @@ public class DwpMsServiceImplTest {
     private String locationIqUrl = "https://testlocation.com/v1/search.php";
     private String locationIqToken = "test_token";
     private String locationErrorMsg = "Unable to obtain city from location api.";
-    private String usersErrorMsg = "Unable to obtain users from users api."; // Setup defaults for values usually taken from app.props.
+    private String usersErrorMsg = "Unable to obtain users from users api.";
+    private long usersMaxStalenessMs = 300000; // Setup defaults for values usually taken from app.props.
     
     @Before
     public void beforeTest() {
@@ -49,7 +77,8 @@ public class DwpMsServiceImplTest {
     	dwpService.locationIqUrl = this.locationIqUrl;
     	dwpService.locationIqToken = this.locationIqToken;
     	dwpService.locationErrorMsg = this.locationErrorMsg;
-    	dwpService.usersErrorMsg = this.usersErrorMsg; // Set the class with the variables ready for testing.
+    	dwpService.usersErrorMsg = this.usersErrorMsg;
+    	dwpService.usersMaxStalenessMs = this.usersMaxStalenessMs; // Set the class with the variables ready for testing.
     	dwpService.setRequestId("client-xyz-id-12345");
     }
 
@@ -71,6 +100,21 @@ public class DwpMsServiceImplTest {
         assertEquals(dwpTestBuilder.getLocationResponse()[0],  location.get()); // Run assertions to ensure match.
     }
     
+    @Test
+    public void getLocationResults_gazetteerHit() throws Exception { // Test getLocationResults answers a known city from the gazetteer without calling the api.
+    	DwpMsGazetteer known = new DwpMsGazetteer(new ByteArrayInputStream("Leeds,England,53.7974185,-1.5437941\n".getBytes(StandardCharsets.UTF_8)));
+    	dwpService.gazetteer = known;
+    	
+        APILocationResponse location = dwpService.getLocationResults("leeds").get();
+        
+        assertEquals("53.7974185", location.getLat());
+        assertEquals("-1.5437941", location.getLon());
+        assertEquals(1, known.getHits());
+        Mockito.verifyNoInteractions(mockApi);
+        
+        dwpService.gazetteer = gazetteer;
+    }
+    
     @Test
     public void getUsersResults_successWithResults() throws Exception { // Test getUsersResults call is a success and returns results.
     	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
@@ -83,12 +127,11 @@ public class DwpMsServiceImplTest {
     	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(usersUrl)
     			.path("users");    
         
-    	Mockito.when(mockApi.getForEntity(builder.build().encode().toUri(), APIUsersResponse[].class))
-        		.thenReturn(new ResponseEntity<APIUsersResponse[]>(dwpTestBuilder.getUsersResponse(), HttpStatus.OK));
+    	mockUsersApi(builder.build().encode().toUri(), dwpTestBuilder.getUsersResponse()); // Set the expected streamed api call with our mock response.
  
         CompletableFuture<List<APIUsersResponse>> users = dwpService.getUsersResults();
         
-        assertEquals(Arrays.asList(dwpTestBuilder.getUsersResponse()),  users.get());
+        assertUsersEqual(dwpTestBuilder.getUsersResponse(),  users.get());
     }
     
     @Test
@@ -110,6 +153,93 @@ public class DwpMsServiceImplTest {
         assertEquals(Arrays.asList(dwpTestBuilder.getSearchResponse()),  search.get());
     }
     
+    @Test
+    public void getUsersResults_servedFromSnapshot() throws Exception { // Test getUsersResults only calls the users api once while the snapshot is fresh.
+    	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	dwpTestBuilder.setUsersResponse(137, "Phyllys", "Hebbs", "test@test.com", "113.71.242.187", -6.7098551, 111.3479498, false);
+	    
+    	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(usersUrl)
+    			.path("users");    
+        
+    	mockUsersApi(builder.build().encode().toUri(), dwpTestBuilder.getUsersResponse()); // Set the expected streamed api call with our mock response.
+ 
+        List<APIUsersResponse> first = dwpService.getUsersResults().get();
+        List<APIUsersResponse> second = dwpService.getUsersResults().get();
+        
+        Mockito.verify(mockApi, Mockito.times(1)).execute(Mockito.eq(builder.build().encode().toUri()), Mockito.eq(HttpMethod.GET), Mockito.any(), Mockito.any());
+        assertEquals(((DwpMsUsersSnapshot) first).getVersion(), ((DwpMsUsersSnapshot) second).getVersion());
+        assertUsersEqual(dwpTestBuilder.getUsersResponse(), second);
+    }
+    
+    @Test
+    public void getUsersResults_staleSnapshotRefreshed() throws Exception { // Test getUsersResults calls the users api again once the snapshot is past the max staleness.
+    	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+	    
+    	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(usersUrl)
+    			.path("users");    
+        
+    	mockUsersApi(builder.build().encode().toUri(), dwpTestBuilder.getUsersResponse()); // Set the expected streamed api call with our mock response.
+    	
+    	dwpService.usersMaxStalenessMs = -1; // Every snapshot is too stale to serve.
+ 
+        List<APIUsersResponse> first = dwpService.getUsersResults().get();
+        List<APIUsersResponse> second = dwpService.getUsersResults().get();
+        
+        Mockito.verify(mockApi, Mockito.times(2)).execute(Mockito.eq(builder.build().encode().toUri()), Mockito.eq(HttpMethod.GET), Mockito.any(), Mockito.any());
+        assertEquals(((DwpMsUsersSnapshot) first).getVersion(), ((DwpMsUsersSnapshot) second).getVersion()); // Same users, so nothing has changed.
+    }
+    
+    @Test
+    public void refreshUsersSnapshot_changedUsersNewVersion() throws Exception { // Test a refresh with changed users publishes a new version holding just the new users.
+    	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	URI url = UriComponentsBuilder.fromHttpUrl(usersUrl).path("users").build().encode().toUri();
+    	
+    	mockUsersApi(url, dwpTestBuilder.getUsersResponse());
+    	DwpMsUsersSnapshot first = dwpService.refreshUsersSnapshot();
+    	
+    	dwpTestBuilder.setUsersResponse(137, "Hugo", "Lynd", "test@test.com", "113.71.242.188", 51.6710832, 0.8078532, true);
+    	mockUsersApi(url, dwpTestBuilder.getUsersResponse());
+    	DwpMsUsersSnapshot second = dwpService.refreshUsersSnapshot();
+    	
+    	assertNotEquals(first.getVersion(), second.getVersion());
+    	assertEquals("1 added, 0 removed, 0 updated, 0 moved", second.getDelta().toString());
+    	assertUsersEqual(dwpTestBuilder.getUsersResponse(), second);
+    }
+    
+    @Test
+    public void refreshUsersSnapshot_notModified() throws Exception { // Test the users api validators are sent on the next refresh, and a 304 keeps the current snapshot.
+    	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
+    	dwpTestBuilder.setUsersResponse(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497, true);
+    	URI url = UriComponentsBuilder.fromHttpUrl(usersUrl).path("users").build().encode().toUri();
+    	byte[] body = new ObjectMapper().writeValueAsBytes(dwpTestBuilder.getUsersResponse());
+    	List<HttpHeaders> requests = new ArrayList<HttpHeaders>();
+    	
+    	Mockito.when(mockApi.execute(Mockito.eq(url), Mockito.eq(HttpMethod.GET), Mockito.any(RequestCallback.class), Mockito.<ResponseExtractor<DwpMsUsersSnapshot>>any()))
+    			.thenAnswer(invocation -> {
+    				MockClientHttpRequest request = new MockClientHttpRequest();
+    				invocation.<RequestCallback>getArgument(2).doWithRequest(request);
+    				requests.add(request.getHeaders());
+    				
+    				MockClientHttpResponse response = requests.size() == 1 ? new MockClientHttpResponse(body, HttpStatus.OK) : new MockClientHttpResponse(new byte[0], HttpStatus.NOT_MODIFIED);
+    				response.getHeaders().setETag("\"v1\"");
+    				response.getHeaders().set(HttpHeaders.LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT");
+    				
+    				return invocation.<ResponseExtractor<DwpMsUsersSnapshot>>getArgument(3).extractData(response);
+    			});
+    	
+    	DwpMsUsersSnapshot first = dwpService.refreshUsersSnapshot();
+    	DwpMsUsersSnapshot second = dwpService.refreshUsersSnapshot();
+    	
+    	assertEquals(Collections.emptyList(), requests.get(0).getIfNoneMatch());
+    	assertEquals(Collections.singletonList("\"v1\""), requests.get(1).getIfNoneMatch());
+    	assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", requests.get(1).getFirst(HttpHeaders.IF_MODIFIED_SINCE));
+    	assertEquals(first.getVersion(), second.getVersion());
+    	assertUsersEqual(dwpTestBuilder.getUsersResponse(), second);
+    }
+    
     @Test
     public void getLocationResults_successNoResults() throws Exception { // Test getLocationResults call is a success with no results.
     	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
@@ -134,12 +264,11 @@ public class DwpMsServiceImplTest {
     	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(usersUrl)
     			.path("users");    
         
-    	Mockito.when(mockApi.getForEntity(builder.build().encode().toUri(), APIUsersResponse[].class))
-        		.thenReturn(new ResponseEntity<APIUsersResponse[]>(dwpTestBuilder.getUsersResponse(), HttpStatus.OK));
+    	mockUsersApi(builder.build().encode().toUri(), dwpTestBuilder.getUsersResponse()); // Set the expected streamed api call with our mock response.
  
         CompletableFuture<List<APIUsersResponse>> users = dwpService.getUsersResults();
         
-        assertEquals(Arrays.asList(dwpTestBuilder.getUsersResponse()),  users.get());
+        assertUsersEqual(dwpTestBuilder.getUsersResponse(),  users.get());
     }
     
     @Test
@@ -175,6 +304,57 @@ public class DwpMsServiceImplTest {
     	CompletableFuture<APILocationResponse> location = dwpService.getLocationResults("London");
     }
     
+    @Test
+    public void getLocationResults_emptyResultsCached() throws Exception { // Test getLocationResults returns not found for an unknown city, and only calls the api once for repeats.
+    	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(locationIqUrl) 
+		        .queryParam("key", locationIqToken)
+		        .queryParam("q", "Lundon")
+		        .queryParam("format", "json");
+        
+    	Mockito.when(mockApi.getForEntity(builder.build().encode().toUri(), APILocationResponse[].class))
+        		.thenReturn(new ResponseEntity<APILocationResponse[]>(new APILocationResponse[0], HttpStatus.OK));
+    	
+    	ResponseStatusException first = assertThrows(ResponseStatusException.class, () -> dwpService.getLocationResults("Lundon"));
+    	ResponseStatusException second = assertThrows(ResponseStatusException.class, () -> dwpService.getLocationResults("lundon"));
+    	
+    	assertEquals(HttpStatus.NOT_FOUND, first.getStatus());
+    	assertEquals(HttpStatus.NOT_FOUND, second.getStatus());
+    	Mockito.verify(mockApi, Mockito.times(1)).getForEntity(builder.build().encode().toUri(), APILocationResponse[].class);
+    }
+    
+    @Test
+    public void getLocationResults_clientExceptionCached() throws Exception { // Test getLocationResults only calls the api once for repeats of a lookup that failed with a client error.
+    	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(locationIqUrl) 
+		        .queryParam("key", locationIqToken)
+		        .queryParam("q", "Lundon")
+		        .queryParam("format", "json");
+        
+    	Mockito.when(mockApi.getForEntity(builder.build().encode().toUri(), APILocationResponse[].class))
+    			.thenThrow(new HttpClientErrorException(HttpStatus.NOT_FOUND));
+    	
+    	assertThrows(ResponseStatusException.class, () -> dwpService.getLocationResults("Lundon"));
+    	ResponseStatusException second = assertThrows(ResponseStatusException.class, () -> dwpService.getLocationResults("Lundon"));
+    	
+    	assertEquals(HttpStatus.NOT_FOUND, second.getStatus());
+    	Mockito.verify(mockApi, Mockito.times(1)).getForEntity(builder.build().encode().toUri(), APILocationResponse[].class);
+    }
+    
+    @Test
+    public void getLocationResults_rateLimitNotCached() throws Exception { // Test getLocationResults doesn't cache rate limit errors as they aren't caused by the city.
+    	UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(locationIqUrl) 
+		        .queryParam("key", locationIqToken)
+		        .queryParam("q", "London")
+		        .queryParam("format", "json");
+        
+    	Mockito.when(mockApi.getForEntity(builder.build().encode().toUri(), APILocationResponse[].class))
+    			.thenThrow(new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS));
+    	
+    	assertThrows(ResponseStatusException.class, () -> dwpService.getLocationResults("London"));
+    	assertThrows(ResponseStatusException.class, () -> dwpService.getLocationResults("London"));
+    	
+    	Mockito.verify(mockApi, Mockito.times(2)).getForEntity(builder.build().encode().toUri(), APILocationResponse[].class);
+    }
+    
     @Test(expected = ResponseStatusException.class)
     public void getUsersResults_clientException() throws Exception { // Test getUsersResults throws ResponseStatusException on client error.
     	DwpMsServiceTestBuilder dwpTestBuilder = new DwpMsServiceTestBuilder();
@@ -311,4 +491,25 @@ public class DwpMsServiceImplTest {
     	@SuppressWarnings("unused")
     	CompletableFuture<List<APIUsersResponse>> location = dwpService.getSearchResults("London");
     }
+    
+    private void mockUsersApi(URI url, APIUsersResponse[] users) throws Exception { // Mock the streamed users api call, passing the users as json to the service's response reader.
+    	byte[] body = new ObjectMapper().writeValueAsBytes(users);
+    	
+    	Mockito.when(mockApi.execute(Mockito.eq(url), Mockito.eq(HttpMethod.GET), Mockito.any(RequestCallback.class), Mockito.<ResponseExtractor<DwpMsUsersSnapshot>>any()))
+    			.thenAnswer(invocation -> invocation.<ResponseExtractor<DwpMsUsersSnapshot>>getArgument(3).extractData(new MockClientHttpResponse(body, HttpStatus.OK)));
+    }
+    
+    private void assertUsersEqual(APIUsersResponse[] expected, List<APIUsersResponse> actual) throws Exception { // Users are created from the snapshot columns, so compare them as json rather than by reference.
+    	List<APIUsersResponse> expectedUsers = new ArrayList<APIUsersResponse>();
+    	
+    	for (APIUsersResponse u : expected) {
+    		if (u != null) {
+    			expectedUsers.add(u); // Null entries are not users, so they are not kept in the snapshot.
+    		}
+    	}
+    	
+    	ObjectMapper mapper = new ObjectMapper();
+    	
+    	assertEquals(mapper.writeValueAsString(expectedUsers), mapper.writeValueAsString(actual));
+    }
 }
@@ -0,0 +1,150 @@
+package gov.dwp.ms.service;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+
+
+public class DwpMsSingleFlightTest {
+
+    private DwpMsSingleFlight singleFlight = new DwpMsSingleFlight();
+
+    private ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void afterTest() {
+    	executor.shutdownNow();
+    }
+
+    @Test
+    public void execute_concurrentCallsCoalesced() throws Exception { // Test concurrent calls for the same key make one call and share its result.
+    	AtomicInteger calls = new AtomicInteger();
+    	CountDownLatch release = new CountDownLatch(1);
+    	Object result = new Object();
+
+    	Future<Object> leader = executor.submit(() -> singleFlight.execute("users", () -> {
+    		calls.incrementAndGet();
+    		release.await(); // Hold the call in flight until the followers have joined.
+
+    		return result;
+    	}));
+
+    	while (calls.get() == 0) {
+    		Thread.sleep(1);
+    	}
+
+    	List<Future<Object>> followers = new ArrayList<Future<Object>>();
+
+    	for (int i = 0; i < 5; i++) {
+    		followers.add(executor.submit(() -> singleFlight.execute("users", () -> {
+    			calls.incrementAndGet();
+
+    			return new Object();
+    		})));
+    	}
+
+    	while (singleFlight.getCoalesced("users") < 5) {
+    		Thread.sleep(1);
+    	}
+
+    	release.countDown();
+
+    	assertSame(result, leader.get(5, TimeUnit.SECONDS));
+
+    	for (Future<Object> follower : followers) {
+    		assertSame(result, follower.get(5, TimeUnit.SECONDS));
+    	}
+
+    	assertEquals(1, calls.get());
+    	assertEquals(5, singleFlight.getCoalesced("users"));
+    }
+
+    @Test
+    public void execute_sequentialCallsNotCoalesced() throws Exception { // Test a finished call is not reused, so results are never cached.
+    	AtomicInteger calls = new AtomicInteger();
+
+    	singleFlight.execute("search:London", calls::incrementAndGet);
+    	singleFlight.execute("search:London", calls::incrementAndGet);
+    	singleFlight.execute("search:Leeds", calls::incrementAndGet);
+
+    	assertEquals(3, calls.get());
+    	assertEquals(0, singleFlight.getCoalesced("search"));
+    }
+
+    @Test
+    public void execute_exceptionShared() throws Exception { // Test followers get the same exception as the leader so errors are handled the same way.
+    	CountDownLatch started = new CountDownLatch(1);
+    	CountDownLatch release = new CountDownLatch(1);
+
+    	Future<Object> leader = executor.submit(() -> singleFlight.execute("users", () -> {
+    		started.countDown();
+    		release.await();
+
+    		throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE);
+    	}));
+
+    	started.await();
+
+    	Future<Object> follower = executor.submit(() -> singleFlight.execute("users", Object::new));
+
+    	while (singleFlight.getCoalesced("users") < 1) {
+    		Thread.sleep(1);
+    	}
+
+    	release.countDown();
+
+    	ExecutionException leaderException = assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS));
+    	ExecutionException followerException = assertThrows(ExecutionException.class, () -> follower.get(5, TimeUnit.SECONDS));
+
+    	assertSame(leaderException.getCause(), followerException.getCause());
+    	assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((HttpServerErrorException) followerException.getCause()).getStatusCode());
+    }
+
+    @Test
+    public void executeAsync_concurrentCallsCoalesced() throws Exception { // Test the non-blocking version shares one future between callers.
+    	AtomicInteger calls = new AtomicInteger();
+    	CompletableFuture<String> upstream = new CompletableFuture<String>();
+
+    	CompletableFuture<String> first = singleFlight.executeAsync("location:London", () -> {
+    		calls.incrementAndGet();
+
+    		return upstream;
+    	});
+    	CompletableFuture<String> second = singleFlight.executeAsync("location:London", () -> {
+    		calls.incrementAndGet();
+
+    		return CompletableFuture.completedFuture("other");
+    	});
+
+    	upstream.complete("London");
+
+    	assertEquals("London", first.get());
+    	assertEquals("London", second.get());
+    	assertEquals(1, calls.get());
+    	assertEquals(1, singleFlight.getCoalesced("location"));
+
+    	CompletableFuture<String> leeds = new CompletableFuture<String>();
+    	singleFlight.executeAsync("location:Leeds", () -> leeds);
+    	singleFlight.executeAsync("location:Leeds", () -> leeds);
+    	leeds.complete("Leeds");
+
+    	assertEquals(2, singleFlight.getCoalesced("location"));
+    	assertEquals(1, singleFlight.meterRegistry.find("dwp.upstream.coalesced").counters().size()); // One series for every city.
+    }
+}
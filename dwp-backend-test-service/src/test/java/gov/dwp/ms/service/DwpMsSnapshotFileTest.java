@@ -0,0 +1,154 @@
+package gov.dwp.ms.service;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gov.dwp.ms.model.APILocationResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class DwpMsSnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void load_sameUsersAndCities() throws Exception { // Test a written file loads back the same users and cities, with users read off heap from the mapped file.
+    	Path file = folder.getRoot().toPath().resolve("users.snapshot");
+    	DwpMsUsersSnapshot snapshot = buildSnapshot(false);
+
+    	DwpMsSnapshotFile.write(file, snapshot, buildCities());
+    	DwpMsSnapshotFile loaded = DwpMsSnapshotFile.load(file);
+    	DwpMsUsersSnapshot users = new DwpMsUsersSnapshot(2, loaded.getUsers());
+
+    	assertTrue(users.isOffHeap());
+    	assertEquals(snapshot.size(), users.size());
+
+    	for (int i = 0; i < snapshot.size(); i++) {
+    		assertEquals(snapshot.get(i).getId(), users.get(i).getId());
+    		assertEquals(snapshot.get(i).getFirst_name(), users.get(i).getFirst_name());
+    		assertEquals(snapshot.get(i).getLast_name(), users.get(i).getLast_name());
+    		assertEquals(snapshot.get(i).getEmail(), users.get(i).getEmail());
+    		assertEquals(snapshot.get(i).getIp_address(), users.get(i).getIp_address());
+    		assertEquals(snapshot.get(i).getLatitude(), users.get(i).getLatitude());
+    		assertEquals(snapshot.get(i).getLongitude(), users.get(i).getLongitude());
+    	}
+
+    	assertEquals(2, loaded.getCities().size());
+    	assertEquals("51.5073219", loaded.getCities().get("London").getLat());
+    	assertEquals("Zürich, Schweiz", loaded.getCities().get("Zurich").getDisplayName());
+    	assertNull(loaded.getCities().get("Zurich").getType());
+    	assertTrue(System.currentTimeMillis() - loaded.getCreatedAt() < 60000);
+    }
+
+    @Test
+    public void write_replacesExistingFile() throws Exception { // Test writing over an existing file leaves only the new complete file behind.
+    	Path file = folder.getRoot().toPath().resolve("users.snapshot");
+
+    	DwpMsSnapshotFile.write(file, buildSnapshot(true), buildCities());
+    	DwpMsSnapshotFile.write(file, new DwpMsUsersSnapshot(2, Arrays.asList()), new LinkedHashMap<String, APILocationResponse>());
+
+    	assertEquals(0, DwpMsSnapshotFile.load(file).getUserCount());
+    	assertEquals(1, folder.getRoot().list().length); // No temp files left over.
+    }
+
+    @Test
+    public void load_corruptFile() throws Exception { // Test a single changed byte is caught by the checksum.
+    	Path file = folder.getRoot().toPath().resolve("users.snapshot");
+    	DwpMsSnapshotFile.write(file, buildSnapshot(false), buildCities());
+
+    	byte[] bytes = Files.readAllBytes(file);
+    	bytes[bytes.length - 3] ^= 1;
+    	Files.write(file, bytes);
+
+    	assertFalse(assertThrows(IOException.class, () -> DwpMsSnapshotFile.load(file)).getMessage().isEmpty());
+    }
+
+    @Test
+    public void load_truncatedFile() throws Exception { // Test a partly written file is rejected.
+    	Path file = folder.getRoot().toPath().resolve("users.snapshot");
+    	DwpMsSnapshotFile.write(file, buildSnapshot(false), buildCities());
+
+    	byte[] bytes = Files.readAllBytes(file);
+    	Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+    	assertThrows(IOException.class, () -> DwpMsSnapshotFile.load(file));
+
+    	Files.write(file, Arrays.copyOf(bytes, 20));
+    	assertThrows(IOException.class, () -> DwpMsSnapshotFile.load(file));
+    }
+
+    @Test
+    public void load_notSnapshotFile() throws Exception { // Test a file of another format is rejected.
+    	Path file = folder.getRoot().toPath().resolve("users.snapshot");
+    	Files.write(file, new byte[DwpMsSnapshotFile.HEADER_BYTES + 100]);
+
+    	assertThrows(IOException.class, () -> DwpMsSnapshotFile.load(file));
+    }
+
+    @Test
+    public void load_staleFileIgnored() throws Exception { // Test persistence serves a recent file, with the age it was saved with, but not users older than the max staleness or a file older than the max age.
+    	Path file = folder.getRoot().toPath().resolve("users.snapshot");
+    	DwpMsUsersSnapshot saved = buildSnapshot(false);
+    	Thread.sleep(5); // So a load that set the time to now would show.
+    	DwpMsSnapshotFile.write(file, saved, buildCities());
+
+    	DwpMsSnapshotPersistence persistence = new DwpMsSnapshotPersistence();
+    	persistence.usersSnapshotStore = new DwpMsUsersSnapshotStore();
+    	persistence.cacheManager = new org.springframework.cache.support.NoOpCacheManager();
+    	persistence.snapshotFile = file.toString();
+
+    	persistence.maxAgeMs = -1; // Anything is too old.
+    	persistence.load();
+    	assertNull(persistence.usersSnapshotStore.getCurrent());
+
+    	persistence.maxAgeMs = 60000;
+    	persistence.maxStalenessMs = -1; // Users too stale to serve, only the cities are loaded.
+    	persistence.load();
+    	assertNull(persistence.usersSnapshotStore.getCurrent());
+
+    	persistence.maxStalenessMs = 60000;
+    	persistence.load();
+    	assertEquals(3, persistence.usersSnapshotStore.getCurrent().size());
+    	assertEquals(saved.getCreatedAt(), persistence.usersSnapshotStore.getCurrent().getCreatedAt());
+    }
+
+    private DwpMsUsersSnapshot buildSnapshot(boolean offHeap) {
+    	DwpMsUsersSnapshotBuilder builder = new DwpMsUsersSnapshotBuilder();
+    	builder.add(136, "Ancell", "Garnsworthy", "test@test.com", "113.71.242.187", 51.5489435, 0.3860497);
+    	builder.add(137, "Zoë", "Ó Briain", null, "113.71.242.188", -6.7098551, 111.3479498);
+    	builder.add(138, "Ancell", null, "test2@test.com", null, -90, 180);
+
+    	return builder.build(1, offHeap);
+    }
+
+    private Map<String, APILocationResponse> buildCities() {
+    	Map<String, APILocationResponse> cities = new LinkedHashMap<String, APILocationResponse>();
+
+    	APILocationResponse london = new APILocationResponse();
+    	london.setDisplay_name("London, Greater London, England, United Kingdom");
+    	london.setType("city");
+    	london.setLat("51.5073219");
+    	london.setLon("-0.1276474");
+    	cities.put("London", london);
+
+    	APILocationResponse zurich = new APILocationResponse();
+    	zurich.setDisplay_name("Zürich, Schweiz");
+    	zurich.setLat("47.3744489");
+    	zurich.setLon("8.5410422");
+    	cities.put("Zurich", zurich);
+
+    	return cities;
+    }
+}
@@ -0,0 +1,134 @@
+package gov.dwp.ms.service;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+
+public class DwpMsUsersDeltaTest {
+
+    private DwpMsUsersSnapshotStore store = new DwpMsUsersSnapshotStore();
+
+    @Test
+    public void publish_unchangedKeepsVersion() throws Exception { // Test the same users in a different order are not a new version.
+    	DwpMsUsersSnapshot first = store.publish(users(new int[] {1, 2, 3}, 0));
+    	DwpMsUsersSnapshot second = store.publish(users(new int[] {3, 1, 2}, 0));
+
+    	assertEquals(first.getVersion(), second.getVersion());
+    	assertSame(first.getColumns(), second.getColumns()); // Nothing copied.
+    	assertSame(second, store.getCurrent());
+    }
+
+    @Test
+    public void publish_changesKeepPositions() throws Exception { // Test users keep their positions, and only changed positions are reported for re-indexing.
+    	store.publish(users(new int[] {1, 2, 3, 4, 5}, 0));
+
+    	DwpMsUsersSnapshotBuilder fetched = users(new int[] {5, 4, 6, 1}, 0); // 2 and 3 removed, 6 added.
+    	fetched.add(2, "First2", "Last2", null, null, 10, 10); // 2 is back, but moved.
+    	DwpMsUsersSnapshot snapshot = store.publish(fetched);
+    	DwpMsUsersDelta delta = snapshot.getDelta();
+
+    	assertEquals(2, snapshot.getVersion());
+    	assertEquals("1 added, 1 removed, 0 updated, 1 moved", delta.toString());
+    	assertArrayEquals(new int[] {1, 2, 6, 4, 5}, ids(snapshot)); // 6 takes the position 3 left.
+    	assertEquals(10, snapshot.getLatitude(1));
+    	assertArrayEquals(new int[] {1, 2}, sorted(delta.getRemovedPositions()));
+    	assertArrayEquals(new int[] {1, 2}, delta.getAddedPositions());
+    }
+
+    @Test
+    public void publish_shorterListRelocatesUsers() throws Exception { // Test users past the end of a shorter list move into free positions, and are re-indexed.
+    	store.publish(users(new int[] {1, 2, 3, 4, 5}, 0));
+    	DwpMsUsersSnapshot snapshot = store.publish(users(new int[] {5, 4, 1, 2}, 0)); // 3 removed.
+    	DwpMsUsersDelta delta = snapshot.getDelta();
+
+    	assertEquals("0 added, 1 removed, 0 updated, 0 moved", delta.toString());
+    	assertArrayEquals(new int[] {1, 2, 5, 4}, ids(snapshot));
+    	assertArrayEquals(new int[] {2, 4}, sorted(delta.getRemovedPositions()));
+    	assertArrayEquals(new int[] {2}, delta.getAddedPositions());
+    }
+
+    @Test
+    public void publish_shorterListMovedUserRemovedOnce() throws Exception { // Test a moved user past the end of a shorter list only has its old position removed once.
+    	store.publish(users(new int[] {1, 2, 3}, 0));
+
+    	DwpMsUsersSnapshotBuilder fetched = new DwpMsUsersSnapshotBuilder();
+    	fetched.add(3, "First3", "Last3", null, null, 30, 3); // 1 and 2 removed, 3 moved.
+    	DwpMsUsersSnapshot snapshot = store.publish(fetched);
+    	DwpMsUsersDelta delta = snapshot.getDelta();
+
+    	assertEquals("0 added, 2 removed, 0 updated, 1 moved", delta.toString());
+    	assertArrayEquals(new int[] {3}, ids(snapshot));
+    	assertEquals(30, snapshot.getLatitude(0));
+    	assertArrayEquals(new int[] {0, 1, 2}, sorted(delta.getRemovedPositions()));
+    	assertArrayEquals(new int[] {0}, delta.getAddedPositions());
+    }
+
+    @Test
+    public void publish_detailsUpdated() throws Exception { // Test a changed name is a new version with the new name, but nothing to re-index.
+    	store.publish(users(new int[] {1, 2}, 0));
+
+    	DwpMsUsersSnapshotBuilder fetched = users(new int[] {1}, 0);
+    	fetched.add(2, "Changed", "Last2", null, null, 2, 2);
+    	DwpMsUsersSnapshot snapshot = store.publish(fetched);
+
+    	assertNotEquals(1, snapshot.getVersion());
+    	assertEquals("Changed", snapshot.get(1).getFirst_name());
+    	assertEquals(0, snapshot.getDelta().getAddedPositions().length);
+    	assertEquals(0, snapshot.getDelta().getRemovedPositions().length);
+    }
+
+    @Test
+    public void publish_duplicateIdsRebuilt() throws Exception { // Test users can't be matched by id when ids are repeated, so the snapshot is built from scratch.
+    	store.publish(users(new int[] {1, 2}, 0));
+    	DwpMsUsersSnapshot snapshot = store.publish(users(new int[] {1, 1, 2}, 0));
+
+    	assertNull(snapshot.getDelta());
+    	assertEquals(3, snapshot.size());
+    }
+
+    @Test
+    public void renew_sameVersionNewAge() throws Exception { // Test a not modified response keeps the version but resets the age.
+    	DwpMsUsersSnapshot first = store.publish(users(new int[] {1, 2}, 0), "\"v1\"", "Wed, 21 Oct 2015 07:28:00 GMT");
+    	Thread.sleep(5);
+    	DwpMsUsersSnapshot second = store.renew();
+
+    	assertEquals(first.getVersion(), second.getVersion());
+    	assertTrue(second.getAge() < first.getAge());
+    	assertEquals("\"v1\"", store.getEtag());
+    	assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", store.getLastModified());
+    }
+
+    private DwpMsUsersSnapshotBuilder users(int[] ids, double offset) { // Each user's co-ords and names come from its id, so the same id is the same user.
+    	DwpMsUsersSnapshotBuilder builder = new DwpMsUsersSnapshotBuilder();
+
+    	for (int id : ids) {
+    		builder.add(id, "First" + id, "Last" + id, null, null, id + offset, id + offset);
+    	}
+
+    	return builder;
+    }
+
+    private int[] ids(DwpMsUsersSnapshot snapshot) {
+    	int[] ids = new int[snapshot.size()];
+
+    	for (int i = 0; i < ids.length; i++) {
+    		ids[i] = snapshot.getId(i);
+    	}
+
+    	return ids;
+    }
+
+    private int[] sorted(int[] values) {
+    	Arrays.sort(values);
+
+    	return values;
+    }
+}
@@ -0,0 +1,69 @@
+package gov.dwp.ms.service;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import gov.dwp.ms.model.APIUsersResponse;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+
+public class DwpMsUsersStreamReaderTest {
+
+    @Test
+    public void read_successWithResults() throws Exception { // Test all user fields are read into the snapshot columns.
+    	DwpMsUsersSnapshot snapshot = read("[{\"id\":136,\"first_name\":\"Ancell\",\"last_name\":\"Garnsworthy\",\"email\":\"test@test.com\",\"ip_address\":\"113.71.242.187\",\"latitude\":51.5489435,\"longitude\":0.3860497},"
+    			+ "{\"id\":137,\"first_name\":\"Phyllys\",\"last_name\":\"Hebbs\",\"email\":\"test@test.com\",\"ip_address\":\"113.71.242.187\",\"latitude\":\"-6.7098551\",\"longitude\":\"111.3479498\"}]");
+
+    	APIUsersResponse user = snapshot.get(1);
+
+    	assertEquals(2, snapshot.size());
+    	assertEquals(136, snapshot.getId(0));
+    	assertEquals(51.5489435, snapshot.getLatitude(0));
+    	assertEquals(0.3860497, snapshot.getLongitude(0));
+    	assertEquals(137, user.getId());
+    	assertEquals("Phyllys", user.getFirst_name());
+    	assertEquals("Hebbs", user.getLast_name());
+    	assertEquals(-6.7098551, user.getLatitude()); // Co-ords sent as strings are parsed the same as numbers.
+    	assertEquals(111.3479498, user.getLongitude());
+    	assertEquals("test@test.com", user.getEmail());
+    	assertEquals("113.71.242.187", user.getIp_address());
+    }
+
+    @Test
+    public void read_namesPooled() throws Exception { // Test repeated names are only stored once.
+    	DwpMsUsersSnapshot snapshot = read("[{\"id\":1,\"first_name\":\"Hugo\",\"last_name\":\"Lynd\"},{\"id\":2,\"first_name\":\"Hugo\",\"last_name\":\"Lynd\"}]");
+
+    	assertSame(snapshot.get(0).getFirst_name(), snapshot.get(1).getFirst_name());
+    	assertSame(snapshot.get(0).getLast_name(), snapshot.get(1).getLast_name());
+    }
+
+    @Test
+    public void read_unknownFieldsAndNullsSkipped() throws Exception { // Test fields we don't use (including nested ones) and null entries are ignored.
+    	DwpMsUsersSnapshot snapshot = read("[null,{\"id\":140,\"extra\":{\"a\":[1,2,{\"b\":3}]},\"first_name\":null,\"latitude\":51.5,\"longitude\":0.38},null]");
+
+    	assertEquals(1, snapshot.size());
+    	assertEquals(140, snapshot.get(0).getId());
+    	assertEquals(null, snapshot.get(0).getFirst_name());
+    	assertEquals(51.5, snapshot.get(0).getLatitude());
+    }
+
+    @Test
+    public void read_emptyList() throws Exception { // Test an empty users list gives an empty snapshot.
+    	assertEquals(0, read("[]").size());
+    }
+
+    @Test
+    public void read_invalidJson() throws Exception { // Test a body that isn't a users array, or is cut short, is rejected.
+    	assertThrows(JsonParseException.class, () -> read("{\"id\":1}"));
+    	assertThrows(JsonParseException.class, () -> read("[{\"id\":1,\"latitude\":51.5"));
+    }
+
+    private DwpMsUsersSnapshot read(String json) throws Exception {
+    	return DwpMsUsersStreamReader.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))).build(1);
+    }
+}
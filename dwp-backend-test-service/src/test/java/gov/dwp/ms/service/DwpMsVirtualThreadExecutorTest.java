@@ -0,0 +1,101 @@
+package gov.dwp.ms.service;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+
+public class DwpMsVirtualThreadExecutorTest {
+
+    @Test
+    public void create_unsupportedJvm() throws Exception { // Test create returns null so the config can fall back to the platform thread pool.
+    	if (Runtime.version().feature() < 21) {
+    		assertNull(DwpMsVirtualThreadExecutor.create("test-", 2));
+    		assertNull(DwpMsVirtualThreadExecutor.newThreadPerTaskExecutor("test-"));
+    	}
+    }
+
+    @Test
+    public void create_supportedJvm() throws Exception { // Test virtual threads are used on Java 21 and later, rather than quietly falling back.
+    	if (Runtime.version().feature() >= 21) {
+    		DwpMsVirtualThreadExecutor executor = DwpMsVirtualThreadExecutor.create("test-", 2);
+
+    		assertNotNull(executor);
+    		assertNotNull(DwpMsVirtualThreadExecutor.newThreadPerTaskExecutor("test-"));
+    		assertEquals("test-0", DwpMsVirtualThreadExecutor.virtualThreadFactory("test-").newThread(() -> {}).getName());
+
+    		executor.destroy();
+    	}
+    }
+
+    @Test
+    public void execute_concurrencyLimited() throws Exception { // Test no more than the max concurrency tasks run at the same time, using a thread per task platform executor so it runs on every JVM.
+    	assertConcurrencyLimited(new DwpMsVirtualThreadExecutor(Executors.newCachedThreadPool(), 2));
+    }
+
+    @Test
+    public void execute_concurrencyLimitedOnVirtualThreads() throws Exception { // Test the same limit with virtual threads, where the JVM supports them.
+    	DwpMsVirtualThreadExecutor executor = DwpMsVirtualThreadExecutor.create("test-", 2);
+
+    	if (executor != null) {
+    		assertConcurrencyLimited(executor);
+    	}
+    }
+
+    private void assertConcurrencyLimited(DwpMsVirtualThreadExecutor executor) throws Exception {
+    	AtomicInteger running = new AtomicInteger();
+    	AtomicInteger maxRunning = new AtomicInteger();
+    	CountDownLatch gate = new CountDownLatch(1); // Holds the running tasks until the test has checked them.
+    	CountDownLatch done = new CountDownLatch(20);
+
+    	for (int i = 0; i < 20; i++) {
+    		executor.execute(() -> {
+    			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+
+    			try {
+    				gate.await(10, TimeUnit.SECONDS);
+
+    			} catch(InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    			}
+
+    			running.decrementAndGet();
+    			done.countDown();
+    		});
+    	}
+
+    	long deadline = System.currentTimeMillis() + 10000;
+
+    	while (running.get() < 2 && System.currentTimeMillis() < deadline) {
+    		Thread.sleep(1);
+    	}
+
+    	Thread.sleep(50); // Give any task over the limit time to start.
+
+    	assertEquals(2, running.get()); // Tasks run side by side up to the limit, and the rest wait.
+    	assertEquals(0, executor.getAvailablePermits());
+
+    	gate.countDown();
+
+    	assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    	deadline = System.currentTimeMillis() + 10000;
+
+    	while (executor.getAvailablePermits() < 2 && System.currentTimeMillis() < deadline) { // Permits are released just after each task finishes.
+    		Thread.sleep(1);
+    	}
+
+    	assertEquals(2, maxRunning.get());
+    	assertEquals(2, executor.getAvailablePermits());
+
+    	executor.destroy();
+    }
+}